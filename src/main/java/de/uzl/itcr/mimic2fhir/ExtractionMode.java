@@ -0,0 +1,31 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir;
+
+/**
+ * Extraction-Mode: How shall the data be read from the database?
+ * -PATIENT_QUERIES: Query all tables per patient (or per block of patients, see batchSize)
+ * -SORT_MERGE: One ordered scan per table (sorted by subject_id, hadm_id), merged in memory 
+ *  -> few sequential scans instead of many index lookups, best for converting the whole database
+ * -CSV_FILES: No database, read the mimic csv(.gz) files in Config.csvPath
+ * @author Stefanie Ververs
+ *
+ */
+public enum ExtractionMode {
+	PATIENT_QUERIES,
+	SORT_MERGE,
+	CSV_FILES
+}
@@ -15,38 +15,56 @@ limitations under the License.
 /***********************************************************************/
 package de.uzl.itcr.mimic2fhir;
 
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.json.Json;
 import javax.json.JsonObject;
 
-import org.hl7.fhir.dstu3.model.Condition;
-import org.hl7.fhir.dstu3.model.Encounter;
+import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.Location;
 import org.hl7.fhir.dstu3.model.Medication;
-import org.hl7.fhir.dstu3.model.MedicationAdministration;
-import org.hl7.fhir.dstu3.model.Observation;
 import org.hl7.fhir.dstu3.model.Organization;
-import org.hl7.fhir.dstu3.model.Patient;
-import org.hl7.fhir.dstu3.model.Period;
 import org.hl7.fhir.dstu3.model.Practitioner;
 import org.hl7.fhir.dstu3.model.PractitionerRole;
-import org.hl7.fhir.dstu3.model.Procedure;
 import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
 
-import ca.uhn.fhir.model.primitive.IdDt;
-import de.uzl.itcr.mimic2fhir.model.MAdmission;
 import de.uzl.itcr.mimic2fhir.model.MCaregiver;
+import de.uzl.itcr.mimic2fhir.model.MEventBlock;
 import de.uzl.itcr.mimic2fhir.model.MPatient;
-import de.uzl.itcr.mimic2fhir.model.MTransfer;
+import de.uzl.itcr.mimic2fhir.model.MPrescription;
 import de.uzl.itcr.mimic2fhir.model.MWard;
 import de.uzl.itcr.mimic2fhir.queue.Receiver;
 import de.uzl.itcr.mimic2fhir.queue.Sender;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
+import de.uzl.itcr.mimic2fhir.tools.RxNormIndex;
+import de.uzl.itcr.mimic2fhir.tools.RxNormLookup;
 import de.uzl.itcr.mimic2fhir.work.BundleControl;
+import de.uzl.itcr.mimic2fhir.work.Checkpoint;
 import de.uzl.itcr.mimic2fhir.work.Config;
 import de.uzl.itcr.mimic2fhir.work.ConnectDB;
+import de.uzl.itcr.mimic2fhir.work.Crosswalk;
+import de.uzl.itcr.mimic2fhir.work.CsvPatientReader;
+import de.uzl.itcr.mimic2fhir.work.CsvSource;
 import de.uzl.itcr.mimic2fhir.work.FHIRComm;
+import de.uzl.itcr.mimic2fhir.work.JobTable;
+import de.uzl.itcr.mimic2fhir.work.MimicSource;
+import de.uzl.itcr.mimic2fhir.work.ReferenceData;
 
 /**
  * Application for transforming data from mimiciii to fhir 
@@ -54,25 +72,41 @@ import de.uzl.itcr.mimic2fhir.work.FHIRComm;
  *
  */
 public class Mimic2Fhir {
+	private static final Logger LOG = Logger.getLogger(Mimic2Fhir.class.getName());
+	
 	//Config-Object
 	private Config config;
 
 	private OutputMode outputMode;
 	private int topPatients;
+	private int batchSize;
+	private ExtractionMode extractionMode = ExtractionMode.PATIENT_QUERIES;
+	private StartMode startMode = StartMode.NEW;
+	
+	private int workerCount = 1;
 	
+	private MimicSource source;
 	private ConnectDB dbAccess;
 	private FHIRComm fhir;
 	private HashMap<Integer,MCaregiver> caregivers;
 	private HashMap<Integer,MWard> locations;
 	
-	private HashMap<String,String> locationsInBundle;
-	private HashMap<String,String> caregiversInBundle;
-	private HashMap<String,String> medicationInBundle;
-	
 	private Organization hospital;
-	private BundleControl bundleC;
+	private ReferenceData referenceData;
+	private Crosswalk crosswalk;
 	
-	private Sender sendr;
+	//work distribution between workers
+	private static final int PATIENT_PAGE_SIZE = 1000;
+	private Iterator<MPatient> patients;
+	//csv: workers take whole blocks and load them outside the lock
+	private CsvPatientReader csvPatients;
+	private boolean completePatients;
+	private List<Integer> cohortSubjectIds;
+	private int numberOfTakenPatients;
+	private Checkpoint checkpoint;
+	private JobTable jobTable;
+	//first error of a worker (later ones suppressed): other workers take no more patients, start fails at the end
+	private Throwable workerFailure;
 
 	
 	public Config getConfig() {
@@ -104,41 +138,146 @@ public class Mimic2Fhir {
 		this.topPatients = topPatients;
 	}
 
+	/**
+	 * Set Number of Patients to load together in one block (one query per table for the whole block)
+	 * 0 loads each patient (and each admission) separately
+	 * @param batchSize number of patients per block
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Set how data is read from the database (default: PATIENT_QUERIES)
+	 * @param extractionMode extraction mode
+	 */
+	public void setExtractionMode(ExtractionMode extractionMode) {
+		this.extractionMode = extractionMode;
+	}
+
+	/**
+	 * Set start mode (default: NEW); RESUME continues after the last completed patient in Config.checkpointFile
+	 * @param startMode start mode
+	 */
+	public void setStartMode(StartMode startMode) {
+		this.startMode = startMode;
+	}
+
+	/**
+	 * Set Number of workers converting patients in parallel (each with its own db connection); default 1
+	 * @param workerCount number of workers
+	 */
+	public void setWorkerCount(int workerCount) {
+		this.workerCount = workerCount;
+	}
+
 	/**
 	 * Start transformation 
+	 * @throws IllegalStateException if a worker failed (bundles of completed patients are sent; checkpoint or job table 
+	 * keep the progress for a resume)
 	 */
 	public void start() {	
-    	//Connection to mimic postgres DB
-    	dbAccess = new ConnectDB(config);
+    	//Events beyond the limits are spilled to memory-mapped scratch files
+    	MEventBlock.setSpillLimits(config.getSpillAdmissionBytes(), config.getSpillGlobalBytes(), config.getSpillDirectory());
+    	
+    	//Ids of resources: random or from mimic keys
+    	ResourceIds.setStrategy(config.getIdStrategy());
+    	
+    	//RxNorm offline from index file (built from RRF files, if not existing) instead of REST API
+    	if(config.getRxNormIndexFile() != null) {
+    		try {
+    			if(config.getRxNormRrfPath() != null && !new File(config.getRxNormIndexFile()).exists()) {
+    				RxNormIndex.build(config.getRxNormRrfPath(), config.getRxNormIndexFile());
+    			}
+    			RxNormLookup.getInstance().setIndex(RxNormIndex.open(config.getRxNormIndexFile()));
+    			RxNormLookup.getInstance().setIndexFallback(config.isRxNormIndexFallback());
+    		} catch (IOException e) {
+    			throw new IllegalStateException("RxNorm index could not be opened", e);
+    		}
+    	}
+    	if(config.getRxNormIndexFile() == null || config.isRxNormIndexFallback()) {
+    		//REST API (also codes missing in index): limited requests at the same time (workers), lookups of earlier runs from cache file
+    		if(config.getRxNormMaxRequests() > 0) {
+    			RxNormLookup.getInstance().setMaxRequests(config.getRxNormMaxRequests());
+    		}
+    		if(config.getRxNormCacheFile() != null) {
+    			RxNormLookup.getInstance().setCacheFile(config.getRxNormCacheFile(), config.getRxNormCacheMaxDays());
+    		}
+    	}
+    	
+    	//cohort: only some patients -> queries for blocks of patients instead of full table scans
+    	boolean sortMerge = extractionMode == ExtractionMode.SORT_MERGE && !config.hasCohort();
+    	CsvSource csvSource = null;
+    	cohortSubjectIds = null;
+    	if(extractionMode == ExtractionMode.CSV_FILES) {
+    		//no db: mimic csv files (cohort only from file)
+    		if(config.getCohortCondition() != null) {
+    			throw new IllegalStateException("Cohort condition needs the postgres db");
+    		}
+    		csvSource = new CsvSource(config);
+    		source = csvSource;
+    	}
+    	else {
+    		//Connection pool to mimic postgres DB - one connection per worker (+ one for the sort merge cursors)
+    		dbAccess = new ConnectDB(config, sortMerge ? workerCount + 1 : workerCount);
+    		
+    		//Snapshot: all connections read the same db state (own snapshot or the one of another application)
+    		if(config.isSnapshotReads() && config.getSnapshotId() == null) {
+    			try {
+    				LOG.info("Snapshot: " + dbAccess.exportSnapshot());
+				} catch (SQLException e) {
+					throw new IllegalStateException("Snapshot could not be exported", e);
+				}
+    		}
+    		
+    		//Preload dictionaries (items, labitems, icd codes)
+    		dbAccess.loadDictionaries();
+    		source = dbAccess;
+    		
+    		//Cohort: resolved once, patient iterator and job table only return patients of the cohort
+    		if(config.hasCohort()) {
+    			cohortSubjectIds = dbAccess.resolveCohort();
+    			LOG.info("Cohort: " + cohortSubjectIds.size() + " patients");
+    		}
+    	}
+    	//sort merge and csv: patients are complete, all events are already merged into the admissions
+    	//(not with job table: claimed patients are loaded by subjectId, events are streamed as configured in ConnectDB)
+    	boolean jobMode = startMode == StartMode.JOB_COORDINATOR || startMode == StartMode.JOB_WORKER;
+    	completePatients = (sortMerge || csvSource != null) && !jobMode;
     	
     	//Preload Caregivers
-    	caregivers = dbAccess.getCaregivers();
+    	caregivers = source.getCaregivers();
     	
     	//Preload Wards
-    	locations = dbAccess.getLocations();
-    	
-    	//initialize memoryLists of locations and caregivers and medication (-> conditional creates, each resource only once in bundle)
-    	locationsInBundle = new HashMap<String,String>();
-    	caregiversInBundle = new HashMap<String,String>();
-    	medicationInBundle = new HashMap<String,String>();
+    	locations = source.getLocations();
     	
     	//Preload Hospital
     	hospital = createTopHospital();
     	
-    	//Fhir-Communication and Resource-Bundle-Stuff
+    	//Fhir-Communication
     	fhir = new FHIRComm(config);  
-    	bundleC = new BundleControl();
-
-    	int numberOfAllPatients = 0;
-    	if(topPatients == 0) { //all Patients
-    		numberOfAllPatients = dbAccess.getNumberOfPatients();
+    	
+    	//Crosswalk: server ids of pushed resources (also of earlier runs)
+    	crosswalk = null;
+    	if(config.getCrosswalkFile() != null && outputMode == OutputMode.PUSH_SERVER) {
+    		crosswalk = new Crosswalk(config.getCrosswalkFile());
+    		LOG.info("Crosswalk: " + crosswalk.load() + " server ids");
+    		fhir.setCrosswalk(crosswalk);
+    		
+    		String hospitalId = crosswalk.getServerId("Organization", "identifier=" + hospital.getIdentifierFirstRep().getSystem() + "|" + hospital.getIdentifierFirstRep().getValue());
+    		if(hospitalId != null) {
+    			hospital.setId(hospitalId);
+    		}
     	}
-    	else {
-    		numberOfAllPatients = topPatients;
+    	
+    	//Reference data once in leading bundles, patient bundles reference it
+    	referenceData = null;
+    	if(config.isReferenceBundle()) {
+    		referenceData = sendReferenceData();
+    		LOG.info("Reference data: " + referenceData.size() + " resources");
     	}
 
-    	//Sender for sending bundle messages to queue
-    	sendr = new Sender();
+    	source.releaseConnection();
     	
     	//Start Message-Receiver (handles bundle operations)
     	Receiver r = new Receiver();
@@ -146,10 +285,73 @@ public class Mimic2Fhir {
     	r.setOutputMode(outputMode);
     	r.receive();
 
-    	//loop all patients..
-    	for(int i = 1; i<= numberOfAllPatients; i++) {   	
-    		MPatient mimicPat2 = dbAccess.getPatientByRowId(i);
-    		processPatient(mimicPat2, i);
+    	//Job table: patients are claimed from the db, progress is kept there
+    	jobTable = null;
+    	if(jobMode) {
+    		if(dbAccess == null) {
+    			throw new IllegalStateException("Job table needs the postgres db");
+    		}
+    		jobTable = new JobTable(dbAccess, config);
+    		if(startMode == StartMode.JOB_COORDINATOR) {
+    			if(!jobTable.seed(topPatients, config.isJobOrderBySize(), cohortSubjectIds, config.isJobReset())) {
+    				LOG.info("Job table: continuing existing jobs");
+    			}
+    		}
+    		dbAccess.releaseConnection();
+    	}
+    	
+    	//Progress: resume after last completed patient or start new
+    	checkpoint = null;
+    	int donePatients = 0;
+    	if(config.getCheckpointFile() != null && !jobMode) {
+    		checkpoint = new Checkpoint(config.getCheckpointFile());
+    		//resume without checkpoint file: start new; an unreadable checkpoint file stops the run (load throws)
+    		if(startMode == StartMode.RESUME && checkpoint.load()) {
+    			donePatients = checkpoint.getPatientNumber();
+    		}
+    		else {
+    			checkpoint.reset();
+    		}
+    	}
+    	int afterRowId = checkpoint != null ? checkpoint.getRowId() : 0;
+    	int afterSubjectId = checkpoint != null ? checkpoint.getSubjectId() : 0;
+    	
+    	//all workers take patients from here (topPatients = 0 -> all)
+    	int limit = topPatients > 0 ? topPatients - donePatients : 0;
+    	csvPatients = null;
+    	if(jobMode || (topPatients > 0 && limit <= 0)) {
+    		//jobs: no iterator / all done
+    		patients = Collections.emptyIterator();
+    	}
+    	else if(csvSource != null) {
+    		csvPatients = csvSource.getPatientReader(limit, afterRowId);
+    		patients = csvPatients;
+    	}
+    	else if(sortMerge) {
+    		patients = dbAccess.getSortMergeReader(limit, afterSubjectId);
+    	}
+    	else {
+    		patients = dbAccess.getPatientIterator(PATIENT_PAGE_SIZE, limit, afterRowId);
+    	}
+    	//numbers of resumed patients (and their bundles) continue after the checkpoint
+    	numberOfTakenPatients = donePatients;
+    	
+    	workerFailure = null;
+    	ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+    	for(int w = 0; w < workerCount; w++) {
+    		workers.submit(this::runWorker);
+    	}
+    	workers.shutdown();
+    	try {
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			//stop workers after their current patient, run fails
+			workerFailed(e);
+			workers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+    	if(jobTable != null) {
+    		jobTable.close();
     	}
 
     	//Push end-Message to queue
@@ -158,238 +360,233 @@ public class Mimic2Fhir {
     			.add("bundle", "END")
     			.build();
 
+    	Sender sendr = new Sender();
     	sendr.send(message.toString());    	 
 
     	//close connection to queue
     	sendr.close();
+    	source.close();
+    	
+    	if(workerFailure != null) {
+    		throw new IllegalStateException("Conversion failed", workerFailure);
+    	}
 	}
 	
-	private void resetMemoryLists() {
-		caregiversInBundle.clear();
-		locationsInBundle.clear();
-		medicationInBundle.clear();
+	private synchronized void workerFailed(Throwable e) {
+		if(workerFailure == null) {
+			workerFailure = e;
+		}
+		else if(workerFailure != e) {
+			workerFailure.addSuppressed(e);
+		}
 	}
 	
-	private void processPatient(MPatient mimicPat, int numPat) {
-		//Fill FHIR-Structure
-		Patient fhirPat = mimicPat.createFhirFromMimic();	
-		String patNumber;
-		int admissionIndex = 0;
-
-		//All admissions of one patient
-		for(MAdmission admission : mimicPat.getAdmissions()) {
-
-			//First: Load/create fhir resources
-			Encounter enc = admission.createFhirEncounterFromMimic(fhirPat.getId());
-
-			//create Conditions per Admission
-			List<Condition> conditions = admission.createFhirConditionsFromMimic(fhirPat.getId());
-
-			//create Procedures per Admission
-			List<Procedure> procedures = admission.createFhirProceduresFromMimic(fhirPat.getId());
-
-			//create List Of Medication & MedicationAdministrations
-			List<Medication> medications = admission.createFhirMedicationsFromMimic();
-			List<MedicationAdministration> prescriptions = admission.createFhirMedAdminsFromMimic(fhirPat.getId(), enc.getId());
+	private synchronized boolean isWorkerFailed() {
+		return workerFailure != null;
+	}
 	
-			//create Observations per Admission
-			List<Observation> obs = admission.createFhirObservationsFromMimic(fhirPat.getId(), enc.getId());
-			//create Observation from Labevents
-			List<Observation> obsLab = admission.createFhirLabObservationsFromMimic(fhirPat.getId(), enc.getId());
-			//create Observation from Noteevents
-			List<Observation> obsNotes = admission.createFhirNoteObservationsFromMimic(fhirPat.getId(), enc.getId());
-
-			//create bundle without observations and medication:
-			createBasicBundle(fhirPat, admission, enc, conditions, procedures);
-			
-			//Medication only in first bundle of admission
-			//Prescriptions		
-			for(Medication med : medications) {
-				String identifier = med.getCode().getCodingFirstRep().getCode();
-				if(!medicationInBundle.containsKey(identifier))
-				{
-					bundleC.addUUIDResourceWithConditionToBundle(med, "code=" + med.getCode().getCodingFirstRep().getCode());
-					medicationInBundle.put(identifier, med.getId());
-				}
+	private void runWorker() {
+		PatientWorker worker = new PatientWorker(source, fhir, caregivers, locations, hospital);
+		worker.setReferenceData(referenceData);
+		worker.setCrosswalk(crosswalk);
+		if(completePatients) {
+			worker.setStreamEvents(false);
+		}
+		worker.setNumberPrefix(shardPrefix());
+		List<MPatient> block = new ArrayList<MPatient>();
+		try {
+			if(jobTable != null) {
+				processJobs(worker);
+				return;
 			}
 			
-			//..and MedicationAdministrations (with correct Medication as Reference)
-			for(MedicationAdministration madm : prescriptions) {
-				String identifier = medications.get(prescriptions.indexOf(madm)).getCode().getCodingFirstRep().getCode();
-				String medId = medicationInBundle.get(identifier);
-				madm.setMedication(new Reference(medId));
+			int first;
+			//take next block of patients until all are done
+			while((first = takePatients(block)) > 0) {
+				if(csvPatients != null) {
+					//other workers take and load the next blocks meanwhile
+					csvPatients.loadAdmissions(block);
+				}
+				else if(!completePatients) {
+					if(batchSize > 0) {
+						dbAccess.loadAdmissions(block);
+					}
+					else {
+						for(MPatient mimicPat : block) {
+							dbAccess.loadAdmissions(mimicPat);
+						}
+					}
+				}
 				
-				bundleC.addUUIDResourceToBundle(madm);
-			}
-			
-			//Identification
-			admissionIndex++;
-			patNumber = numPat + "_" + admissionIndex;
-
-			//add observations to bundle
-			for(Observation o : obs) {
-				//check if bundle is full
-				checkBundleLimit(patNumber, fhirPat, admission, enc, conditions, procedures);
-
-				//get Caregiver for this event
-				int caregiverId = admission.getEvents().get(obs.indexOf(o)).getCareGiverId();
-				if(caregiverId != 0) {
-					String pFhirId = processCaregiver(caregiverId);
-
-					//Set caregiver-Reference -> Performer
-					o.addPerformer(new Reference(pFhirId));
+				int numPat = first;
+				for(MPatient mimicPat : block) {
+					worker.processPatient(mimicPat, numPat);
+					if(checkpoint != null) {
+						checkpoint.patientDone(numPat, mimicPat);
+					}
+					numPat++;
 				}
-				//Order important - these reference pat & encounter
-				bundleC.addResourceToBundle(o);
 			}
-
-
-			for(Observation o : obsLab) {
-				//check if bundle is full
-				checkBundleLimit(patNumber, fhirPat, admission, enc, conditions, procedures);
-
-				bundleC.addResourceToBundle(o);
+		}
+		catch(RuntimeException | Error e) {
+			LOG.log(Level.SEVERE, "Worker failed", e);
+			workerFailed(e);
+		}
+		finally {
+			if(jobTable != null) {
+				//jobs not finished (error) -> no more lease renewal
+				jobTable.release();
 			}
-
-			for(Observation o : obsNotes) {
-				//check if bundle is full
-				checkBundleLimit(patNumber, fhirPat, admission, enc, conditions, procedures);
-
-				//get Caregiver for this event
-				int caregiverId = admission.getNoteevents().get(obsNotes.indexOf(o)).getCaregiverId();
-				if(caregiverId != 0) {
-					String pFhirId = processCaregiver(caregiverId);
-
-					//Set caregiver-Reference -> Performer
-					o.addPerformer(new Reference(pFhirId));
-				}
-
-				bundleC.addResourceToBundle(o);
+			worker.close();
+			source.releaseConnection();
+		}
+	}
+	
+	private void processJobs(PatientWorker worker) {
+		TreeMap<Integer,Integer> jobs;
+		//claim next block of jobs (patient number -> subjectId) until all are done
+		while(!isWorkerFailed() && !(jobs = jobTable.claim(Math.max(batchSize, 1))).isEmpty()) {
+			HashMap<String,Integer> numbers = new HashMap<String,Integer>();
+			for(Map.Entry<Integer,Integer> job : jobs.entrySet()) {
+				numbers.put(job.getValue().toString(), job.getKey());
 			}
 			
-
-			//Push bundle to queue
-			JsonObject message = Json.createObjectBuilder()
-					.add("number", patNumber + "_" + bundleC.getInternalBundleNumber()) 
-					.add("bundle", fhir.getBundleAsString(bundleC.getTransactionBundle()))
-					.build();
-
-			sendr.send(message.toString());  
-
-			//reset bundle and memory lists
-			bundleC.resetBundle();
-			resetMemoryLists();
-			
-
+			List<MPatient> block = dbAccess.getPatientsBySubjectIds(new ArrayList<Integer>(jobs.values()));
+			for(MPatient mimicPat : block) {
+				worker.processPatient(mimicPat, numbers.get(mimicPat.getPatientSubjectId()));
+			}
+			jobTable.finish(jobs.keySet());
 		}
-    	bundleC.resetInternalBundleNumber();
 	}
-
-	private void checkBundleLimit(String numPat, Patient fhirPat, MAdmission admission, Encounter enc,
-			List<Condition> conditions, List<Procedure> procedures) {
-		
-		//if bundle exceeds 15000 resources -> start new bundle
-		if(bundleC.getNumberOfResorces() > 15000) {
-			//Push bundle to queue
-			JsonObject message = Json.createObjectBuilder()
-					.add("number", numPat + "_" + bundleC.getInternalBundleNumber()) 
-					.add("bundle", fhir.getBundleAsString(bundleC.getTransactionBundle()))
-			        .build();
-			
-			sendr.send(message.toString());  
-			
-			//reset bundle and memory lists
-			bundleC.resetBundle();
-			resetMemoryLists();
-			//reload basic bundle stuff 
-			createBasicBundle(fhirPat, admission, enc, conditions, procedures);
+	
+	/**
+	 * Take next block of patients from patient iterator (without admissions, if not sort merge)
+	 * @param block list to fill
+	 * @return number of first patient in block; 0 if no more patients
+	 */
+	private int takePatients(List<MPatient> block) {
+		int blockSize = Math.max(batchSize, 1);
+		block.clear();
+		if(patients == null || isWorkerFailed()) {
+			//failed worker: others stop, too
+			return 0;
+		}
+		synchronized(patients) {
+			int first = numberOfTakenPatients + 1;
+			if(csvPatients != null) {
+				//one csv block: its partitions are read only once
+				block.addAll(csvPatients.nextBlock());
+			}
+			else {
+				while(block.size() < blockSize && patients.hasNext()) {
+					block.add(patients.next());
+				}
+			}
+			numberOfTakenPatients += block.size();
+			return block.isEmpty() ? 0 : first;
 		}
 	}
-
-	private void createBasicBundle(Patient fhirPat, MAdmission admission, Encounter enc, List<Condition> conditions,
-			List<Procedure> procedures) {
-		
-		//Pat to bundle
-		bundleC.addUUIDResourceWithConditionToBundle(fhirPat, "identifier=" + fhirPat.getIdentifierFirstRep().getSystem() + "|" + fhirPat.getIdentifierFirstRep().getValue());
+	
+	/**
+	 * Send hospital, all locations, practitioners (with roles) and medications in leading bundles (before the receiver is started)
+	 * @return references of sent resources
+	 */
+	private ReferenceData sendReferenceData() {
+		ReferenceData refs = new ReferenceData();
+		BundleControl bundleC = new BundleControl();
 		
-		//Top of all: Hospital
-		bundleC.addUUIDResourceWithConditionToBundle(hospital, "identifier=" + hospital.getIdentifierFirstRep().getSystem() + "|" + hospital.getIdentifierFirstRep().getValue());
-					
-		enc.getDiagnosis().clear(); //clear all procedures & diagnoses
+		//Hospital first - all locations and roles reference it
+		String hospitalCondition = "identifier=" + hospital.getIdentifierFirstRep().getSystem() + "|" + hospital.getIdentifierFirstRep().getValue();
+		if(addReferenceResource(bundleC, refs, hospital, hospitalCondition)) {
+			sendReferenceBundle(bundleC, refs);
+		}
+		String hospitalRef = refs.getReference("Organization", hospitalCondition);
 		
-		//Diagnoses
-		for(Condition c : conditions) {
-			int rank = admission.getDiagnoses().get(conditions.indexOf(c)).getSeqNumber();
-			
-			//set Condition in enc.diagnosis
-			enc.addDiagnosis().setCondition(new Reference(c.getId())).setRank(rank);
-			
-			//add Condition to bundle
-			bundleC.addUUIDResourceWithConditionToBundle(c, "identifier=" + c.getIdentifierFirstRep().getSystem() + "|" + c.getIdentifierFirstRep().getValue());
+		for(MWard ward : locations.values()) {
+			Location loc = ward.getFhirLocation();
+			loc.setManagingOrganization(new Reference(hospitalRef));
+			addReferenceResource(bundleC, refs, loc, "identifier=" + loc.getIdentifierFirstRep().getSystem() + "|" + loc.getIdentifierFirstRep().getValue());
+			checkReferenceBundle(bundleC, refs);
 		}
 		
-		//Procedures		
-		for(Procedure p : procedures) {
-			int rank = admission.getProcedures().get(procedures.indexOf(p)).getSeqNumber();
-			
-			//set Procedure in enc.diagnosis
-			enc.addDiagnosis().setCondition(new Reference(p.getId())).setRank(rank);
+		for(MCaregiver cg : caregivers.values()) {
+			Practitioner p = cg.getFhirRepresentation();
+			String pCondition = "identifier=" + p.getIdentifierFirstRep().getSystem() + "|" + p.getIdentifierFirstRep().getValue();
+			boolean pAdded = addReferenceResource(bundleC, refs, p, pCondition);
 			
-			//add Procedure to bundle
-			bundleC.addUUIDResourceWithConditionToBundle(p, "identifier=" + p.getIdentifierFirstRep().getSystem() + "|" + p.getIdentifierFirstRep().getValue());
+			PractitionerRole role = cg.getFhirRepresentationRole();
+			if(role != null) {
+				//same bundle as practitioner
+				role.setPractitioner(new Reference(pAdded ? p.getId() : refs.getReference("Practitioner", pCondition)));
+				role.setOrganization(new Reference(hospitalRef));
+				addReferenceResource(bundleC, refs, role, "identifier=" + role.getIdentifierFirstRep().getSystem() + "|" + role.getIdentifierFirstRep().getValue());
+			}
+			checkReferenceBundle(bundleC, refs);
 		}
 		
-		//create transfer chain
-		
-		enc.getLocation().clear(); //clear all locations -> to be newly added
-		
-		for(MTransfer t : admission.getTransfers()) {
-			Location locWard = locations.get(t.getCurrWard()).getFhirLocation();
-			String identifier = locWard.getIdentifierFirstRep().getValue();
-			String id;
-			if(!locationsInBundle.containsKey(identifier)) {
-				//add to memory list:
-				locationsInBundle.put(identifier, locWard.getId());
-				id =  locWard.getId();
-				//Location: Set Hospital als TOp-Orga
-				locWard.setManagingOrganization(new Reference(hospital.getId()));
-				
-				bundleC.addUUIDResourceWithConditionToBundle(locWard, "identifier=" + locWard.getIdentifierFirstRep().getSystem() + "|" + identifier);
-			}else {
-				id = locationsInBundle.get(identifier);
+		//Medications: one per code (like in patient bundles)
+		HashSet<String> codes = new HashSet<String>();
+		for(MPrescription drug : source.getMedications()) {
+			Medication med = drug.getFhirMedication();
+			String code = med.getCode().getCodingFirstRep().getCode();
+			if(codes.add(code)) {
+				addReferenceResource(bundleC, refs, med, "code=" + code);
+				checkReferenceBundle(bundleC, refs);
 			}
-
-			//Ward as Location
-			enc.addLocation().setLocation(new Reference(id)).setPeriod(new Period().setStart(t.getIntime()).setEnd(t.getOuttime()));
 		}
 		
-		//add Encounter to bundle
-		bundleC.addUUIDResourceWithConditionToBundle(enc,"identifier=" + enc.getIdentifierFirstRep().getSystem() + "|" + enc.getIdentifierFirstRep().getValue());
+		if(bundleC.getNumberOfResorces() > 0) {
+			sendReferenceBundle(bundleC, refs);
+		}
+		return refs;
 	}
-
-	private String processCaregiver(int caregiverId) {
-		MCaregiver cgHere = caregivers.get(caregiverId);
-		//Create FHIR-Resources for Practitioner und -Role
-		Practitioner pFhir = cgHere.getFhirRepresentation();
-		String identifier = pFhir.getIdentifierFirstRep().getValue();
-		String id;
-		if(!caregiversInBundle.containsKey(identifier)) {
-			//add to memory list
-			caregiversInBundle.put(identifier, pFhir.getId());
-			id = pFhir.getId();
-			bundleC.addUUIDResourceWithConditionToBundle(pFhir, "identifier=" + pFhir.getIdentifierFirstRep().getSystem() + "|" + identifier);
-			
-			PractitionerRole roleFhir = cgHere.getFhirRepresentationRole();
-			if(roleFhir != null) {
-				roleFhir.setPractitioner(new Reference(pFhir.getId()));
-				roleFhir.setOrganization(new Reference(hospital.getId()));
-				bundleC.addUUIDResourceWithConditionToBundle(roleFhir, "identifier=" + roleFhir.getIdentifierFirstRep().getSystem() + "|" + roleFhir.getIdentifierFirstRep().getValue());
-			}
+	
+	private boolean addReferenceResource(BundleControl bundleC, ReferenceData refs, Resource r, String condition) {
+		//already on server (crosswalk of earlier run)? -> not sent again
+		String serverId = crosswalk != null ? crosswalk.getServerId(r.fhirType(), condition) : null;
+		if(serverId != null) {
+			refs.put(r.fhirType(), condition, serverId);
+			return false;
 		}
-		else {
-			id = caregiversInBundle.get(identifier);
+		bundleC.addUUIDResourceWithConditionToBundle(r, condition);
+		return true;
+	}
+	
+	private void checkReferenceBundle(BundleControl bundleC, ReferenceData refs) {
+		//same limit as patient bundles
+		if(bundleC.getNumberOfResorces() > 15000) {
+			sendReferenceBundle(bundleC, refs);
 		}
-		return id;
+	}
+	
+	private void sendReferenceBundle(BundleControl bundleC, ReferenceData refs) {
+		Bundle bundle = bundleC.getTransactionBundle();
+		String number = shardPrefix() + "ref_" + bundleC.getInternalBundleNumber();
+		Bundle response = null;
+		
+		//directly, not via queue: ids are needed before the patients are converted
+		switch(outputMode) {
+			case PRINT_CONSOLE:
+				fhir.printBundleAsXml(bundle);
+				break;
+			case PRINT_FILE:
+				fhir.printBundleAsXmlToFile(number, bundle);
+				break;
+			case PRINT_BOTH:
+				fhir.printBundleAsXml(bundle);
+				fhir.printBundleAsXmlToFile(number, bundle);
+				break;
+			case PUSH_SERVER:
+				response = fhir.bundleToServer(bundle);
+				break;
+		}
+		refs.register(bundle, response);
+		bundleC.resetBundle();
+	}
+	
+	private String shardPrefix() {
+		//bundle numbers (and files) unique over all shards
+		return config.isSharded() ? config.getShardIndex() + "-" : "";
 	}
 	
 	private Organization createTopHospital() {
@@ -402,7 +599,7 @@ public class Mimic2Fhir {
 		hospital.setName("IMI-Mimic Hospital");
 		
 		
-		hospital.setId(IdDt.newRandomUuid());
+		hospital.setId(ResourceIds.newId("http://www.imi-mimic.de", "hospital"));
 		return hospital;
 	}
 }
@@ -0,0 +1,71 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.hl7.fhir.dstu3.model.ResourceType;
+
+/**
+ * Mimic tables of an admission that can be left out (Config.setTableEnabled) and the fhir resource types created from each table. 
+ * A table is only read if the table and all its resource types (Config.setResourceTypeEnabled) are enabled
+ * -DIAGNOSES_ICD: Condition
+ * -PROCEDURES_ICD: Procedure
+ * -CHARTEVENTS, LABEVENTS, NOTEEVENTS: Observation
+ * -PRESCRIPTIONS: MedicationAdministration, Medication (referenced by the MedicationAdministration -> one without the other is not created)
+ * -TRANSFERS: Location (of the Encounter)
+ * @author Stefanie Ververs
+ *
+ */
+public enum MimicTable {
+	DIAGNOSES_ICD(ResourceType.Condition),
+	PROCEDURES_ICD(ResourceType.Procedure),
+	CHARTEVENTS(ResourceType.Observation),
+	LABEVENTS(ResourceType.Observation),
+	NOTEEVENTS(ResourceType.Observation),
+	PRESCRIPTIONS(ResourceType.MedicationAdministration, ResourceType.Medication),
+	TRANSFERS(ResourceType.Location);
+	
+	private Set<ResourceType> resourceTypes;
+	
+	private MimicTable(ResourceType first, ResourceType... others) {
+		this.resourceTypes = Collections.unmodifiableSet(EnumSet.of(first, others));
+	}
+	
+	/**
+	 * Fhir resource types created from this table
+	 * @return resource types
+	 */
+	public Set<ResourceType> getResourceTypes() {
+		return resourceTypes;
+	}
+	
+	/**
+	 * Is a resource type created from any table? (only these types can be disabled)
+	 * @param resourceType resource type
+	 * @return true, if created from a table
+	 */
+	public static boolean isTableResourceType(ResourceType resourceType) {
+		for(MimicTable table : values()) {
+			if(table.resourceTypes.contains(resourceType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
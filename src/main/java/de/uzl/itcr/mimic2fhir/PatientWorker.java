@@ -0,0 +1,488 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.hl7.fhir.dstu3.model.Condition;
+import org.hl7.fhir.dstu3.model.Encounter;
+import org.hl7.fhir.dstu3.model.Location;
+import org.hl7.fhir.dstu3.model.Medication;
+import org.hl7.fhir.dstu3.model.MedicationAdministration;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Period;
+import org.hl7.fhir.dstu3.model.Practitioner;
+import org.hl7.fhir.dstu3.model.PractitionerRole;
+import org.hl7.fhir.dstu3.model.Procedure;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+
+import de.uzl.itcr.mimic2fhir.model.MAdmission;
+import de.uzl.itcr.mimic2fhir.model.MCaregiver;
+import de.uzl.itcr.mimic2fhir.model.MCharteventBlock;
+import de.uzl.itcr.mimic2fhir.model.MDiagnose;
+import de.uzl.itcr.mimic2fhir.model.MLabeventBlock;
+import de.uzl.itcr.mimic2fhir.model.MNoteevent;
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+import de.uzl.itcr.mimic2fhir.model.MPrescription;
+import de.uzl.itcr.mimic2fhir.model.MProcedure;
+import de.uzl.itcr.mimic2fhir.model.MTransfer;
+import de.uzl.itcr.mimic2fhir.model.MWard;
+import de.uzl.itcr.mimic2fhir.queue.Sender;
+import de.uzl.itcr.mimic2fhir.work.BundleControl;
+import de.uzl.itcr.mimic2fhir.work.Crosswalk;
+import de.uzl.itcr.mimic2fhir.work.EventStreamSource;
+import de.uzl.itcr.mimic2fhir.work.MimicSource;
+import de.uzl.itcr.mimic2fhir.work.ReferenceData;
+import de.uzl.itcr.mimic2fhir.work.FHIRComm;
+
+/**
+ * Converts patients to bundles and sends them to the queue.
+ * Each worker has its own bundle, memory lists and queue channel, so several workers can process (different) patients in parallel
+ * @author Stefanie Ververs
+ *
+ */
+public class PatientWorker {
+	//null, if the source can't stream events (csv)
+	private EventStreamSource eventSource;
+	private FHIRComm fhir;
+	private HashMap<Integer,MCaregiver> caregivers;
+	private HashMap<Integer,MWard> locations;
+	
+	private HashMap<String,String> locationsInBundle;
+	private HashMap<String,String> caregiversInBundle;
+	private HashMap<String,String> medicationInBundle;
+	
+	private Organization hospital;
+	private ReferenceData referenceData;
+	private Crosswalk crosswalk;
+	private BundleControl bundleC;
+	
+	//null, if bundle messages aren't sent to the queue
+	private Sender sendr;
+	private Consumer<String> bundleMessages;
+	
+	private boolean streamEvents;
+	private String numberPrefix = "";
+	
+	/**
+	 * Create new worker; caregivers, locations and hospital are shared (read only) between all workers
+	 * @param dbAccess data source (for streamed events, if it is an EventStreamSource)
+	 * @param fhir Fhir-Communication
+	 * @param caregivers dictionary with all caregivers
+	 * @param locations dictionary with all wards
+	 * @param hospital top organization
+	 */
+	public PatientWorker(MimicSource dbAccess, FHIRComm fhir, HashMap<Integer,MCaregiver> caregivers, HashMap<Integer,MWard> locations, Organization hospital) {
+		this(dbAccess, fhir, caregivers, locations, hospital, new Sender());
+	}
+	
+	private PatientWorker(MimicSource dbAccess, FHIRComm fhir, HashMap<Integer,MCaregiver> caregivers, HashMap<Integer,MWard> locations, Organization hospital, Sender sendr) {
+		this(dbAccess, fhir, caregivers, locations, hospital, sendr::send);
+		this.sendr = sendr;
+	}
+	
+	/**
+	 * Create new worker handing the bundle messages to a consumer instead of the queue (e.g. for ConversionBenchmark)
+	 * @param dbAccess data source (for streamed events, if it is an EventStreamSource)
+	 * @param fhir Fhir-Communication
+	 * @param caregivers dictionary with all caregivers
+	 * @param locations dictionary with all wards
+	 * @param hospital top organization
+	 * @param bundleMessages consumer of the bundle messages
+	 */
+	PatientWorker(MimicSource dbAccess, FHIRComm fhir, HashMap<Integer,MCaregiver> caregivers, HashMap<Integer,MWard> locations, Organization hospital, Consumer<String> bundleMessages) {
+		this.eventSource = dbAccess instanceof EventStreamSource ? (EventStreamSource)dbAccess : null;
+		this.fhir = fhir;
+		this.caregivers = caregivers;
+		this.locations = locations;
+		this.hospital = hospital;
+		
+    	//initialize memoryLists of locations and caregivers and medication (-> conditional creates, each resource only once in bundle)
+		locationsInBundle = new HashMap<String,String>();
+		caregiversInBundle = new HashMap<String,String>();
+		medicationInBundle = new HashMap<String,String>();
+		
+		bundleC = new BundleControl();
+		
+		//bundle messages to queue
+		this.bundleMessages = bundleMessages;
+		
+		streamEvents = eventSource != null && eventSource.isStreamingEvents();
+	}
+	
+	/**
+	 * Set if chartevents and labevents are streamed from db while creating bundles (default: as configured in ConnectDB),
+	 * false if they are already loaded with the admission. Only sources implementing EventStreamSource can stream
+	 * @param streamEvents stream events?
+	 */
+	public void setStreamEvents(boolean streamEvents) {
+		if(streamEvents && eventSource == null) {
+			throw new IllegalStateException("Source can't stream events");
+		}
+		this.streamEvents = streamEvents;
+	}
+	
+	/**
+	 * Set prefix for all bundle numbers (e.g. shard index), so numbers of different applications don't collide
+	 * @param numberPrefix prefix
+	 */
+	public void setNumberPrefix(String numberPrefix) {
+		this.numberPrefix = numberPrefix;
+	}
+	
+	/**
+	 * Set reference data already sent in leading bundles (hospital, locations, practitioners, medications): 
+	 * patient bundles reference it instead of creating it again; null if not sent (default)
+	 * @param referenceData references of sent reference data
+	 */
+	public void setReferenceData(ReferenceData referenceData) {
+		this.referenceData = referenceData;
+	}
+	
+	/**
+	 * Set crosswalk with server ids: resources already on the server are referenced directly and not added again; 
+	 * null if no crosswalk (default)
+	 * @param crosswalk crosswalk
+	 */
+	public void setCrosswalk(Crosswalk crosswalk) {
+		this.crosswalk = crosswalk;
+	}
+	
+	/**
+	 * Close connection to queue
+	 */
+	public void close() {
+		if(sendr != null) {
+			sendr.close();
+		}
+	}
+	
+	private String getReference(String resourceType, String condition) {
+		String reference = referenceData != null ? referenceData.getReference(resourceType, condition) : null;
+		if(reference == null && crosswalk != null) {
+			reference = crosswalk.getServerId(resourceType, condition);
+		}
+		return reference;
+	}
+	
+	private void useServerId(Resource r, String system, String value) {
+		//already on server -> server id instead of temporary id (all references to it are direct references)
+		String serverId = crosswalk != null ? crosswalk.getServerId(r.fhirType(), "identifier=" + system + "|" + value) : null;
+		if(serverId != null) {
+			r.setId(serverId);
+		}
+	}
+	
+	private void addWithCondition(Resource r, String condition) {
+		//resources with server id are already on the server
+		if(r.getIdElement().isUrn()) {
+			bundleC.addUUIDResourceWithConditionToBundle(r, condition);
+		}
+	}
+	
+	private void resetMemoryLists() {
+		caregiversInBundle.clear();
+		locationsInBundle.clear();
+		medicationInBundle.clear();
+	}
+	
+	/**
+	 * Convert one patient with all admissions and send the bundles to the queue
+	 * @param mimicPat patient to convert
+	 * @param numPat number of patient (used for bundle numbers)
+	 */
+	public void processPatient(MPatient mimicPat, int numPat) {
+		//Fill FHIR-Structure
+		Patient fhirPat = mimicPat.createFhirFromMimic();	
+		useServerId(fhirPat, fhirPat.getIdentifierFirstRep().getSystem(), fhirPat.getIdentifierFirstRep().getValue());
+		String patNumber;
+		int admissionIndex = 0;
+
+		try {
+			//All admissions of one patient
+			for(MAdmission admission : mimicPat.getAdmissions()) {
+
+				//First: Load/create fhir resources
+				Encounter enc = admission.createFhirEncounterFromMimic(fhirPat.getId());
+				useServerId(enc, enc.getIdentifierFirstRep().getSystem(), enc.getIdentifierFirstRep().getValue());
+
+				//create Conditions and Procedures per Admission, each with its rank
+				List<RankedDiagnosis> diagnoses = new ArrayList<RankedDiagnosis>();
+				for(MDiagnose d : admission.getDiagnoses()) {
+					Condition c = d.getFhirCondition(fhirPat.getId(), admission.getAdmissionId());
+					useServerId(c, c.getIdentifierFirstRep().getSystem(), c.getIdentifierFirstRep().getValue());
+					diagnoses.add(new RankedDiagnosis(c, d.getSeqNumber()));
+				}
+				for(MProcedure p : admission.getProcedures()) {
+					Procedure fhirProc = p.getFhirProcedure(fhirPat.getId(), admission.getAdmissionId());
+					useServerId(fhirProc, fhirProc.getIdentifierFirstRep().getSystem(), fhirProc.getIdentifierFirstRep().getValue());
+					diagnoses.add(new RankedDiagnosis(fhirProc, p.getSeqNumber()));
+				}
+
+				//create bundle without observations and medication:
+				createBasicBundle(fhirPat, admission, enc, diagnoses);
+			
+				//Medication only in first bundle of admission, each MedicationAdministration references the Medication of its prescription
+				int medIndex = 0;
+				for(MPrescription prescription : admission.getPrescriptions()) {
+					String medId = processMedication(prescription.getFhirMedication());
+					
+					MedicationAdministration madm = prescription.getFhirMedAdministration(fhirPat.getId(), enc.getId(), medIndex++);
+					madm.setMedication(new Reference(medId));
+				
+					bundleC.addUUIDResourceToBundle(madm);
+				}
+			
+				//Identification
+				admissionIndex++;
+				patNumber = numberPrefix + numPat + "_" + admissionIndex;
+
+				//add observations to bundle
+				if(streamEvents) {
+					//events are read from db while the bundles are filled
+					final String bundlePatNumber = patNumber;
+					eventSource.streamChartEvents(admission, event -> 
+						addChartObservation(event.getFhirObservation(fhirPat.getId(), enc.getId()), event.getCareGiverId(), 
+								bundlePatNumber, fhirPat, admission, enc, diagnoses));
+				
+					eventSource.streamLabEvents(admission, mimicPat.getPatientSubjectId(), event -> 
+						addLabObservation(event.getFhirObservation(fhirPat.getId(), enc.getId()), 
+								bundlePatNumber, fhirPat, admission, enc, diagnoses));
+				}
+				else {
+					//observations are created from the event columns only when they are added
+					MCharteventBlock events = admission.getEvents();
+					for(int i = 0; i < events.size(); i++) {
+						addChartObservation(events.getFhirObservation(i, fhirPat.getId(), enc.getId()), events.getCareGiverId(i), 
+								patNumber, fhirPat, admission, enc, diagnoses);
+					}
+	
+					MLabeventBlock labevents = admission.getLabEvents();
+					for(int i = 0; i < labevents.size(); i++) {
+						addLabObservation(labevents.getFhirObservation(i, fhirPat.getId(), enc.getId()), 
+								patNumber, fhirPat, admission, enc, diagnoses);
+					}
+				}
+
+				//Observations from Noteevents (with caregiver of the note)
+				for(MNoteevent note : admission.getNoteevents()) {
+					addChartObservation(note.getFhirObservation(fhirPat.getId(), enc.getId()), note.getCaregiverId(), 
+							patNumber, fhirPat, admission, enc, diagnoses);
+				}
+			
+
+				//Push bundle to queue
+				JsonObject message = Json.createObjectBuilder()
+						.add("number", patNumber + "_" + bundleC.getInternalBundleNumber()) 
+						.add("bundle", fhir.getBundleAsString(bundleC.getTransactionBundle()))
+						.build();
+
+				bundleMessages.accept(message.toString());  
+
+				//reset bundle and memory lists
+				bundleC.resetBundle();
+				resetMemoryLists();
+			
+				//events are converted -> free memory / scratch file
+				admission.releaseEvents();
+			}
+		}
+		finally {
+			//also if conversion failed: free memory and delete scratch files of all admissions
+			for(MAdmission admission : mimicPat.getAdmissions()) {
+				admission.releaseEvents();
+			}
+		}
+    	bundleC.resetInternalBundleNumber();
+	}
+
+	private void addChartObservation(Observation o, int caregiverId, String numPat, Patient fhirPat, MAdmission admission, Encounter enc,
+			List<RankedDiagnosis> diagnoses) {
+		//check if bundle is full
+		checkBundleLimit(numPat, fhirPat, admission, enc, diagnoses);
+
+		if(caregiverId != 0) {
+			String pFhirId = processCaregiver(caregiverId);
+
+			//Set caregiver-Reference -> Performer
+			o.addPerformer(new Reference(pFhirId));
+		}
+		//Order important - these reference pat & encounter
+		bundleC.addResourceToBundle(o);
+	}
+	
+	private void addLabObservation(Observation o, String numPat, Patient fhirPat, MAdmission admission, Encounter enc,
+			List<RankedDiagnosis> diagnoses) {
+		//check if bundle is full
+		checkBundleLimit(numPat, fhirPat, admission, enc, diagnoses);
+
+		bundleC.addResourceToBundle(o);
+	}
+
+	private void checkBundleLimit(String numPat, Patient fhirPat, MAdmission admission, Encounter enc,
+			List<RankedDiagnosis> diagnoses) {
+		
+		//if bundle exceeds 15000 resources -> start new bundle
+		if(bundleC.getNumberOfResorces() > 15000) {
+			//Push bundle to queue
+			JsonObject message = Json.createObjectBuilder()
+					.add("number", numPat + "_" + bundleC.getInternalBundleNumber()) 
+					.add("bundle", fhir.getBundleAsString(bundleC.getTransactionBundle()))
+			        .build();
+			
+			bundleMessages.accept(message.toString());  
+			
+			//reset bundle and memory lists
+			bundleC.resetBundle();
+			resetMemoryLists();
+			//reload basic bundle stuff 
+			createBasicBundle(fhirPat, admission, enc, diagnoses);
+		}
+	}
+
+	private void createBasicBundle(Patient fhirPat, MAdmission admission, Encounter enc, List<RankedDiagnosis> diagnoses) {
+		
+		//Pat to bundle
+		addWithCondition(fhirPat, "identifier=" + fhirPat.getIdentifierFirstRep().getSystem() + "|" + fhirPat.getIdentifierFirstRep().getValue());
+		
+		//Top of all: Hospital (only referenced by locations and roles -> not needed with reference data)
+		if(referenceData == null) {
+			addWithCondition(hospital, "identifier=" + hospital.getIdentifierFirstRep().getSystem() + "|" + hospital.getIdentifierFirstRep().getValue());
+		}
+					
+		enc.getDiagnosis().clear(); //clear all procedures & diagnoses
+		
+		//Conditions & Procedures
+		for(RankedDiagnosis d : diagnoses) {
+			//set Condition/Procedure with its rank in enc.diagnosis
+			enc.addDiagnosis().setCondition(new Reference(d.resource.getId())).setRank(d.rank);
+			
+			//add Condition/Procedure to bundle
+			addWithCondition(d.resource, "identifier=" + d.system + "|" + d.value);
+		}
+		
+		//create transfer chain
+		
+		enc.getLocation().clear(); //clear all locations -> to be newly added
+		
+		for(MTransfer t : admission.getTransfers()) {
+			Location locWard = locations.get(t.getCurrWard()).getFhirLocation();
+			String identifier = locWard.getIdentifierFirstRep().getValue();
+			String id;
+			if(!locationsInBundle.containsKey(identifier)) {
+				String condition = "identifier=" + locWard.getIdentifierFirstRep().getSystem() + "|" + identifier;
+				//sent with reference data?
+				id = getReference("Location", condition);
+				if(id == null) {
+					id =  locWard.getId();
+					//Location: Set Hospital als TOp-Orga
+					locWard.setManagingOrganization(new Reference(hospital.getId()));
+					
+					bundleC.addUUIDResourceWithConditionToBundle(locWard, condition);
+				}
+				//add to memory list:
+				locationsInBundle.put(identifier, id);
+			}else {
+				id = locationsInBundle.get(identifier);
+			}
+
+			//Ward as Location
+			enc.addLocation().setLocation(new Reference(id)).setPeriod(new Period().setStart(t.getIntime()).setEnd(t.getOuttime()));
+		}
+		
+		//add Encounter to bundle
+		addWithCondition(enc,"identifier=" + enc.getIdentifierFirstRep().getSystem() + "|" + enc.getIdentifierFirstRep().getValue());
+	}
+
+	private String processMedication(Medication med) {
+		String identifier = med.getCode().getCodingFirstRep().getCode();
+		String medId = medicationInBundle.get(identifier);
+		if(medId == null) {
+			//sent with reference data?
+			medId = getReference("Medication", "code=" + identifier);
+			if(medId == null) {
+				bundleC.addUUIDResourceWithConditionToBundle(med, "code=" + identifier);
+				medId = med.getId();
+			}
+			medicationInBundle.put(identifier, medId);
+		}
+		return medId;
+	}
+
+	private String processCaregiver(int caregiverId) {
+		MCaregiver cgHere = caregivers.get(caregiverId);
+		//Create FHIR-Resources for Practitioner und -Role
+		Practitioner pFhir = cgHere.getFhirRepresentation();
+		String identifier = pFhir.getIdentifierFirstRep().getValue();
+		String id;
+		if(!caregiversInBundle.containsKey(identifier)) {
+			String condition = "identifier=" + pFhir.getIdentifierFirstRep().getSystem() + "|" + identifier;
+			//sent with reference data?
+			id = getReference("Practitioner", condition);
+			if(id == null) {
+				id = pFhir.getId();
+				bundleC.addUUIDResourceWithConditionToBundle(pFhir, condition);
+				
+				PractitionerRole roleFhir = cgHere.getFhirRepresentationRole();
+				if(roleFhir != null) {
+					roleFhir.setPractitioner(new Reference(pFhir.getId()));
+					roleFhir.setOrganization(new Reference(hospital.getId()));
+					bundleC.addUUIDResourceWithConditionToBundle(roleFhir, "identifier=" + roleFhir.getIdentifierFirstRep().getSystem() + "|" + roleFhir.getIdentifierFirstRep().getValue());
+				}
+			}
+			//add to memory list
+			caregiversInBundle.put(identifier, id);
+		}
+		else {
+			id = caregiversInBundle.get(identifier);
+		}
+		return id;
+	}
+
+	/**
+	 * Condition or Procedure of an admission with its rank (seq_num) for the encounter diagnoses
+	 */
+	private static class RankedDiagnosis {
+		private final Resource resource;
+		private final String system;
+		private final String value;
+		private final int rank;
+		
+		private RankedDiagnosis(Condition condition, int rank) {
+			this(condition, condition.getIdentifierFirstRep().getSystem(), condition.getIdentifierFirstRep().getValue(), rank);
+		}
+		
+		private RankedDiagnosis(Procedure procedure, int rank) {
+			this(procedure, procedure.getIdentifierFirstRep().getSystem(), procedure.getIdentifierFirstRep().getValue(), rank);
+		}
+		
+		private RankedDiagnosis(Resource resource, String system, String value, int rank) {
+			this.resource = resource;
+			this.system = system;
+			this.value = value;
+			this.rank = rank;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir;
+
+/**
+ * Start-Mode: 
+ * -NEW: Start with first patient
+ * -RESUME: Continue after the last completed patient in the checkpoint file (Config.checkpointFile)
+ * -JOB_COORDINATOR: Create job table (one job per patient; existing jobs are continued) and work on jobs as JOB_WORKER
+ * -JOB_WORKER: Claim blocks of patients from the job table (any number of applications/hosts)
+ * @author Stefanie Ververs
+ *
+ */
+public enum StartMode {
+	NEW,
+	RESUME,
+	JOB_COORDINATOR,
+	JOB_WORKER
+}
@@ -21,18 +21,13 @@ import java.util.List;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
-import org.hl7.fhir.dstu3.model.Condition;
 import org.hl7.fhir.dstu3.model.Encounter;
 import org.hl7.fhir.dstu3.model.Encounter.EncounterHospitalizationComponent;
 import org.hl7.fhir.dstu3.model.Encounter.EncounterStatus;
-import org.hl7.fhir.dstu3.model.Medication;
-import org.hl7.fhir.dstu3.model.MedicationAdministration;
-import org.hl7.fhir.dstu3.model.Observation;
 import org.hl7.fhir.dstu3.model.Period;
-import org.hl7.fhir.dstu3.model.Procedure;
 import org.hl7.fhir.dstu3.model.Reference;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one row (and references) in mimiciii.admissions
@@ -44,8 +39,8 @@ public class MAdmission {
 	public MAdmission() {
 		diagnoses = new ArrayList<MDiagnose>();
 		procedures = new ArrayList<MProcedure>();
-		events = new ArrayList<MChartevent>();
-		labevents = new ArrayList<MLabevent>();
+		events = new MCharteventBlock();
+		labevents = new MLabeventBlock();
 		noteevents = new ArrayList<MNoteevent>();
 		prescriptions = new ArrayList<MPrescription>();
 		transfers = new ArrayList<MTransfer>();
@@ -62,8 +57,9 @@ public class MAdmission {
 	private String dischargeLocation;
 	private String admissionLocation;
 	
-	private List<MChartevent> events;
-	private List<MLabevent> labevents;
+	//events in columns (many rows per admission)
+	private MCharteventBlock events;
+	private MLabeventBlock labevents;
 	private List<MNoteevent> noteevents;
 	
 	private List<MDiagnose> diagnoses;
@@ -104,16 +100,24 @@ public class MAdmission {
 		diagnoses.add(diag);
 	}
 	
-	public List<MChartevent> getEvents() {
+	public MCharteventBlock getEvents() {
 		return events;
 	}
 	public void addEvent(MChartevent event) {
 		events.add(event);
 	}
 	
-	public List<MLabevent> getLabEvents() {
+	public MLabeventBlock getLabEvents() {
 		return labevents;
 	}
+	
+	/**
+	 * Give memory and scratch files of chart- and labevents free (after conversion)
+	 */
+	public void releaseEvents() {
+		events.release();
+		labevents.release();
+	}
 	public void addLabEvent(MLabevent event) {
 		labevents.add(event);
 	}
@@ -182,19 +186,6 @@ public class MAdmission {
 		this.dischargeTime = dischargeTime;
 	}
 	
-	/**
-	 * Create all FHIR-"Condition"s for each diagnose
-	 * @param patId Patient-FHIR-Resource-Id
-	 * @return List with all resources
-	 */
-	public List<Condition> createFhirConditionsFromMimic(String patId) {
-		
-		List<Condition> conditions = new ArrayList<Condition>();		
-			for(MDiagnose d : diagnoses) {
-				conditions.add(d.getFhirCondition(patId, getAdmissionId()));
-			}
-		return conditions;
-	}
 	
 	/**
 	 * Create the FHIR-"Encounter"-resource for the mimic admission
@@ -314,103 +305,8 @@ public class MAdmission {
 
 			// Give the encounter a temporary UUID so that other resources in
 			// the transaction can refer to it
-			enc.setId(IdDt.newRandomUuid());
+			enc.setId(ResourceIds.newId("http://www.imi-mimic.de/encs", getAdmissionId()));
 			
 			return enc;
 	}
-	
-	/**
-	 * Create all FHIR-"Observation"s for this encounter (Chartevents)
-	 * @param patId Patient-FHIR-Resource-Id
-	 * @param encId Encounter-FHIR-Resource-Id
-	 * @return List with all FHIR Observations
-	 */
-	public List<Observation> createFhirObservationsFromMimic(String patId, String encId){
-		List<Observation> obs = new ArrayList<Observation>();
-		
-		for(MChartevent event : this.events) {
-			obs.add(event.getFhirObservation(patId, encId));
-		}
-		
-		return obs;
-	}
-	
-	/**
-	 * Create all FHIR-"Observation"s for this encounter (Labevents)
-	 * @param patId Patient-FHIR-Resource-Id
-	 * @param encId Encounter-FHIR-Resource-Id
-	 * @return List with all FHIR Observations
-	 */
-	public List<Observation> createFhirLabObservationsFromMimic(String patId, String encId){
-		List<Observation> obs = new ArrayList<Observation>();
-		
-		for(MLabevent event : this.labevents) {
-			obs.add(event.getFhirObservation(patId, encId));
-		}
-		
-		return obs;
-	}
-	
-	
-	/**
-	 * Create all FHIR-"Observation"s for this encounter (Noteevents)
-	 * @param patId Patient-FHIR-Resource-Id
-	 * @param encId Encounter-FHIR-Resource-Id
-	 * @return List with all FHIR Observations
-	 */
-	public List<Observation> createFhirNoteObservationsFromMimic(String patId, String encId){
-		List<Observation> obs = new ArrayList<Observation>();
-		
-		for(MNoteevent event : this.noteevents) {
-			Observation observation = event.getFhirObservation(patId, encId);
-			
-			obs.add(observation);
-		}
-		
-		return obs;
-	}
-	
-	/**
-	 * Create all FHIR-"Procedure"s for each Procedure for this mimic admission
-	 * @param patId Patient-FHIR-Resource-Id
-	 * @return List with all FHIR-Procedures
-	 */
-	public List<Procedure> createFhirProceduresFromMimic(String patId) {
-		
-		List<Procedure> procedures = new ArrayList<Procedure>();		
-			for(MProcedure p : this.procedures) {			
-				procedures.add(p.getFhirProcedure(patId, getAdmissionId()));
-			}
-		return procedures;
-	}
-	
-	/**
-	 * Create all FHIR-"Medication"s for this encounter
-	 * @return List with all FHIR Medication
-	 */
-	public List<Medication> createFhirMedicationsFromMimic() {
-		
-		List<Medication> medications = new ArrayList<Medication>();		
-			for(MPrescription p : this.prescriptions) {			
-				medications.add(p.getFhirMedication());
-			}
-		return medications;
-	}
-
-	/**
-	 * Create all FHIR-"MedicationAdministration"s for this encounter
-	 * @param patId Patient-FHIR-Resource-Id
-	 * @param encId Encounter-FHIR-Resource-Id
-	 * @return List with all MedicationAdministration
-	 */
-	public List<MedicationAdministration> createFhirMedAdminsFromMimic(String patId, String encId) {
-	
-		List<MedicationAdministration> administrations = new ArrayList<MedicationAdministration>();	
-	
-		int index = 0;
-		for(MPrescription p : this.prescriptions) {			
-			administrations.add(p.getFhirMedAdministration(patId, encId, index++));
-		}
-		return administrations;
-	}
 }
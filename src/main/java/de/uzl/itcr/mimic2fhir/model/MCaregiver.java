@@ -20,7 +20,7 @@ import org.hl7.fhir.dstu3.model.Narrative.NarrativeStatus;
 import org.hl7.fhir.dstu3.model.Practitioner;
 import org.hl7.fhir.dstu3.model.PractitionerRole;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one row in mimiciii.caregivers
@@ -69,7 +69,7 @@ public class MCaregiver {
 		p.getText().setDivAsString("<div>Caregiver with Id " + caregiverId + "</div>");
 	
 		// temporary UUID
-		p.setId(IdDt.newRandomUuid());
+		p.setId(ResourceIds.newId("http://www.imi-mimic.de/practitioner", Integer.toString(caregiverId)));
 		
 		return p;
 	}
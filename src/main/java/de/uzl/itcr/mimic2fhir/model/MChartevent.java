@@ -25,6 +25,8 @@ import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
 
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
+
 /**
  * Represents one row in mimiciii.chartevents
  * @author Stefanie Ververs
@@ -37,6 +39,9 @@ public class MChartevent {
 	 //CareGiver
 	 private int careGiverId;
 	 
+	 //Item (d_items)
+	 private int itemId;
+	 
 	 //Type
 	 private String measurementType; 
 	 
@@ -74,6 +79,14 @@ public class MChartevent {
 		this.careGiverId = careGiverId;
 	}
 
+	public int getItemId() {
+		return itemId;
+	}
+
+	public void setItemId(int itemId) {
+		this.itemId = itemId;
+	}
+
 	public String getMeasurementType() {
 		return measurementType;
 	}
@@ -118,6 +131,9 @@ public class MChartevent {
 		
 		observation.setStatus(ObservationStatus.FINAL);
 		
+		//same item at the same time of the encounter -> same id in every run
+		observation.setId(ResourceIds.newId("http://www.imi-mimic.de/chartevents", eventKey(encId, this.itemId, this.recordDate)));
+		
 		//Expect all chartevents to be vital signs
 		observation.addCategory().addCoding().setSystem("http://hl7.org/fhir/observation-category").setCode("vital_signs").setDisplay("Vital Signs");		
 		
@@ -154,4 +170,15 @@ public class MChartevent {
 		}
 		return observation;
 	}
+	
+	/**
+	 * Key of an event for name based ids: encounter, item and charttime
+	 * @param encId Encounter-FHIR-Resource-Id
+	 * @param itemId item id
+	 * @param time charttime (might be null)
+	 * @return key
+	 */
+	static String eventKey(String encId, int itemId, Date time) {
+		return encId + "_" + itemId + "_" + (time != null ? time.getTime() : "");
+	}
 }
@@ -0,0 +1,149 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.Observation;
+
+/**
+ * All chartevents of one admission in columns (see MEventBlock) - the type is kept as item id, its label comes from d_items
+ * @author Stefanie Ververs
+ *
+ */
+public class MCharteventBlock extends MEventBlock {
+	//spilled row: base columns + caregiver, item, value, unit
+	private static final int ROW_BYTES = BASE_ROW_BYTES + 16;
+	
+	//labels of all items (d_items), set once by the data source
+	private static Map<Integer,String> itemLabels = Collections.emptyMap();
+	
+	private int[] caregiverIds = new int[0];
+	private int[] itemIds = new int[0];
+	//text columns: numbers in string pool
+	private int[] values = new int[0];
+	private int[] units = new int[0];
+	
+	/**
+	 * Set item dictionary for all chartevent blocks (has to be called before events are added)
+	 * @param labels label by item id (d_items)
+	 */
+	public static void setItemLabels(Map<Integer,String> labels) {
+		itemLabels = labels;
+	}
+	
+	/**
+	 * Label of an item
+	 * @param itemId item id
+	 * @return label; null if the item is not in the dictionary
+	 */
+	public static String getItemLabel(int itemId) {
+		return itemLabels.get(itemId);
+	}
+	
+	@Override
+	protected int rowBytes() {
+		return ROW_BYTES;
+	}
+	
+	@Override
+	protected void grow(int capacity) {
+		caregiverIds = Arrays.copyOf(caregiverIds, capacity);
+		itemIds = Arrays.copyOf(itemIds, capacity);
+		values = Arrays.copyOf(values, capacity);
+		units = Arrays.copyOf(units, capacity);
+	}
+	
+	@Override
+	protected void spillColumns(ByteBuffer buffer, int offset, int m) {
+		buffer.putInt(offset, caregiverIds[m]);
+		buffer.putInt(offset + 4, itemIds[m]);
+		buffer.putInt(offset + 8, values[m]);
+		buffer.putInt(offset + 12, units[m]);
+	}
+	
+	/**
+	 * Add event from the columns of a row (no event object is created)
+	 * @param recordDate charttime
+	 * @param careGiverId caregiver (0 if none)
+	 * @param itemId item (d_items)
+	 * @param value value
+	 * @param hasNumValue is there a numeric value?
+	 * @param numValue numeric value
+	 * @param unit unit
+	 */
+	public void add(Date recordDate, int careGiverId, int itemId, String value, boolean hasNumValue, double numValue, String unit) {
+		int m = newRow();
+		setTime(m, recordDate);
+		caregiverIds[m] = careGiverId;
+		itemIds[m] = itemId;
+		values[m] = pool(value);
+		units[m] = pool(unit);
+		setNumValue(m, hasNumValue, numValue);
+	}
+	
+	/**
+	 * Add event (the event object is not kept)
+	 * @param event chartevent
+	 */
+	public void add(MChartevent event) {
+		add(event.getRecordDate(), event.getCareGiverId(), event.getItemId(), event.getValue(), event.hasNumVal(), event.getNumValue(), event.getUnit());
+	}
+	
+	/**
+	 * Caregiver of an event
+	 * @param row index of event
+	 * @return caregiver id (0 if none)
+	 */
+	public int getCareGiverId(int row) {
+		return getInt(caregiverIds, row, BASE_ROW_BYTES);
+	}
+	
+	/**
+	 * Get event as object (created on each call)
+	 * @param row index of event
+	 * @return chartevent
+	 */
+	public MChartevent get(int row) {
+		MChartevent event = new MChartevent();
+		int itemId = getInt(itemIds, row, BASE_ROW_BYTES + 4);
+		event.setRecordDate(getTime(row));
+		event.setCareGiverId(getCareGiverId(row));
+		event.setItemId(itemId);
+		event.setMeasurementType(getItemLabel(itemId));
+		event.setValue(strings.get(getInt(values, row, BASE_ROW_BYTES + 8)));
+		event.setUnit(strings.get(getInt(units, row, BASE_ROW_BYTES + 12)));
+		if((getFlags(row) & FLAG_NUM_VALUE) != 0) {
+			event.setNumValue(getNumValue(row));
+		}
+		return event;
+	}
+	
+	/**
+	 * Create FHIR-"Observation"-resource for an event
+	 * @param row index of event
+	 * @param patId Patient-FHIR-Resource-Id
+	 * @param encId Encounter-FHIR-Resource-Id
+	 * @return FHIR-Observation
+	 */
+	public Observation getFhirObservation(int row, String patId, String encId) {
+		return get(row).getFhirObservation(patId, encId);
+	}
+}
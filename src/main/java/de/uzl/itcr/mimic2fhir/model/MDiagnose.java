@@ -19,7 +19,7 @@ import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Condition;
 import org.hl7.fhir.dstu3.model.Reference;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one diagnose in diagnoses_icd joined with d_icd_diagnoses
@@ -84,7 +84,7 @@ public class MDiagnose {
 		
 		// Give the condition a temporary UUID so that other resources in
 		// the transaction can refer to it
-		cond.setId(IdDt.newRandomUuid());
+		cond.setId(ResourceIds.newId("http://www.imi-mimic.de/diags", encId + "_" + this.seqNumber));
 		
 		return cond;
 	}
@@ -0,0 +1,269 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Columnar storage for the events of one admission: one primitive array per column instead of one object per row.
+ * Times are stored as epoch millis, text values in a string pool, flags in bitmaps. The string pool counts against the limits too.
+ * If the events of an admission (or of all admissions in memory) exceed the spill limits, the rows in memory are moved 
+ * to a memory-mapped scratch file with fixed size rows and read back from there - rows keep their order
+ * @author Stefanie Ververs
+ *
+ */
+public abstract class MEventBlock {
+	private static final int INITIAL_CAPACITY = 16;
+	private static final long NO_TIME = Long.MIN_VALUE;
+	
+	//spilled row: time, numeric value, flags - then the columns of the subclass
+	protected static final int BASE_ROW_BYTES = 20;
+	protected static final int FLAG_NUM_VALUE = 1;
+	
+	//spill limits for all blocks (0: no limit) and bytes of all columns and string pools in memory (allocated capacity, not only used rows)
+	private static long admissionLimit;
+	private static long globalLimit;
+	private static File spillDirectory;
+	private static final AtomicLong globalBytes = new AtomicLong();
+	
+	protected int size;
+	protected StringPool strings = new StringPool();
+	
+	//rows 0..spilledRows-1 in spill file, the following rows in memory
+	private int spilledRows;
+	private int memoryRows;
+	private int capacity;
+	private SpillFile spillFile;
+	
+	private long[] times = new long[0];
+	private double[] numValues = new double[0];
+	private long[] hasNumValue = new long[0];
+	
+	/**
+	 * Set spill limits for all event blocks
+	 * @param admissionBytes max. bytes of events of one admission in memory (0: no limit)
+	 * @param globalBytes max. bytes of events of all admissions in memory (0: no limit)
+	 * @param directory directory for scratch files (null: temp directory)
+	 */
+	public static void setSpillLimits(long admissionBytes, long globalBytes, String directory) {
+		admissionLimit = admissionBytes;
+		globalLimit = globalBytes;
+		spillDirectory = directory != null ? new File(directory) : null;
+	}
+	
+	/**
+	 * Number of events
+	 * @return number of events
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * No events?
+	 * @return true, if empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Give memory and scratch file free (block is empty afterwards)
+	 */
+	public void release() {
+		if(spillFile != null) {
+			//scratch file is deleted
+			spillFile.close();
+			spillFile = null;
+		}
+		size = spilledRows = memoryRows = 0;
+		resize(0);
+		globalBytes.addAndGet(-strings.bytes());
+		strings = new StringPool();
+	}
+	
+	/**
+	 * Bytes of one row (in memory about the same)
+	 * @return bytes
+	 */
+	protected abstract int rowBytes();
+	
+	/**
+	 * Grow (or shrink) the columns of the subclass to the new capacity
+	 * @param capacity new capacity
+	 */
+	protected abstract void grow(int capacity);
+	
+	/**
+	 * Write the columns of the subclass of a memory row to the spill file
+	 * @param buffer segment of spill file
+	 * @param offset position of the columns of the subclass
+	 * @param m memory row
+	 */
+	protected abstract void spillColumns(ByteBuffer buffer, int offset, int m);
+	
+	/**
+	 * Additional flags of a memory row (stored with FLAG_NUM_VALUE in the spill file)
+	 * @param m memory row
+	 * @return flags
+	 */
+	protected int extraFlags(int m) {
+		return 0;
+	}
+	
+	/**
+	 * Make room for one more row - if the columns are full, they grow by half, or, if this exceeds a limit, 
+	 * the rows in memory are spilled first (admission limit: columns are reused, global limit: columns shrink to free the heap)
+	 * @return memory index of new row
+	 * @throws UncheckedIOException if the rows can't be written to the scratch file
+	 */
+	protected int newRow() {
+		if(memoryRows == capacity) {
+			int newCapacity = Math.max(INITIAL_CAPACITY, capacity + (capacity >> 1));
+			long growBytes = (long)(newCapacity - capacity) * rowBytes();
+			//strings stay in memory (spilled rows keep their numbers) -> with the pool over the limit the columns don't grow any more
+			boolean overAdmission = admissionLimit > 0 && (long)newCapacity * rowBytes() + strings.bytes() > admissionLimit;
+			boolean overGlobal = globalLimit > 0 && globalBytes.get() + growBytes > globalLimit;
+			if(memoryRows > 0 && (overAdmission || overGlobal)) {
+				spill();
+				if(overGlobal) {
+					resize(INITIAL_CAPACITY);
+				}
+			}
+			else {
+				resize(newCapacity);
+			}
+		}
+		size++;
+		return memoryRows++;
+	}
+	
+	private void resize(int newCapacity) {
+		globalBytes.addAndGet((long)(newCapacity - capacity) * rowBytes());
+		capacity = newCapacity;
+		times = Arrays.copyOf(times, capacity);
+		numValues = Arrays.copyOf(numValues, capacity);
+		hasNumValue = Arrays.copyOf(hasNumValue, (capacity + 63) >> 6);
+		grow(capacity);
+	}
+	
+	/**
+	 * Number of a text value in the string pool (new strings are added to the global bytes)
+	 * @param value text value
+	 * @return number; -1 for null
+	 */
+	protected int pool(String value) {
+		long before = strings.bytes();
+		int id = strings.add(value);
+		globalBytes.addAndGet(strings.bytes() - before);
+		return id;
+	}
+	
+	private void spill() {
+		try {
+			if(spillFile == null) {
+				spillFile = new SpillFile(spillDirectory, rowBytes());
+			}
+			for(int m = 0; m < memoryRows; m++) {
+				int row = spilledRows + m;
+				ByteBuffer buffer = spillFile.segment(row);
+				int offset = spillFile.offset(row);
+				buffer.putLong(offset, times[m]);
+				buffer.putDouble(offset + 8, numValues[m]);
+				buffer.putInt(offset + 16, (getBit(hasNumValue, m) ? FLAG_NUM_VALUE : 0) | extraFlags(m));
+				spillColumns(buffer, offset + BASE_ROW_BYTES, m);
+			}
+		} catch (IOException e) {
+			//keeping the rows in memory would exceed the limits that protect the heap
+			throw new UncheckedIOException("Events can't be spilled to a scratch file", e);
+		}
+		spilledRows += memoryRows;
+		memoryRows = 0;
+	}
+	
+	/**
+	 * Read int column of a row (from memory or spill file)
+	 * @param column memory column
+	 * @param row row
+	 * @param offset position of column in spilled row
+	 * @return value
+	 */
+	protected int getInt(int[] column, int row, int offset) {
+		if(row >= spilledRows) {
+			return column[row - spilledRows];
+		}
+		return spilledBuffer(row).getInt(spillFile.offset(row) + offset);
+	}
+	
+	private ByteBuffer spilledBuffer(int row) {
+		try {
+			return spillFile.segment(row);
+		} catch (IOException e) {
+			//segments of spilled rows are already mapped
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	protected void setTime(int m, Date time) {
+		times[m] = time != null ? time.getTime() : NO_TIME;
+	}
+	
+	protected Date getTime(int row) {
+		long time = row >= spilledRows ? times[row - spilledRows] : spilledBuffer(row).getLong(spillFile.offset(row));
+		return time != NO_TIME ? new Date(time) : null;
+	}
+	
+	protected void setNumValue(int m, boolean hasValue, double value) {
+		numValues[m] = hasValue ? value : 0;
+		setBit(hasNumValue, m, hasValue);
+	}
+	
+	protected double getNumValue(int row) {
+		return row >= spilledRows ? numValues[row - spilledRows] : spilledBuffer(row).getDouble(spillFile.offset(row) + 8);
+	}
+	
+	/**
+	 * Flags of a row (FLAG_NUM_VALUE and extraFlags)
+	 * @param row row
+	 * @return flags
+	 */
+	protected int getFlags(int row) {
+		if(row >= spilledRows) {
+			int m = row - spilledRows;
+			return (getBit(hasNumValue, m) ? FLAG_NUM_VALUE : 0) | extraFlags(m);
+		}
+		return spilledBuffer(row).getInt(spillFile.offset(row) + 16);
+	}
+	
+	protected static void setBit(long[] bitmap, int m, boolean value) {
+		if(value) {
+			bitmap[m >> 6] |= 1L << m;
+		}
+		else {
+			bitmap[m >> 6] &= ~(1L << m);
+		}
+	}
+	
+	protected static boolean getBit(long[] bitmap, int m) {
+		return (bitmap[m >> 6] & (1L << m)) != 0;
+	}
+}
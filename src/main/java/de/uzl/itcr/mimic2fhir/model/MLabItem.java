@@ -0,0 +1,46 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.model;
+
+/**
+ * Represents one item of the lab dictionary (d_labitems)
+ * @author Stefanie Ververs
+ *
+ */
+public class MLabItem {
+	private String label;
+	private String fluid;
+	private String loinc;
+	
+	public String getLabel() {
+		return label;
+	}
+	public void setLabel(String label) {
+		this.label = label;
+	}
+	public String getFluid() {
+		return fluid;
+	}
+	public void setFluid(String fluid) {
+		this.fluid = fluid;
+	}
+	public String getLoinc() {
+		return loinc;
+	}
+	public void setLoinc(String loinc) {
+		this.loinc = loinc;
+	}
+}
@@ -25,6 +25,8 @@ import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
 
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
+
 /**
  * Represents one row in mimiciii.labevents
  * @author Stefanie Ververs
@@ -34,6 +36,9 @@ public class MLabevent {
 	//Rekord-Datum
 		 private Date acquisitionDate;
 		 
+		 //Item (d_labitems)
+		 private int itemId;
+		 
 		 //Type
 		 private String measurementType; 
 		 
@@ -93,6 +98,14 @@ public class MLabevent {
 			this.acquisitionDate = recordDate;
 		}
 
+		public int getItemId() {
+			return itemId;
+		}
+
+		public void setItemId(int itemId) {
+			this.itemId = itemId;
+		}
+
 		public String getMeasurementType() {
 			return measurementType;
 		}
@@ -137,6 +150,9 @@ public class MLabevent {
 			
 			observation.setStatus(ObservationStatus.FINAL);
 			
+			//same item at the same time of the encounter -> same id in every run
+			observation.setId(ResourceIds.newId("http://www.imi-mimic.de/labevents", MChartevent.eventKey(encId, this.itemId, this.acquisitionDate)));
+			
 			//all laboratory
 			observation.addCategory().addCoding().setSystem("http://hl7.org/fhir/observation-category").setCode("laboratory").setDisplay("Laboratory");		
 			
@@ -0,0 +1,151 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.Observation;
+
+/**
+ * All labevents of one admission in columns (see MEventBlock) - type, fluid and loinc are kept as item id, they come from d_labitems
+ * @author Stefanie Ververs
+ *
+ */
+public class MLabeventBlock extends MEventBlock {
+	//spilled row: base columns + item, value, unit
+	private static final int ROW_BYTES = BASE_ROW_BYTES + 12;
+	private static final int FLAG_ABNORMAL = 2;
+	
+	//all lab items (d_labitems), set once by the data source
+	private static Map<Integer,MLabItem> labItems = Collections.emptyMap();
+	
+	private long[] abnormal = new long[0];
+	private int[] itemIds = new int[0];
+	//text columns: numbers in string pool
+	private int[] values = new int[0];
+	private int[] units = new int[0];
+	
+	/**
+	 * Set item dictionary for all labevent blocks (has to be called before events are added)
+	 * @param items lab item by item id (d_labitems)
+	 */
+	public static void setLabItems(Map<Integer,MLabItem> items) {
+		labItems = items;
+	}
+	
+	/**
+	 * Lab item
+	 * @param itemId item id
+	 * @return lab item; null if the item is not in the dictionary
+	 */
+	public static MLabItem getLabItem(int itemId) {
+		return labItems.get(itemId);
+	}
+	
+	@Override
+	protected int rowBytes() {
+		return ROW_BYTES;
+	}
+	
+	@Override
+	protected void grow(int capacity) {
+		abnormal = Arrays.copyOf(abnormal, (capacity + 63) >> 6);
+		itemIds = Arrays.copyOf(itemIds, capacity);
+		values = Arrays.copyOf(values, capacity);
+		units = Arrays.copyOf(units, capacity);
+	}
+	
+	@Override
+	protected void spillColumns(ByteBuffer buffer, int offset, int m) {
+		buffer.putInt(offset, itemIds[m]);
+		buffer.putInt(offset + 4, values[m]);
+		buffer.putInt(offset + 8, units[m]);
+	}
+	
+	@Override
+	protected int extraFlags(int m) {
+		return getBit(abnormal, m) ? FLAG_ABNORMAL : 0;
+	}
+	
+	/**
+	 * Add event from the columns of a row (no event object is created)
+	 * @param acquisitionDate charttime
+	 * @param itemId item (d_labitems)
+	 * @param value value
+	 * @param hasNumValue is there a numeric value?
+	 * @param numValue numeric value
+	 * @param unit unit
+	 * @param isAbnormal flag "abnormal"
+	 */
+	public void add(Date acquisitionDate, int itemId, String value, boolean hasNumValue, double numValue, String unit, boolean isAbnormal) {
+		int m = newRow();
+		setTime(m, acquisitionDate);
+		setBit(abnormal, m, isAbnormal);
+		itemIds[m] = itemId;
+		values[m] = pool(value);
+		units[m] = pool(unit);
+		setNumValue(m, hasNumValue, numValue);
+	}
+	
+	/**
+	 * Add event (the event object is not kept)
+	 * @param event labevent
+	 */
+	public void add(MLabevent event) {
+		add(event.getAcquisitionDate(), event.getItemId(), event.getValue(), event.hasNumVal(), event.getNumValue(), event.getUnit(), event.isAbnormal());
+	}
+	
+	/**
+	 * Get event as object (created on each call)
+	 * @param row index of event
+	 * @return labevent
+	 */
+	public MLabevent get(int row) {
+		MLabevent event = new MLabevent();
+		int flags = getFlags(row);
+		int itemId = getInt(itemIds, row, BASE_ROW_BYTES);
+		event.setAcquisitionDate(getTime(row));
+		event.setAbnormal((flags & FLAG_ABNORMAL) != 0);
+		event.setItemId(itemId);
+		MLabItem item = getLabItem(itemId);
+		if(item != null) {
+			event.setMeasurementType(item.getLabel());
+			event.setFluid(item.getFluid());
+			event.setLoinc(item.getLoinc());
+		}
+		event.setValue(strings.get(getInt(values, row, BASE_ROW_BYTES + 4)));
+		event.setUnit(strings.get(getInt(units, row, BASE_ROW_BYTES + 8)));
+		if((flags & FLAG_NUM_VALUE) != 0) {
+			event.setNumValue(getNumValue(row));
+		}
+		return event;
+	}
+	
+	/**
+	 * Create FHIR-"Observation"-resource for an event
+	 * @param row index of event
+	 * @param patId Patient-FHIR-Resource-Id
+	 * @param encId Encounter-FHIR-Resource-Id
+	 * @return FHIR-Observation
+	 */
+	public Observation getFhirObservation(int row, String patId, String encId) {
+		return get(row).getFhirObservation(patId, encId);
+	}
+}
@@ -24,6 +24,7 @@ import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
 
 import de.uzl.itcr.mimic2fhir.tools.Helper;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one row in mimiciii.noteevents
@@ -31,6 +32,7 @@ import de.uzl.itcr.mimic2fhir.tools.Helper;
  *
  */
 public class MNoteevent {
+	private int rowId;
 	private Date chartdate;
 	private String category;
 	private String description;
@@ -38,6 +40,12 @@ public class MNoteevent {
 	private String text;
 	private boolean hasError;
 	
+	public int getRowId() {
+		return rowId;
+	}
+	public void setRowId(int rowId) {
+		this.rowId = rowId;
+	}
 	public boolean getHasError() {
 		return hasError;
 	}
@@ -83,6 +91,7 @@ public class MNoteevent {
 	 */
 	public Observation getFhirObservation(String patId, String encId) {
 		Observation observation = new Observation();
+		observation.setId(ResourceIds.newId("http://www.imi-mimic.de/notes", Integer.toString(this.rowId)));
 		
 		if(this.getHasError()) {
 			observation.setStatus(ObservationStatus.ENTEREDINERROR);
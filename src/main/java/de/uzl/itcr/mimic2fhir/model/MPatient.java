@@ -25,7 +25,7 @@ import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
 import org.hl7.fhir.dstu3.model.HumanName.NameUse;
 import org.hl7.fhir.dstu3.model.Patient;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * FHIR-Patient with data from mimic3, one row in mimiciii.patients
@@ -48,6 +48,15 @@ public class MPatient {
 		return admissions;
 	}
 
+	private int rowId;
+	public int getRowId() {
+		return rowId;
+	}
+
+	public void setRowId(int rowId) {
+		this.rowId = rowId;
+	}
+
 	private String patientSubjectId;
 	public String getPatientSubjectId() {
 		return patientSubjectId;
@@ -368,7 +377,7 @@ public class MPatient {
 		
 		// Give the patient a temporary UUID so that other resources in
 		// the transaction can refer to it
-		pMimic.setId(IdDt.newRandomUuid());
+		pMimic.setId(ResourceIds.newId("http://www.imi-mimic.de/patients", patientSubjectId));
 		
 		return pMimic;
 	}
@@ -23,8 +23,8 @@ import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Medication;
 import org.hl7.fhir.dstu3.model.Medication.MedicationIngredientComponent;
 
-import ca.uhn.fhir.model.primitive.IdDt;
 import de.uzl.itcr.mimic2fhir.tools.RxNormConcept;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 import de.uzl.itcr.mimic2fhir.tools.RxNormLookup;
 
 import org.hl7.fhir.dstu3.model.MedicationAdministration;
@@ -40,6 +40,7 @@ import org.hl7.fhir.dstu3.model.SimpleQuantity;
  *
  */
 public class MPrescription {
+	private int rowId;
 	private Date start;
 	private Date end;
 	private String drugtype;
@@ -179,6 +180,32 @@ public class MPrescription {
 		this.route = route;
 	}
 	
+	public int getRowId() {
+		return rowId;
+	}
+
+	public void setRowId(int rowId) {
+		this.rowId = rowId;
+	}
+	
+	/**
+	 * Identity of the drug: NDC, else GSN, else formulary code, else name - 
+	 * the same drug gets the same Medication id in every admission and every run
+	 * @return drug key
+	 */
+	public String getDrugKey() {
+		if(this.ndc != null && this.ndc.compareTo("0") != 0) {
+			return this.ndc;
+		}
+		if(this.gsn != null) {
+			return this.gsn;
+		}
+		if(this.formularyDrugCd != null) {
+			return this.formularyDrugCd;
+		}
+		return this.drug + "(Text Only)";
+	}
+	
 	/**
 	 * Create FHIR-"Medication"-resource
 	 * @return FHIR-Medication
@@ -206,7 +233,10 @@ public class MPrescription {
 			rxNorm = new ArrayList<RxNormConcept>();
 			for(String gsnSingle : gsnSingles)
 			{
-				rxNorm.addAll(RxNormLookup.getInstance().getRxNormForGsn(gsnSingle.trim()));
+				List<RxNormConcept> gsnConcepts = RxNormLookup.getInstance().getRxNormForGsn(gsnSingle.trim());
+				if(gsnConcepts != null) {
+					rxNorm.addAll(gsnConcepts);
+				}
 			}
 		}
 		
@@ -241,7 +271,7 @@ public class MPrescription {
 			m.addIngredient(new MedicationIngredientComponent(ci));
 		}
 		
-		m.setId(IdDt.newRandomUuid());
+		m.setId(ResourceIds.newId("http://www.imi-mimic.de/medications", getDrugKey()));
 		
 		return m;
 	}
@@ -256,6 +286,8 @@ public class MPrescription {
 		MedicationAdministration ma = new MedicationAdministration();
 		
 		ma.addIdentifier().setSystem("http://www.imi-mimic.de/prescriptions").setValue(encId + "_" + seqNum);
+		//row of prescriptions -> same id in every run
+		ma.setId(ResourceIds.newId("http://www.imi-mimic.de/prescriptions", Integer.toString(this.rowId)));
 		
 		ma.setStatus(MedicationAdministrationStatus.COMPLETED);
 
@@ -20,7 +20,7 @@ import org.hl7.fhir.dstu3.model.Procedure;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Procedure.ProcedureStatus;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one row in mimiciii.procedures_icd joined with d_icd_procedures
@@ -86,7 +86,7 @@ public class MProcedure {
 		
 		// Give the procedure a temporary UUID so that other resources in
 		// the transaction can refer to it
-		proc.setId(IdDt.newRandomUuid());
+		proc.setId(ResourceIds.newId("http://www.imi-mimic.de/procs", encId + "_" + this.seqNumber));
 		
 		return proc;
 	}
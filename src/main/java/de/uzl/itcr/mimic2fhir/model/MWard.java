@@ -18,7 +18,7 @@ package de.uzl.itcr.mimic2fhir.model;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Location;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one ward as location (from transfers)
@@ -84,7 +84,7 @@ public class MWard {
 		}
 		loc.setType(cc);
 				
-		loc.setId(IdDt.newRandomUuid());
+		loc.setId(ResourceIds.newId("http://www.imi-mimic.de/wards", this.wardId + "_" + careUnit));
 		
 		return loc;
 	}
@@ -0,0 +1,101 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Memory-mapped scratch file with fixed size rows (spilled events of an admission).
+ * The file is mapped in segments as it grows, pages are written back and read in by the os - not on the java heap
+ * @author Stefanie Ververs
+ *
+ */
+class SpillFile {
+	private static final Logger LOG = Logger.getLogger(SpillFile.class.getName());
+	private static final int SEGMENT_BYTES = 32 * 1024 * 1024;
+	
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private List<MappedByteBuffer> segments;
+	private int rowBytes;
+	private int rowsPerSegment;
+	
+	/**
+	 * Create scratch file
+	 * @param directory directory for the file (null: temp directory)
+	 * @param rowBytes bytes per row
+	 * @throws IOException
+	 */
+	SpillFile(File directory, int rowBytes) throws IOException {
+		this.rowBytes = rowBytes;
+		this.rowsPerSegment = SEGMENT_BYTES / rowBytes;
+		this.segments = new ArrayList<MappedByteBuffer>();
+		this.file = File.createTempFile("mimic2fhir-events", ".spill", directory);
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+	}
+	
+	/**
+	 * Segment containing a row (mapped, if new)
+	 * @param row row number
+	 * @return buffer - use with offset(row)
+	 * @throws IOException
+	 */
+	MappedByteBuffer segment(int row) throws IOException {
+		int index = row / rowsPerSegment;
+		while(segments.size() <= index) {
+			long position = (long)segments.size() * rowsPerSegment * rowBytes;
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, (long)rowsPerSegment * rowBytes));
+		}
+		return segments.get(index);
+	}
+	
+	/**
+	 * Position of a row in its segment
+	 * @param row row number
+	 * @return byte offset
+	 */
+	int offset(int row) {
+		return (row % rowsPerSegment) * rowBytes;
+	}
+	
+	/**
+	 * Close and delete file (mapped segments are released by the garbage collector). 
+	 * Only if the file can't be deleted now (still mapped, e.g. windows), it is deleted on exit
+	 */
+	void close() {
+		segments.clear();
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			//rows are no longer needed, only the handle may be left open -> the file is deleted anyway
+			LOG.log(Level.WARNING, "Scratch file " + file + " can't be closed", e);
+		}
+		if(!file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+}
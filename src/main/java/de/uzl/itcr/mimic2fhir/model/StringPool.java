@@ -0,0 +1,77 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Dictionary encoding for the text values of an event block: every distinct string is stored once, rows only keep its number
+ * @author Stefanie Ververs
+ *
+ */
+public class StringPool {
+	//estimated heap bytes per distinct string without its chars: String and char[] headers, map entry, Integer, list slot
+	private static final int ENTRY_BYTES = 96;
+	
+	private HashMap<String,Integer> ids = new HashMap<String,Integer>();
+	private ArrayList<String> strings = new ArrayList<String>();
+	private long bytes;
+	
+	/**
+	 * Get number of string (added, if new)
+	 * @param value string
+	 * @return number; -1 for null
+	 */
+	public int add(String value) {
+		if(value == null) {
+			return -1;
+		}
+		Integer id = ids.get(value);
+		if(id == null) {
+			id = strings.size();
+			strings.add(value);
+			ids.put(value, id);
+			bytes += ENTRY_BYTES + 2L * value.length();
+		}
+		return id;
+	}
+	
+	/**
+	 * Get string by number
+	 * @param id number from add
+	 * @return string; null for -1
+	 */
+	public String get(int id) {
+		return id < 0 ? null : strings.get(id);
+	}
+	
+	/**
+	 * Number of distinct strings
+	 * @return number of strings
+	 */
+	public int size() {
+		return strings.size();
+	}
+	
+	/**
+	 * Estimated heap bytes of all strings, map and list
+	 * @return bytes
+	 */
+	public long bytes() {
+		return bytes;
+	}
+}
@@ -69,8 +69,12 @@ public class Sender {
 	 */
 	public void close() {
 		try {
-			this.channel.close();
-			this.connection.close();
+			if(this.channel != null) {
+				this.channel.close();
+			}
+			if(this.connection != null) {
+				this.connection.close();
+			}
 		} catch (IOException | TimeoutException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -15,6 +15,14 @@ limitations under the License.
 /***********************************************************************/
 package de.uzl.itcr.mimic2fhir.tools;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
 public class Helper {
 	
 	/**
@@ -31,4 +39,32 @@ public class Helper {
 		String newText = text.replaceAll(re, replacement);
 		return newText;
 	}
+	
+	/**
+	 * Read ids (e.g. subject_ids) from a text file: one id per line, first column if there are more (separated by , ; or whitespace).
+	 * Empty lines, comments (#) and lines without a number (header) are skipped
+	 * @param file path of file
+	 * @return ids in order of file
+	 * @throws IOException
+	 */
+	public static List<Integer> readIds(String file) throws IOException {
+		List<Integer> ids = new ArrayList<Integer>();
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String first = line.split("[,;\\s]+")[0].replace("\"", "");
+				try {
+					ids.add(Integer.valueOf(first));
+				}
+				catch(NumberFormatException e) {
+					//header
+				}
+			}
+		}
+		return ids;
+	}
 }
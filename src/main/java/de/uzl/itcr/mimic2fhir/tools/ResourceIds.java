@@ -0,0 +1,95 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.IdStrategy;
+
+/**
+ * Creates the ids of fhir resources - random or name based (UUID version 5, RFC 4122) 
+ * from identifier system and value, so a patient gets the same id in every run
+ * @author Stefanie Ververs
+ *
+ */
+public class ResourceIds {
+	
+	//RFC 4122 namespace for URLs
+	private static final UUID NAMESPACE_URL = UUID.fromString("6ba7b811-9dad-11d1-80b4-00c04fd430c8");
+	
+	//namespace of all mimic2fhir ids
+	private static final UUID NAMESPACE_MIMIC = nameUUID(NAMESPACE_URL, "http://www.imi-mimic.de");
+	
+	private static volatile IdStrategy strategy = IdStrategy.RANDOM;
+	
+	/**
+	 * Set the strategy for all following ids
+	 * @param idStrategy strategy (null: random)
+	 */
+	public static void setStrategy(IdStrategy idStrategy) {
+		strategy = idStrategy != null ? idStrategy : IdStrategy.RANDOM;
+	}
+	
+	/**
+	 * Current strategy
+	 * @return strategy
+	 */
+	public static IdStrategy getStrategy() {
+		return strategy;
+	}
+	
+	/**
+	 * New id for a resource with the mimic key (identifier system and value)
+	 * @param system identifier system, e.g. http://www.imi-mimic.de/patients
+	 * @param value identifier value, e.g. subject_id
+	 * @return urn:uuid-id
+	 */
+	public static IdDt newId(String system, String value) {
+		if(strategy == IdStrategy.RANDOM) {
+			return IdDt.newRandomUuid();
+		}
+		return new IdDt("urn:uuid:" + nameUUID(NAMESPACE_MIMIC, system + "|" + value));
+	}
+	
+	/**
+	 * UUID version 5: SHA-1 of namespace and name
+	 * @param namespace namespace
+	 * @param name name
+	 * @return name based UUID
+	 */
+	public static UUID nameUUID(UUID namespace, String name) {
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			//every java platform has SHA-1
+			throw new IllegalStateException(e);
+		}
+		sha1.update(ByteBuffer.allocate(16).putLong(namespace.getMostSignificantBits()).putLong(namespace.getLeastSignificantBits()).array());
+		byte[] hash = sha1.digest(name.getBytes(StandardCharsets.UTF_8));
+		
+		hash[6] = (byte) ((hash[6] & 0x0f) | 0x50); //version 5
+		hash[8] = (byte) ((hash[8] & 0x3f) | 0x80); //variant
+		
+		ByteBuffer bb = ByteBuffer.wrap(hash, 0, 16);
+		return new UUID(bb.getLong(), bb.getLong());
+	}
+}
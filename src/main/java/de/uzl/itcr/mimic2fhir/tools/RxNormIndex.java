@@ -0,0 +1,303 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Offline RxNorm lookup for NDC and GSN (GCN_SEQNO) from an index file built from the RxNorm release files (RRF).
+ * The index file is memory-mapped and searched binary, no network needed:
+ * header | keys (sorted: key, first concept in lists, number of concepts) | lists (concept numbers) | concepts (cui, name) | strings (UTF-8)
+ * @author Stefanie Ververs
+ *
+ */
+public class RxNormIndex {
+	private static final int MAGIC = 0x52584e49; //"RXNI"
+	private static final int VERSION = 1;
+	
+	//bytes
+	private static final int HEADER_SIZE = 32;
+	private static final int KEY_SIZE = 16;
+	private static final int CONCEPT_SIZE = 16;
+	
+	//NDC and GSN keys in one key table
+	private static final String NDC = "N";
+	private static final String GSN = "G";
+	
+	private MappedByteBuffer buffer;
+	private int keyCount;
+	private int keysStart;
+	private int listsStart;
+	private int conceptsStart;
+	private int stringsStart;
+	
+	private RxNormIndex(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		this.keyCount = buffer.getInt(8);
+		int listLength = buffer.getInt(12);
+		int conceptCount = buffer.getInt(16);
+		
+		keysStart = HEADER_SIZE;
+		listsStart = keysStart + keyCount * KEY_SIZE;
+		conceptsStart = listsStart + listLength * 4;
+		stringsStart = conceptsStart + conceptCount * CONCEPT_SIZE;
+	}
+	
+	/**
+	 * Open (map) an index file
+	 * @param indexFile path of index file (see build)
+	 * @return index
+	 * @throws IOException file missing or no RxNorm index
+	 */
+	public static RxNormIndex open(String indexFile) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(indexFile), StandardOpenOption.READ)) {
+			//mapping stays valid after channel is closed
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("No RxNorm index (version " + VERSION + "): " + indexFile);
+			}
+			return new RxNormIndex(buffer);
+		}
+	}
+	
+	/**
+	 * Get RxNormConcepts for a NDC
+	 * @param ndc National Drug Code (11 digits)
+	 * @return List of RxNorm-Concept (empty if none)
+	 */
+	public List<RxNormConcept> getRxNormForNdc(String ndc) {
+		return lookup(NDC + normalize(ndc, false));
+	}
+	
+	/**
+	 * Get RxNormConcepts for a GSN
+	 * @param gsn Generic Sequence Number
+	 * @return List of RxNorm-Concept (empty if none)
+	 */
+	public List<RxNormConcept> getRxNormForGsn(String gsn) {
+		return lookup(GSN + normalize(gsn, true));
+	}
+	
+	private List<RxNormConcept> lookup(String key) {
+		List<RxNormConcept> concepts = new ArrayList<RxNormConcept>();
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		
+		//binary search in sorted keys (absolute reads only -> thread safe)
+		int low = 0;
+		int high = keyCount - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int entry = keysStart + mid * KEY_SIZE;
+			int cmp = compare(buffer.getInt(entry), buffer.getInt(entry + 4), k);
+			if(cmp < 0) {
+				low = mid + 1;
+			}
+			else if(cmp > 0) {
+				high = mid - 1;
+			}
+			else {
+				int first = buffer.getInt(entry + 8);
+				int count = buffer.getInt(entry + 12);
+				for(int i = 0; i < count; i++) {
+					int concept = conceptsStart + buffer.getInt(listsStart + (first + i) * 4) * CONCEPT_SIZE;
+					RxNormConcept rc = new RxNormConcept();
+					rc.setCui(getString(buffer.getInt(concept), buffer.getInt(concept + 4)));
+					rc.setName(getString(buffer.getInt(concept + 8), buffer.getInt(concept + 12)));
+					concepts.add(rc);
+				}
+				break;
+			}
+		}
+		return concepts;
+	}
+	
+	private int compare(int offset, int length, byte[] key) {
+		int start = stringsStart + offset;
+		int n = Math.min(length, key.length);
+		for(int i = 0; i < n; i++) {
+			int diff = (buffer.get(start + i) & 0xff) - (key[i] & 0xff);
+			if(diff != 0) {
+				return diff;
+			}
+		}
+		return length - key.length;
+	}
+	
+	private String getString(int offset, int length) {
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		int start = stringsStart + offset;
+		for(int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static String normalize(String code, boolean stripZeros) {
+		String c = code.trim();
+		if(stripZeros) {
+			//GSN with or without leading zeros (mimic: 6 digits)
+			int i = 0;
+			while(i < c.length() - 1 && c.charAt(i) == '0') {
+				i++;
+			}
+			c = c.substring(i);
+		}
+		return c;
+	}
+	
+	/**
+	 * Build index file from RxNorm release files: 
+	 * NDCs (SAB RXNORM) and GCN_SEQNOs from RXNSAT.RRF, names (RxNorm Name) of their concepts from RXNCONSO.RRF
+	 * @param rrfDirectory directory with RXNSAT.RRF and RXNCONSO.RRF (e.g. rrf directory of RxNorm_full_*.zip)
+	 * @param indexFile path of index file to write
+	 * @throws IOException
+	 */
+	public static void build(String rrfDirectory, String indexFile) throws IOException {
+		//key -> cuis, sorted by key
+		TreeMap<String,LinkedHashSet<String>> keys = new TreeMap<String,LinkedHashSet<String>>();
+		readRrf(rrfDirectory, "RXNSAT.RRF", cols -> {
+			//RXCUI|LUI|SUI|RXAUI|STYPE|CODE|ATUI|SATUI|ATN|SAB|ATV|SUPPRESS|CVF
+			if(cols.length < 12 || "Y".equals(cols[11]) || cols[10].isEmpty()) {
+				return;
+			}
+			String key = null;
+			if(cols[8].equals("NDC") && cols[9].equals("RXNORM")) {
+				key = NDC + normalize(cols[10], false);
+			}
+			else if(cols[8].equals("GCN_SEQNO")) {
+				key = GSN + normalize(cols[10], true);
+			}
+			if(key != null) {
+				keys.computeIfAbsent(key, x -> new LinkedHashSet<String>()).add(cols[0]);
+			}
+		});
+		
+		//concept numbers in order of first use
+		HashMap<String,Integer> conceptNumbers = new HashMap<String,Integer>();
+		List<String> cuis = new ArrayList<String>();
+		for(LinkedHashSet<String> keyCuis : keys.values()) {
+			for(String cui : keyCuis) {
+				if(!conceptNumbers.containsKey(cui)) {
+					conceptNumbers.put(cui, cuis.size());
+					cuis.add(cui);
+				}
+			}
+		}
+		
+		//RxNorm Name: normalized name of SAB RXNORM, synonyms only if there is nothing else
+		HashMap<String,String> names = new HashMap<String,String>();
+		HashMap<String,String> synonyms = new HashMap<String,String>();
+		readRrf(rrfDirectory, "RXNCONSO.RRF", cols -> {
+			//RXCUI|LAT|TS|LUI|STT|SUI|ISPREF|RXAUI|SAUI|SCUI|SDUI|SAB|TTY|CODE|STR|SRL|SUPPRESS|CVF
+			if(cols.length < 15 || !cols[11].equals("RXNORM") || !conceptNumbers.containsKey(cols[0])) {
+				return;
+			}
+			if(cols[12].equals("SY") || cols[12].equals("TMSY") || cols[12].equals("PSN")) {
+				synonyms.putIfAbsent(cols[0], cols[14]);
+			}
+			else {
+				names.putIfAbsent(cols[0], cols[14]);
+			}
+		});
+		
+		ByteArrayOutputStream strings = new ByteArrayOutputStream();
+		int listLength = 0;
+		for(LinkedHashSet<String> keyCuis : keys.values()) {
+			listLength += keyCuis.size();
+		}
+		
+		Path file = Paths.get(indexFile);
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(keys.size());
+			out.writeInt(listLength);
+			out.writeInt(cuis.size());
+			out.write(new byte[HEADER_SIZE - 20]);
+			
+			//keys
+			int first = 0;
+			for(Map.Entry<String,LinkedHashSet<String>> key : keys.entrySet()) {
+				writeString(out, strings, key.getKey());
+				out.writeInt(first);
+				out.writeInt(key.getValue().size());
+				first += key.getValue().size();
+			}
+			
+			//lists
+			for(LinkedHashSet<String> keyCuis : keys.values()) {
+				for(String cui : keyCuis) {
+					out.writeInt(conceptNumbers.get(cui));
+				}
+			}
+			
+			//concepts
+			for(String cui : cuis) {
+				writeString(out, strings, cui);
+				String name = names.containsKey(cui) ? names.get(cui) : synonyms.get(cui);
+				writeString(out, strings, name);
+			}
+			
+			strings.writeTo(out);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	private static void writeString(DataOutputStream out, ByteArrayOutputStream strings, String value) throws IOException {
+		if(value == null) {
+			out.writeInt(0);
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(strings.size());
+		out.writeInt(bytes.length);
+		strings.write(bytes);
+	}
+	
+	private static void readRrf(String rrfDirectory, String fileName, Consumer<String[]> rowHandler) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(rrfDirectory, fileName), StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				rowHandler.accept(line.split("\\|", -1));
+			}
+		}
+	}
+}
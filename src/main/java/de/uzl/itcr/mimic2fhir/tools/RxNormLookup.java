@@ -15,11 +15,27 @@ limitations under the License.
 /***********************************************************************/
 package de.uzl.itcr.mimic2fhir.tools;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.json.Json;
 import javax.json.JsonArray;
@@ -28,6 +44,7 @@ import javax.json.JsonReader;
 import javax.json.JsonString;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -37,53 +54,277 @@ import org.apache.http.util.EntityUtils;
 /**
  * Provide RxNorm-Lookup for NDC (National Drug Code) and GSN (Generic Sequence Number)
  * Singleton: Use getInstance to get working object
+ * Thread safe: each code is looked up only once, also if several workers ask for it at the same time (they wait for the first one), 
+ * and only a limited number of requests to the REST API run at the same time
  * @author Stefanie Ververs
  *
  */
 public class RxNormLookup {
+	private static final Logger LOG = Logger.getLogger(RxNormLookup.class.getName());
 
-	private HashMap<String, List<RxNormConcept>> rdxLookupNdc;
-	private HashMap<String,  List<RxNormConcept>> rdxLookupGsn;
+	//lookups: finished or running (other threads wait for the running one)
+	private ConcurrentHashMap<String, CompletableFuture<List<RxNormConcept>>> rdxLookupNdc;
+	private ConcurrentHashMap<String, CompletableFuture<List<RxNormConcept>>> rdxLookupGsn;
+	private ConcurrentHashMap<String, CompletableFuture<String>> cuiNames;
+	
+	//REST API: one client (connection pool) for all threads, limited requests at the same time
+	private static final int DEFAULT_MAX_REQUESTS = 4;
+	//ms: a hanging request must not block its request slot (and all workers waiting for its code)
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int SOCKET_TIMEOUT = 30000;
+	private CloseableHttpClient httpclient;
+	private volatile Semaphore requests;
+	
+	//persistent cache: append only, one line per lookup (type TAB code TAB time TAB values)
+	private static final String CACHE_NDC = "N";
+	private static final String CACHE_GSN = "G";
+	private static final String CACHE_NAME = "C";
+	private BufferedWriter cacheWriter;
+	//cuis of cached codes: concepts (with names not cached any more) are created at the first lookup of the code
+	private ConcurrentHashMap<String, String[]> cachedNdcCuis;
+	private ConcurrentHashMap<String, String[]> cachedGsnCuis;
+	
+	//offline index (null: REST API); codes missing in the index are reported once, looked up with the REST API only with fallback
+	private volatile RxNormIndex index;
+	private volatile boolean indexFallback;
+	private Set<String> indexMisses;
 	
 	protected RxNormLookup() {
-		rdxLookupNdc = new HashMap<String, List<RxNormConcept>>();
-		rdxLookupGsn = new HashMap<String, List<RxNormConcept>>();
+		rdxLookupNdc = new ConcurrentHashMap<String, CompletableFuture<List<RxNormConcept>>>();
+		rdxLookupGsn = new ConcurrentHashMap<String, CompletableFuture<List<RxNormConcept>>>();
+		cuiNames = new ConcurrentHashMap<String, CompletableFuture<String>>();
+		indexMisses = ConcurrentHashMap.newKeySet();
+		cachedNdcCuis = new ConcurrentHashMap<String, String[]>();
+		cachedGsnCuis = new ConcurrentHashMap<String, String[]>();
+		setMaxRequests(DEFAULT_MAX_REQUESTS);
+	}
+	
+	/**
+	 * Set max. number of requests to the RxNorm REST API at the same time (default: 4); set before lookups start
+	 * @param maxRequests max. number of requests
+	 */
+	public synchronized void setMaxRequests(int maxRequests) {
+		int max = Math.max(maxRequests, 1);
+		if(httpclient != null) {
+			try {
+				httpclient.close();
+			} catch (IOException e) {
+				//no lookups running yet -> old connections are only left open
+				LOG.log(Level.WARNING, "RxNorm http client can't be closed", e);
+			}
+		}
+		RequestConfig timeouts = RequestConfig.custom()
+				.setConnectTimeout(CONNECT_TIMEOUT)
+				.setConnectionRequestTimeout(CONNECT_TIMEOUT)
+				.setSocketTimeout(SOCKET_TIMEOUT)
+				.build();
+		httpclient = HttpClients.custom().setMaxConnTotal(max).setMaxConnPerRoute(max).setDefaultRequestConfig(timeouts).build();
+		requests = new Semaphore(max);
+	}
+	
+	/**
+	 * Set persistent cache file: all lookups in the file (not older than maxAgeDays) are loaded now (expired names of their concepts are looked up at the first use of a code), 
+	 * all further lookups of the REST API (also without result) are appended to it
+	 * @param cacheFile path of cache file (created if not existing)
+	 * @param maxAgeDays max. age of cached lookups in days; 0 if no limit
+	 * @throws UncheckedIOException if the cache file can't be read or opened for appending
+	 */
+	public void setCacheFile(String cacheFile, int maxAgeDays) {
+		Path file = Paths.get(cacheFile);
+		long minTime = maxAgeDays > 0 ? System.currentTimeMillis() - maxAgeDays * 86400000L : 0;
+		
+		//last line of a code wins
+		if(Files.exists(file)) {
+			try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] cols = line.split("\t", -1);
+					long time;
+					try {
+						time = cols.length >= 3 ? Long.parseLong(cols[2]) : 0;
+					} catch (NumberFormatException e) {
+						//incomplete line
+						continue;
+					}
+					if(time == 0 || time < minTime) {
+						continue;
+					}
+					String[] values = Arrays.copyOfRange(cols, 3, cols.length);
+					switch(cols[0]) {
+						case CACHE_NDC:
+							cachedNdcCuis.put(cols[1], values);
+							break;
+						case CACHE_GSN:
+							cachedGsnCuis.put(cols[1], values);
+							break;
+						case CACHE_NAME:
+							if(values.length > 0) {
+								cuiNames.put(cols[1], CompletableFuture.completedFuture(values[0]));
+							}
+							break;
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException("RxNorm cache file " + cacheFile + " can't be read", e);
+			}
+		}
+		
+		synchronized(this) {
+			try {
+				cacheWriter = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				throw new UncheckedIOException("RxNorm cache file " + cacheFile + " can't be opened", e);
+			}
+		}
+	}
+	
+	private List<RxNormConcept> getConcepts(String[] cuis) {
+		List<RxNormConcept> concepts = new ArrayList<RxNormConcept>();
+		for(String cui : cuis) {
+			RxNormConcept rc = new RxNormConcept();
+			rc.setCui(cui);
+			rc.setName(getName(cui));
+			concepts.add(rc);
+		}
+		return concepts;
+	}
+	
+	private synchronized void writeCache(String type, String code, List<String> values) {
+		if(cacheWriter == null) {
+			return;
+		}
+		StringBuilder line = new StringBuilder();
+		line.append(type).append('\t').append(code).append('\t').append(System.currentTimeMillis());
+		for(String value : values) {
+			line.append('\t').append(value);
+		}
+		try {
+			cacheWriter.write(line.toString());
+			cacheWriter.newLine();
+			cacheWriter.flush();
+		} catch (IOException e) {
+			//lookups still work, they are only not kept for the next run
+			LOG.log(Level.WARNING, "RxNorm cache file can't be written, lookups are not cached any more", e);
+			try {
+				cacheWriter.close();
+			} catch (IOException ce) {
+				e.addSuppressed(ce);
+			}
+			cacheWriter = null;
+		}
+	}
+	
+	private void writeCacheConcepts(String type, String code, List<RxNormConcept> concepts) {
+		List<String> cuis = new ArrayList<String>();
+		for(RxNormConcept rc : concepts) {
+			cuis.add(rc.getCui());
+		}
+		writeCache(type, code, cuis);
+	}
+	
+	/**
+	 * Set offline index: lookups are answered from the index instead of the RxNorm REST API (codes missing in it: see setIndexFallback)
+	 * @param index RxNorm index (null: REST API)
+	 */
+	public void setIndex(RxNormIndex index) {
+		this.index = index;
+	}
+	
+	/**
+	 * Set if codes missing in the offline index are looked up with the RxNorm REST API (default: false, only reported in the log)
+	 * @param indexFallback look up missing codes with the REST API?
+	 */
+	public void setIndexFallback(boolean indexFallback) {
+		this.indexFallback = indexFallback;
+	}
+	
+	private boolean isIndexMiss(String type, String code) {
+		//each missing code is reported once
+		if(indexMisses.add(type + code)) {
+			LOG.warning((type.equals(CACHE_NDC) ? "NDC " : "GSN ") + code + " not in RxNorm index" 
+					+ (indexFallback ? ", looked up with REST API" : ", no RxNorm concept"));
+		}
+		return indexFallback;
 	}
 	
 	/**
 	 * Get RxNormConcepts for a NDC
 	 * @param ndc National Drug Code
-	 * @return List of RxNorm-Concept
+	 * @return List of RxNorm-Concept (empty if none); null if lookup failed
 	 */
 	public  List<RxNormConcept> getRxNormForNdc(String ndc) {
-		if(rdxLookupNdc.containsKey(ndc)) {
-			return rdxLookupNdc.get(ndc);
-		}else {
-			 List<RxNormConcept> rdxNorm = findRxNormForNdc(ndc);
-			if(rdxNorm != null) {
-				rdxLookupNdc.put(ndc, rdxNorm);
-				return rdxNorm;
+		if(index != null) {
+			List<RxNormConcept> concepts = index.getRxNormForNdc(ndc);
+			if(!concepts.isEmpty() || !isIndexMiss(CACHE_NDC, ndc)) {
+				return concepts;
 			}
 		}
-		return null;
+		return lookupOnce(rdxLookupNdc, ndc, () -> {
+			String[] cuis = cachedNdcCuis.remove(ndc);
+			if(cuis != null) {
+				//from cache file (names looked up now, if expired)
+				return getConcepts(cuis);
+			}
+			List<RxNormConcept> rdxNorm = findRxNormForNdc(ndc);
+			if(rdxNorm != null) {
+				//also empty results (no concept for this code)
+				writeCacheConcepts(CACHE_NDC, ndc, rdxNorm);
+			}
+			return rdxNorm;
+		});
 	}
 
 	/**
 	 * Get RxNormConcepts for a GSN
 	 * @param gsn Generic Sequence Number
-	 * @return List of RxNorm-Concept
+	 * @return List of RxNorm-Concept (empty if none); null if lookup failed
 	 */
 	public  List<RxNormConcept> getRxNormForGsn(String gsn) {
-		if(rdxLookupGsn.containsKey(gsn)) {
-			return rdxLookupGsn.get(gsn);
-		}else {
-			 List<RxNormConcept> rdxNorm = findRxNormForGsn(gsn);
+		if(index != null) {
+			List<RxNormConcept> concepts = index.getRxNormForGsn(gsn);
+			if(!concepts.isEmpty() || !isIndexMiss(CACHE_GSN, gsn)) {
+				return concepts;
+			}
+		}
+		return lookupOnce(rdxLookupGsn, gsn, () -> {
+			String[] cuis = cachedGsnCuis.remove(gsn);
+			if(cuis != null) {
+				//from cache file (names looked up now, if expired)
+				return getConcepts(cuis);
+			}
+			List<RxNormConcept> rdxNorm = findRxNormForGsn(gsn);
 			if(rdxNorm != null) {
-				rdxLookupGsn.put(gsn, rdxNorm);
-				return rdxNorm;
+				//also empty results (no concept for this code)
+				writeCacheConcepts(CACHE_GSN, gsn, rdxNorm);
+			}
+			return rdxNorm;
+		});
+	}
+	
+	/**
+	 * Single flight: the first thread asking for a key looks it up, all others wait for its result. 
+	 * Failed lookups (null) are removed, so they are tried again later
+	 */
+	static <T> T lookupOnce(ConcurrentHashMap<String, CompletableFuture<T>> lookups, String key, Supplier<T> lookup) {
+		CompletableFuture<T> result = lookups.get(key);
+		if(result == null) {
+			CompletableFuture<T> own = new CompletableFuture<T>();
+			result = lookups.putIfAbsent(key, own);
+			if(result == null) {
+				T value = null;
+				try {
+					value = lookup.get();
+				}
+				finally {
+					if(value == null) {
+						lookups.remove(key, own);
+					}
+					own.complete(value);
+				}
+				return value;
 			}
 		}
-		return null;
+		return result.join();
 	}
 	
 	private List<RxNormConcept> findRxNormForGsn(String gsn) {
@@ -98,65 +339,74 @@ public class RxNormLookup {
 	
 	private List<RxNormConcept> findRxNorm(String url) {
 		//use of RxNorm REST API https://rxnav.nlm.nih.gov/REST
-		
-		CloseableHttpClient httpclient = HttpClients.createDefault();
+		JsonObject respObject = getJson(url);
+		if(respObject == null) {
+			//failed: not cached
+			return null;
+		}
 
 		List<RxNormConcept> rxNormList = new ArrayList<RxNormConcept>();
-		
-		HttpGet httpGet = new HttpGet(url);
-		
-		CloseableHttpResponse response = null;
-		try {		
-			//GET 
-			response = httpclient.execute(httpGet);
-		    	    
-			//Response -> JSON Object
-			HttpEntity entity = response.getEntity();
-			String jsonResponse = EntityUtils.toString(entity);
-			InputStream is = new ByteArrayInputStream( jsonResponse.getBytes() );
-			
-			JsonReader jsonReader = Json.createReader(is);
-			JsonObject respObject = jsonReader.readObject();
-			jsonReader.close();
-			
+		try {
 			JsonArray ids = respObject.getJsonObject("idGroup").getJsonArray("rxnormId");
 			if(ids != null && !ids.isEmpty()) {
 				for(JsonString rxNorm : ids.getValuesAs(JsonString.class)) {
 					RxNormConcept rc = new RxNormConcept();
 					rc.setCui(rxNorm.getString());
-					//get Name: Separate Call
-					rc.setName(getNameForCui(rc.getCui()));
+					//get Name: Separate Call (if not known)
+					rc.setName(getName(rc.getCui()));
 					rxNormList.add(rc);
 				}
 			}
-			
-		    EntityUtils.consume(entity);
 		}
 		catch(Exception ex){
-			ex.printStackTrace();
-		}
-		finally {
-			if(response != null) {
-				try {
-					response.close();
-				}
-				catch(Exception ex)
-				{}
-			}
+			//unexpected response: not cached, looked up again later
+			LOG.log(Level.WARNING, "RxNorm response can't be read: " + url, ex);
+			return null;
 		}
 		return rxNormList;
-
+	}
+	
+	private String getName(String cui) {
+		return lookupOnce(cuiNames, cui, () -> {
+			String name = getNameForCui(cui);
+			if(name != null) {
+				writeCache(CACHE_NAME, cui, Arrays.asList(name));
+			}
+			return name;
+		});
 	}
 
 	private String getNameForCui(String cui) {
-		CloseableHttpClient httpclient = HttpClients.createDefault();
-
-		String name = null;
 		String url = "https://rxnav.nlm.nih.gov/REST/rxcui/" + cui + "/property.json?propName=RxNorm%20Name";
+		JsonObject respObject = getJson(url);
+		if(respObject == null) {
+			return null;
+		}
+		
+		String name = null;
+		try {
+		    name = respObject.getJsonObject("propConceptGroup").getJsonArray("propConcept").get(0).asJsonObject().getString("propValue");
+		}
+		catch(Exception ex){
+			LOG.log(Level.WARNING, "RxNorm name of " + cui + " can't be read", ex);
+		}
+		return name;
+	}
+	
+	private JsonObject getJson(String url) {
 		HttpGet httpGet = new HttpGet(url);
 		
+		//wait for free request slot
+		Semaphore permits = requests;
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		
 		CloseableHttpResponse response = null;
-		try {		
+		try {
 			//GET 
 			response = httpclient.execute(httpGet);
 		    	    
@@ -169,26 +419,28 @@ public class RxNormLookup {
 			JsonObject respObject = jsonReader.readObject();
 			jsonReader.close();
 			
-		    name = respObject.getJsonObject("propConceptGroup").getJsonArray("propConcept").get(0).asJsonObject().getString("propValue");
-		    
 		    EntityUtils.consume(entity);
+		    return respObject;
 		}
 		catch(Exception ex){
-			ex.printStackTrace();
+			//also timeouts: failed lookups are tried again later
+			LOG.log(Level.WARNING, "RxNorm request failed: " + url, ex);
+			return null;
 		}
 		finally {
 			if(response != null) {
 				try {
 					response.close();
 				}
-				catch(Exception ex)
-				{}
+				catch(IOException ex) {
+					LOG.log(Level.FINE, "RxNorm response can't be closed", ex);
+				}
 			}
+			permits.release();
 		}
-		return name;
 	}
 
-	private static RxNormLookup instance = null;
+	private static volatile RxNormLookup instance = null;
 
 	/**
 	 * Singleton-Pattern: Get object reference to work with
@@ -196,7 +448,11 @@ public class RxNormLookup {
 	 */
 	public static RxNormLookup getInstance() {
 		if(instance == null) {
-			instance = new RxNormLookup();
+			synchronized(RxNormLookup.class) {
+				if(instance == null) {
+					instance = new RxNormLookup();
+				}
+			}
 		}
 		return instance;
 	}
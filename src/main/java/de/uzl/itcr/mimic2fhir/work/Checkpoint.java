@@ -0,0 +1,189 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Properties;
+
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+
+/**
+ * Progress of a conversion run, persisted to a checkpoint file:
+ * number of the last patient that was completely sent to the queue (all bundle numbers of a patient start with its number),
+ * together with all patients before it, and its rowId and subjectId to continue reading after it.
+ * Every update is written to a temp file, synced to disk and moved over the checkpoint file, so the file is never half written.
+ * A failed write throws UncheckedIOException - the run has to stop, its progress could not be saved
+ * @author Stefanie Ververs
+ *
+ */
+public class Checkpoint {
+	private Path file;
+	
+	private int patientNumber;
+	private int rowId;
+	private int subjectId;
+	
+	//patients finished before all patients with a lower number (parallel workers) - key: number, value: {rowId, subjectId}
+	private HashMap<Integer,int[]> finishedAhead;
+	
+	/**
+	 * Create checkpoint for file
+	 * @param path path of checkpoint file
+	 */
+	public Checkpoint(String path) {
+		this.file = Paths.get(path);
+		this.finishedAhead = new HashMap<Integer,int[]>();
+	}
+	
+	/**
+	 * Load progress from checkpoint file (if there is one)
+	 * @return true, if a checkpoint was loaded; false, if there is no checkpoint file
+	 * @throws IllegalStateException if the checkpoint file exists, but can't be read or parsed 
+	 * (it must not be overwritten - the run would start from the beginning)
+	 */
+	public synchronized boolean load() {
+		if(!Files.exists(file)) {
+			return false;
+		}
+		Properties values = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			values.load(in);
+			patientNumber = Integer.parseInt(required(values, "patientNumber"));
+			rowId = Integer.parseInt(required(values, "rowId"));
+			subjectId = Integer.parseInt(required(values, "subjectId"));
+			return true;
+		} catch (IOException | IllegalArgumentException e) {
+			throw new IllegalStateException("Checkpoint file " + file + " can't be read", e);
+		}
+	}
+	
+	private String required(Properties values, String key) {
+		String value = values.getProperty(key);
+		if(value == null) {
+			throw new IllegalArgumentException("Missing " + key);
+		}
+		return value.trim();
+	}
+	
+	/**
+	 * Start without progress (overwrites an existing checkpoint file)
+	 * @throws UncheckedIOException if the checkpoint file can't be written
+	 */
+	public synchronized void reset() {
+		patientNumber = 0;
+		rowId = 0;
+		subjectId = 0;
+		finishedAhead.clear();
+		write();
+	}
+	
+	/**
+	 * Mark patient as done (all bundles sent). The checkpoint moves forward as soon as all patients up to this one are done
+	 * @param numPat number of patient
+	 * @param patient patient
+	 * @throws UncheckedIOException if the checkpoint file can't be written
+	 */
+	public synchronized void patientDone(int numPat, MPatient patient) {
+		finishedAhead.put(numPat, new int[] {patient.getRowId(), Integer.parseInt(patient.getPatientSubjectId())});
+		
+		int[] next;
+		boolean moved = false;
+		while((next = finishedAhead.remove(patientNumber + 1)) != null) {
+			patientNumber++;
+			rowId = next[0];
+			subjectId = next[1];
+			moved = true;
+		}
+		if(moved) {
+			write();
+		}
+	}
+	
+	private void write() {
+		Properties values = new Properties();
+		values.setProperty("patientNumber", String.valueOf(patientNumber));
+		values.setProperty("rowId", String.valueOf(rowId));
+		values.setProperty("subjectId", String.valueOf(subjectId));
+		
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			values.store(content, "mimic2fhir checkpoint");
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				channel.write(ByteBuffer.wrap(content.toByteArray()));
+				//fsync
+				channel.force(true);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			syncDirectory();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Checkpoint file " + file + " can't be written", e);
+		}
+	}
+	
+	private void syncDirectory() throws IOException {
+		Path directory = file.toAbsolutePath().getParent();
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException e) {
+			//directories can't be opened on every platform (e.g. Windows) - there the move is durable without it
+			return;
+		}
+		//fsync of the directory entry -> the move survives a crash
+		try {
+			channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Number of completely converted patients
+	 * @return number of last completed patient
+	 */
+	public synchronized int getPatientNumber() {
+		return patientNumber;
+	}
+	
+	/**
+	 * RowId of last completed patient (patients are read in order of rowId)
+	 * @return rowId; 0 if none
+	 */
+	public synchronized int getRowId() {
+		return rowId;
+	}
+	
+	/**
+	 * SubjectId of last completed patient (sort merge reads in order of subjectId)
+	 * @return subjectId; 0 if none
+	 */
+	public synchronized int getSubjectId() {
+		return subjectId;
+	}
+}
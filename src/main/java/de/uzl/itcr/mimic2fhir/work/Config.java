@@ -17,6 +17,9 @@ package de.uzl.itcr.mimic2fhir.work;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.regex.Pattern;
 
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -29,6 +32,10 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.dstu3.model.ResourceType;
+
+import de.uzl.itcr.mimic2fhir.IdStrategy;
+import de.uzl.itcr.mimic2fhir.MimicTable;
 
 /**
  * Configuration for the transformation
@@ -37,6 +44,9 @@ import org.apache.http.util.EntityUtils;
  *
  */
 public class Config {
+	//snapshot id as returned by pg_export_snapshot, e.g. 00000003-0000001B-1
+	private static final Pattern SNAPSHOT_ID = Pattern.compile("^[0-9A-F]+-[0-9A-F]+(-[0-9]+)?$");
+	
 	//private: FHIR-options
 	private String fhirServer;
 	private String fhirxmlFilePath;
@@ -56,6 +66,59 @@ public class Config {
 	private String portPostgres;
 	private String schemaPostgres;
 	private String dbnamePostgres;
+	private int eventFetchSize;
+	private boolean copyEvents;
+	
+	//private: CSV-options
+	private String csvPath;
+	private int csvBlockSize;
+	
+	//private: progress
+	private String checkpointFile;
+	
+	//private: sharding
+	private int shardIndex;
+	private int shardCount;
+	
+	//private: job table
+	private String jobSchema;
+	private int jobLeaseSeconds = 1800;
+	private boolean jobOrderBySize;
+	private boolean jobReset;
+	
+	//private: concurrent table fetch
+	private int tableFetchThreads;
+	
+	//private: snapshot
+	private boolean snapshotReads;
+	private String snapshotId;
+	
+	//private: selection of tables and resource types
+	private EnumSet<MimicTable> disabledTables = EnumSet.noneOf(MimicTable.class);
+	private EnumSet<ResourceType> disabledResourceTypes = EnumSet.noneOf(ResourceType.class);
+	
+	//private: cohort
+	private String cohortFile;
+	private boolean cohortAdmissionIds;
+	private String cohortCondition;
+	
+	//private: spilling of events
+	private long spillAdmissionBytes;
+	private long spillGlobalBytes;
+	private String spillDirectory;
+	
+	//private: ids of resources
+	private IdStrategy idStrategy = IdStrategy.RANDOM;
+	private boolean referenceBundle;
+	private String crosswalkFile;
+	
+	//private: RxNorm offline
+	private String rxNormIndexFile;
+	private String rxNormRrfPath;
+	private boolean rxNormIndexFallback;
+	private String rxNormCacheFile;
+	private int rxNormCacheMaxDays;
+	private int rxNormMaxRequests;
 	
 	/**
 	 * Path for FHIR-Server
@@ -270,6 +333,558 @@ public class Config {
 		this.schemaPostgres = schemaPostgres;
 	}
 	
+	/**
+	 * Get fetch size for streaming chartevents and labevents (rows per round trip); 0 if events are loaded completely
+	 * @return fetch size
+	 */
+	public int getEventFetchSize() {
+		return eventFetchSize;
+	}
+
+	/**
+	 * Set fetch size for chartevents and labevents:
+	 * if > 0, events are not loaded with the admission, but streamed through a server-side cursor 
+	 * while the bundles are created -> memory is bounded by the fetch size instead of the admission size
+	 * @param eventFetchSize rows per round trip; 0 to load all events of an admission at once (default)
+	 */
+	public void setEventFetchSize(int eventFetchSize) {
+		this.eventFetchSize = eventFetchSize;
+	}
+	
+	/**
+	 * Are chartevents and labevents read with binary COPY instead of a ResultSet?
+	 * @return true, if COPY is used
+	 */
+	public boolean isCopyEvents() {
+		return copyEvents;
+	}
+
+	/**
+	 * Read chartevents and labevents with COPY ... TO STDOUT (FORMAT binary):
+	 * rows are decoded directly from the byte stream, which is much faster for large admissions
+	 * @param copyEvents true to use COPY; false to use a ResultSet (default)
+	 */
+	public void setCopyEvents(boolean copyEvents) {
+		this.copyEvents = copyEvents;
+	}
+	
+	/**
+	 * Directory with mimic csv files (extraction mode CSV_FILES)
+	 * @return csv directory
+	 */
+	public String getCsvPath() {
+		return csvPath;
+	}
+
+	/**
+	 * Set directory with mimic csv files (PATIENTS.csv.gz, ADMISSIONS.csv.gz, .. or uncompressed .csv)
+	 * @param csvPath csv directory
+	 */
+	public void setCsvPath(String csvPath) {
+		this.csvPath = csvPath;
+	}
+
+	/**
+	 * Number of patients loaded together from the csv files
+	 * @return block size
+	 */
+	public int getCsvBlockSize() {
+		return csvBlockSize;
+	}
+
+	/**
+	 * Set number of patients loaded together from the csv files: every table file is read once and split into 
+	 * one partition per block, every worker loads one block at a time -> larger blocks mean fewer partition files but more memory
+	 * @param csvBlockSize patients per block; 0 for default (2000)
+	 */
+	public void setCsvBlockSize(int csvBlockSize) {
+		this.csvBlockSize = csvBlockSize;
+	}
+	
+	/**
+	 * Path of checkpoint file
+	 * @return checkpoint file; null if no checkpoints are written
+	 */
+	public String getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	/**
+	 * Set path of checkpoint file: the progress (last completed patient) is written there after each patient,
+	 * StartMode.RESUME continues after it
+	 * @param checkpointFile checkpoint file
+	 */
+	public void setCheckpointFile(String checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+	
+	/**
+	 * Index of shard converted by this application (0 .. shardCount-1)
+	 * @return shard index
+	 */
+	public int getShardIndex() {
+		return shardIndex;
+	}
+
+	/**
+	 * Number of shards (applications converting the same db); 0 or 1 if not sharded
+	 * @return shard count
+	 */
+	public int getShardCount() {
+		return shardCount;
+	}
+	
+	/**
+	 * Is the conversion split into several shards?
+	 * @return true, if shardCount > 1
+	 */
+	public boolean isSharded() {
+		return shardCount > 1;
+	}
+
+	/**
+	 * Set shard: this application converts only patients with subject_id % shardCount == shardIndex,
+	 * so several applications (e.g. on different hosts) can convert the same db in parallel.
+	 * Bundle numbers (and file names) get the shard index as prefix
+	 * @param shardIndex index of this shard (0 .. shardCount-1)
+	 * @param shardCount number of shards (1: not sharded)
+	 * @throws IllegalArgumentException if shardCount is not positive or the index is out of range
+	 */
+	public void setShard(int shardIndex, int shardCount) {
+		if(shardCount <= 0) {
+			throw new IllegalArgumentException("Shard count has to be positive: " + shardCount);
+		}
+		if(shardIndex < 0 || shardIndex >= shardCount) {
+			throw new IllegalArgumentException("Shard index " + shardIndex + " not in 0.." + (shardCount - 1));
+		}
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+	}
+	
+	/**
+	 * Schema of the job table (StartMode JOB_COORDINATOR / JOB_WORKER)
+	 * @return schema; null for default (mimic2fhir_jobs)
+	 */
+	public String getJobSchema() {
+		return jobSchema;
+	}
+
+	/**
+	 * Set (scratch) schema for the job table - created by the coordinator, if it doesn't exist
+	 * @param jobSchema schema
+	 */
+	public void setJobSchema(String jobSchema) {
+		this.jobSchema = jobSchema;
+	}
+
+	/**
+	 * Lease of claimed jobs in seconds
+	 * @return lease in seconds
+	 */
+	public int getJobLeaseSeconds() {
+		return jobLeaseSeconds;
+	}
+
+	/**
+	 * Set lease of claimed jobs: jobs not done after this time are given to other workers (default: 1800).
+	 * Has to be longer than the conversion of one block of patients
+	 * @param jobLeaseSeconds lease in seconds
+	 */
+	public void setJobLeaseSeconds(int jobLeaseSeconds) {
+		this.jobLeaseSeconds = jobLeaseSeconds;
+	}
+
+	/**
+	 * Are jobs ordered by estimated size?
+	 * @return true, if largest patients come first
+	 */
+	public boolean isJobOrderBySize() {
+		return jobOrderBySize;
+	}
+
+	/**
+	 * Order jobs by estimated size (number of chartevents), largest patients first, so no big patient is left for the end.
+	 * Counting needs one scan of chartevents when the job table is created
+	 * @param jobOrderBySize order by size?
+	 */
+	public void setJobOrderBySize(boolean jobOrderBySize) {
+		this.jobOrderBySize = jobOrderBySize;
+	}
+	
+	/**
+	 * Coordinator removes all existing jobs and seeds the job table again?
+	 * @return reset job table?
+	 */
+	public boolean isJobReset() {
+		return jobReset;
+	}
+
+	/**
+	 * Remove all existing jobs (also done ones) and seed the job table again when the coordinator starts.
+	 * Default: an existing job table with jobs is kept and its open jobs are continued
+	 * @param jobReset reset job table?
+	 */
+	public void setJobReset(boolean jobReset) {
+		this.jobReset = jobReset;
+	}
+	
+	/**
+	 * Number of threads fetching the tables of one admission (diagnoses, procedures, events..) at the same time
+	 * @return number of table fetch threads (0 = tables are fetched one after another)
+	 */
+	public int getTableFetchThreads() {
+		return tableFetchThreads;
+	}
+	
+	/**
+	 * Set number of threads fetching the tables of one admission at the same time; 
+	 * each thread uses an own db connection
+	 * @param tableFetchThreads number of table fetch threads (0 = tables are fetched one after another)
+	 */
+	public void setTableFetchThreads(int tableFetchThreads) {
+		this.tableFetchThreads = tableFetchThreads;
+	}
+	
+	/**
+	 * Do all db connections read the same snapshot (one repeatable read, read only transaction per connection)?
+	 * @return snapshot reads? (always true if a snapshot id is set)
+	 */
+	public boolean isSnapshotReads() {
+		return snapshotReads || snapshotId != null;
+	}
+	
+	/**
+	 * Set if all db connections read the same snapshot: the snapshot is exported at start 
+	 * and imported by every connection -> changes to the db during the run are not seen
+	 * @param snapshotReads snapshot reads?
+	 */
+	public void setSnapshotReads(boolean snapshotReads) {
+		this.snapshotReads = snapshotReads;
+	}
+	
+	/**
+	 * Snapshot exported by another application
+	 * @return snapshot id (null: export own snapshot)
+	 */
+	public String getSnapshotId() {
+		return snapshotId;
+	}
+	
+	/**
+	 * Set snapshot exported by another application (printed at its start), e.g. to let several shards or job workers 
+	 * read the same snapshot. The exporting application has to run until all connections are open
+	 * @param snapshotId snapshot id (null: export own snapshot)
+	 * @throws IllegalArgumentException if the id is not in the format of pg_export_snapshot
+	 */
+	public void setSnapshotId(String snapshotId) {
+		//the id is part of SET TRANSACTION SNAPSHOT (no bind parameters possible)
+		if(snapshotId != null && !SNAPSHOT_ID.matcher(snapshotId).matches()) {
+			throw new IllegalArgumentException("Invalid snapshot id: " + snapshotId);
+		}
+		this.snapshotId = snapshotId;
+	}
+	
+	/**
+	 * Enable or disable a table of the admissions (default: all enabled). Disabled tables are not queried at all
+	 * @param table table
+	 * @param enabled read table?
+	 */
+	public void setTableEnabled(MimicTable table, boolean enabled) {
+		if(enabled) {
+			disabledTables.remove(table);
+		}
+		else {
+			disabledTables.add(table);
+		}
+	}
+	
+	/**
+	 * Enable or disable a fhir resource type (default: all enabled). Tables creating a disabled type are not queried at all, 
+	 * e.g. disabled Observation -> no chartevents, labevents and noteevents; disabled Medication -> no prescriptions.
+	 * Only types created from a table (MimicTable) can be disabled, not e.g. Patient, Encounter or Practitioner
+	 * @param resourceType resource type (see MimicTable)
+	 * @param enabled create resources of this type?
+	 * @throws IllegalArgumentException if the type is disabled but not created from a table
+	 */
+	public void setResourceTypeEnabled(ResourceType resourceType, boolean enabled) {
+		if(!enabled && !MimicTable.isTableResourceType(resourceType)) {
+			throw new IllegalArgumentException(resourceType + " can't be disabled (not created from a table)");
+		}
+		if(enabled) {
+			disabledResourceTypes.remove(resourceType);
+		}
+		else {
+			disabledResourceTypes.add(resourceType);
+		}
+	}
+	
+	/**
+	 * Is the table read? (table and all its resource types enabled)
+	 * @param table table
+	 * @return true, if the table is read
+	 */
+	public boolean useTable(MimicTable table) {
+		return !disabledTables.contains(table) && Collections.disjoint(disabledResourceTypes, table.getResourceTypes());
+	}
+	
+	/**
+	 * File with the ids of the cohort to convert
+	 * @return path of cohort file (null: all patients)
+	 */
+	public String getCohortFile() {
+		return cohortFile;
+	}
+	
+	/**
+	 * Set file with the ids of the cohort to convert: one SUBJECT_ID (or HADM_ID, see setCohortAdmissionIds) per line
+	 * @param cohortFile path of cohort file (null: all patients)
+	 */
+	public void setCohortFile(String cohortFile) {
+		this.cohortFile = cohortFile;
+	}
+	
+	/**
+	 * Does the cohort file contain HADM_IDs instead of SUBJECT_IDs?
+	 * @return true, if HADM_IDs
+	 */
+	public boolean isCohortAdmissionIds() {
+		return cohortAdmissionIds;
+	}
+	
+	/**
+	 * Set if the cohort file contains HADM_IDs instead of SUBJECT_IDs - only these admissions of the patients are converted
+	 * @param cohortAdmissionIds HADM_IDs?
+	 */
+	public void setCohortAdmissionIds(boolean cohortAdmissionIds) {
+		this.cohortAdmissionIds = cohortAdmissionIds;
+	}
+	
+	/**
+	 * SQL condition for the patients of the cohort
+	 * @return condition on table PATIENTS (null: all patients)
+	 */
+	public String getCohortCondition() {
+		return cohortCondition;
+	}
+	
+	/**
+	 * Set SQL condition (WHERE fragment on table PATIENTS) for the patients of the cohort, 
+	 * e.g. "SUBJECT_ID IN (SELECT SUBJECT_ID FROM ICUSTAYS WHERE FIRST_CAREUNIT = 'CSRU')". 
+	 * Together with a cohort file, patients have to match both
+	 * @param cohortCondition condition on table PATIENTS (null: all patients)
+	 */
+	public void setCohortCondition(String cohortCondition) {
+		this.cohortCondition = cohortCondition;
+	}
+	
+	/**
+	 * Is only a cohort converted (cohort file or condition)?
+	 * @return true, if cohort
+	 */
+	public boolean hasCohort() {
+		return cohortFile != null || cohortCondition != null;
+	}
+	
+	/**
+	 * Max. bytes of chart- and labevents of one admission in memory
+	 * @return bytes (0: no limit)
+	 */
+	public long getSpillAdmissionBytes() {
+		return spillAdmissionBytes;
+	}
+	
+	/**
+	 * Set max. bytes of chart- and labevents of one admission in memory - 
+	 * further events are moved to a memory-mapped scratch file (about 40 bytes per event)
+	 * @param spillAdmissionBytes bytes (0: no limit)
+	 */
+	public void setSpillAdmissionBytes(long spillAdmissionBytes) {
+		this.spillAdmissionBytes = spillAdmissionBytes;
+	}
+	
+	/**
+	 * Max. bytes of chart- and labevents of all admissions (all workers) in memory
+	 * @return bytes (0: no limit)
+	 */
+	public long getSpillGlobalBytes() {
+		return spillGlobalBytes;
+	}
+	
+	/**
+	 * Set max. bytes of chart- and labevents of all admissions (all workers) in memory - 
+	 * if reached, every admission that gets more events moves them to a memory-mapped scratch file
+	 * @param spillGlobalBytes bytes (0: no limit)
+	 */
+	public void setSpillGlobalBytes(long spillGlobalBytes) {
+		this.spillGlobalBytes = spillGlobalBytes;
+	}
+	
+	/**
+	 * Directory for scratch files (spilled events, partitions of the csv files)
+	 * @return directory (null: temp directory)
+	 */
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+	
+	/**
+	 * Set directory for scratch files of spilled events (deleted after the admission is converted) 
+	 * and partitions of the csv files (deleted at the end)
+	 * @param spillDirectory directory (null: temp directory)
+	 */
+	public void setSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+	
+	/**
+	 * Strategy for ids of resources
+	 * @return strategy
+	 */
+	public IdStrategy getIdStrategy() {
+		return idStrategy;
+	}
+	
+	/**
+	 * Set strategy for ids of resources: random (default) or name based from mimic keys (same ids in every run)
+	 * @param idStrategy strategy
+	 */
+	public void setIdStrategy(IdStrategy idStrategy) {
+		this.idStrategy = idStrategy;
+	}
+	
+	/**
+	 * Is reference data sent once in leading bundles?
+	 * @return true, if reference data is sent first
+	 */
+	public boolean isReferenceBundle() {
+		return referenceBundle;
+	}
+	
+	/**
+	 * Send reference data (hospital, locations, practitioners, medications) once in leading bundles before all patients; 
+	 * patient bundles reference it directly (server ids; conditional references if not pushed to a server) 
+	 * instead of conditional creates in every bundle
+	 * @param referenceBundle send reference data first?
+	 */
+	public void setReferenceBundle(boolean referenceBundle) {
+		this.referenceBundle = referenceBundle;
+	}
+	
+	/**
+	 * Path of crosswalk file (mimic resource -> server id)
+	 * @return path; null if no crosswalk
+	 */
+	public String getCrosswalkFile() {
+		return crosswalkFile;
+	}
+	
+	/**
+	 * Set path of crosswalk file: server ids of all conditional created resources are kept there (only when pushed to a server). 
+	 * Resources already in the crosswalk (e.g. from an earlier run) are referenced directly and not sent again
+	 * @param crosswalkFile path (null: no crosswalk)
+	 */
+	public void setCrosswalkFile(String crosswalkFile) {
+		this.crosswalkFile = crosswalkFile;
+	}
+	
+	/**
+	 * Path of RxNorm index file
+	 * @return path; null if RxNorm REST API is used
+	 */
+	public String getRxNormIndexFile() {
+		return rxNormIndexFile;
+	}
+	
+	/**
+	 * Set path of RxNorm index file: NDC and GSN are looked up offline in this (memory-mapped) file instead of the RxNorm REST API
+	 * @param rxNormIndexFile path (null: REST API)
+	 */
+	public void setRxNormIndexFile(String rxNormIndexFile) {
+		this.rxNormIndexFile = rxNormIndexFile;
+	}
+	
+	/**
+	 * Directory with RxNorm release files (RRF)
+	 * @return directory; null if not set
+	 */
+	public String getRxNormRrfPath() {
+		return rxNormRrfPath;
+	}
+	
+	/**
+	 * Set directory with RxNorm release files (RXNSAT.RRF, RXNCONSO.RRF): the RxNorm index file is built from them, if it does not exist
+	 * @param rxNormRrfPath directory
+	 */
+	public void setRxNormRrfPath(String rxNormRrfPath) {
+		this.rxNormRrfPath = rxNormRrfPath;
+	}
+	
+	/**
+	 * Are codes missing in the RxNorm index looked up with the RxNorm REST API?
+	 * @return true, if missing codes are looked up with the REST API
+	 */
+	public boolean isRxNormIndexFallback() {
+		return rxNormIndexFallback;
+	}
+	
+	/**
+	 * Look up NDC and GSN missing in the RxNorm index (e.g. newer than the release files) with the RxNorm REST API
+	 * (with cache file and max. requests as without index); default: missing codes are only logged, no network needed
+	 * @param rxNormIndexFallback look up missing codes with the REST API?
+	 */
+	public void setRxNormIndexFallback(boolean rxNormIndexFallback) {
+		this.rxNormIndexFallback = rxNormIndexFallback;
+	}
+	
+	/**
+	 * Path of RxNorm cache file
+	 * @return path; null if lookups are only cached in memory
+	 */
+	public String getRxNormCacheFile() {
+		return rxNormCacheFile;
+	}
+	
+	/**
+	 * Set path of RxNorm cache file: lookups of the RxNorm REST API (also without result) are kept there and loaded at next start
+	 * (with RxNorm index file only used for the fallback of missing codes)
+	 * @param rxNormCacheFile path (null: cache only in memory)
+	 */
+	public void setRxNormCacheFile(String rxNormCacheFile) {
+		this.rxNormCacheFile = rxNormCacheFile;
+	}
+	
+	/**
+	 * Max. age of lookups in RxNorm cache file
+	 * @return days (0: no limit)
+	 */
+	public int getRxNormCacheMaxDays() {
+		return rxNormCacheMaxDays;
+	}
+	
+	/**
+	 * Set max. age of lookups in RxNorm cache file: older lookups are not loaded (looked up again)
+	 * @param rxNormCacheMaxDays days (0: no limit)
+	 */
+	public void setRxNormCacheMaxDays(int rxNormCacheMaxDays) {
+		this.rxNormCacheMaxDays = rxNormCacheMaxDays;
+	}
+	
+	/**
+	 * Max. number of requests to the RxNorm REST API at the same time (all workers)
+	 * @return number of requests (0: default)
+	 */
+	public int getRxNormMaxRequests() {
+		return rxNormMaxRequests;
+	}
+	
+	/**
+	 * Set max. number of requests to the RxNorm REST API at the same time (all workers); 
+	 * each code is looked up only once, workers asking for the same code wait for this lookup
+	 * @param rxNormMaxRequests number of requests (0: default = 4)
+	 */
+	public void setRxNormMaxRequests(int rxNormMaxRequests) {
+		this.rxNormMaxRequests = rxNormMaxRequests;
+	}
 	
 	private String getTokenFromAuthServer() {
 		String token = "";
@@ -15,41 +15,157 @@ limitations under the License.
 /***********************************************************************/
 package de.uzl.itcr.mimic2fhir.work;
 
+import java.io.IOException;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
+
+import de.uzl.itcr.mimic2fhir.MimicTable;
 import de.uzl.itcr.mimic2fhir.model.MAdmission;
 import de.uzl.itcr.mimic2fhir.model.MCaregiver;
 import de.uzl.itcr.mimic2fhir.model.MChartevent;
+import de.uzl.itcr.mimic2fhir.model.MCharteventBlock;
 import de.uzl.itcr.mimic2fhir.model.MDiagnose;
+import de.uzl.itcr.mimic2fhir.model.MIcdCode;
+import de.uzl.itcr.mimic2fhir.model.MLabItem;
 import de.uzl.itcr.mimic2fhir.model.MLabevent;
+import de.uzl.itcr.mimic2fhir.model.MLabeventBlock;
 import de.uzl.itcr.mimic2fhir.model.MNoteevent;
 import de.uzl.itcr.mimic2fhir.model.MPatient;
 import de.uzl.itcr.mimic2fhir.model.MPrescription;
 import de.uzl.itcr.mimic2fhir.model.MProcedure;
 import de.uzl.itcr.mimic2fhir.model.MTransfer;
 import de.uzl.itcr.mimic2fhir.model.MWard;
+import de.uzl.itcr.mimic2fhir.tools.Helper;
 
 /**
  * Connection, access and querys to postgresDB
  * @author Stefanie Ververs
  *
  */
-public class ConnectDB {
+public class ConnectDB implements MimicSource, EventStreamSource {
+	private static final Logger LOG = Logger.getLogger(ConnectDB.class.getName());
+	
+	//Events, diagnoses and procedures are read without their dictionary tables - labels come from the preloaded dictionaries
+	static final String CHARTEVENTS_SELECT = "SELECT C.SUBJECT_ID, C.HADM_ID, C.CHARTTIME, C.CGID, C.VALUE, C.VALUENUM, C.VALUEUOM, C.ITEMID " +
+													 "FROM CHARTEVENTS C ";
+	
+	static final String LABEVENTS_SELECT = "SELECT L.SUBJECT_ID, L.HADM_ID, L.CHARTTIME, L.VALUE, L.VALUENUM, L.VALUEUOM, L.FLAG, L.ITEMID " +
+												   "FROM LABEVENTS L ";
+	
+	//Same columns for binary COPY: all values cast to types EventCopyReader can decode
+	static final String CHARTEVENTS_COPY_SELECT = "SELECT C.SUBJECT_ID::int4, C.HADM_ID::int4, C.CHARTTIME::timestamp, C.CGID::int4, C.VALUE::text, C.VALUENUM::float8, C.VALUEUOM::text, C.ITEMID::int4 " +
+													 "FROM CHARTEVENTS C ";
+	
+	static final String LABEVENTS_COPY_SELECT = "SELECT L.SUBJECT_ID::int4, L.HADM_ID::int4, L.CHARTTIME::timestamp, L.VALUE::text, L.VALUENUM::float8, L.VALUEUOM::text, L.FLAG::text, L.ITEMID::int4 " +
+												   "FROM LABEVENTS L ";
+	
+	static final String DIAGNOSES_SELECT = "SELECT ROW_ID, SUBJECT_ID, HADM_ID, SEQ_NUM, ICD9_CODE FROM DIAGNOSES_ICD ";
+	
+	static final String PROCEDURES_SELECT = "SELECT ROW_ID, SUBJECT_ID, HADM_ID, SEQ_NUM, ICD9_CODE FROM PROCEDURES_ICD ";
+	
+	//All other tables: only the columns used by the model (ROW_ID, SUBJECT_ID, HADM_ID always first)
+	static final String PATIENTS_SELECT = "SELECT ROW_ID, SUBJECT_ID, GENDER, DOB, DOD FROM PATIENTS ";
+	
+	static final String ADMISSIONS_SELECT = "SELECT ROW_ID, SUBJECT_ID, HADM_ID, ADMITTIME, DISCHTIME, ADMISSION_TYPE, ADMISSION_LOCATION, " +
+													"DISCHARGE_LOCATION, LANGUAGE, RELIGION, MARITAL_STATUS FROM ADMISSIONS ";
+	
+	static final String NOTEEVENTS_SELECT = "SELECT ROW_ID, SUBJECT_ID, HADM_ID, CHARTDATE, CHARTTIME, CATEGORY, DESCRIPTION, CGID, ISERROR, TEXT FROM NOTEEVENTS ";
+	
+	static final String PRESCRIPTIONS_SELECT = "SELECT ROW_ID, SUBJECT_ID, HADM_ID, STARTDATE, ENDDATE, DRUG_TYPE, DRUG, DRUG_NAME_POE, DRUG_NAME_GENERIC, " +
+													"FORMULARY_DRUG_CD, GSN, NDC, PROD_STRENGTH, DOSE_VAL_RX, DOSE_UNIT_RX, FORM_VAL_DISP, FORM_UNIT_DISP, ROUTE FROM PRESCRIPTIONS ";
+	
+	static final String TRANSFERS_SELECT = "SELECT ROW_ID, SUBJECT_ID, HADM_ID, EVENTTYPE, PREV_CAREUNIT, CURR_CAREUNIT, PREV_WARDID, CURR_WARDID, " +
+													"INTIME, OUTTIME, LOS FROM TRANSFERS ";
+	
+	private static final int DEFAULT_CURSOR_FETCH_SIZE = 10000;
+	
 	private Config configuration;	
-	private Connection connection = null;
+	private String url;
+	
+	//Connection pool: each thread uses one connection until it gives it back with releaseConnection
+	private int poolSize;
+	private int openConnections = 0;
+	private LinkedBlockingQueue<Connection> idleConnections;
+	private ThreadLocal<Connection> threadConnection;
+	
+	//Snapshot read by all connections (null: no snapshot); exporting transaction stays open until close
+	private String snapshotId;
+	private Connection snapshotConnection;
+	//Connection for writes (job table) if pool connections are read only
+	private Connection writeConnection;
+	//Connection for lease renewal of the job table (own thread, independent of the pool)
+	private Connection leaseConnection;
+	
+	//Threads fetching the tables of an admission concurrently (null: one after another)
+	private ExecutorService tableFetchPool;
+	
+	//Prepared statements of each connection (key: query) - prepared once, then executed with new parameters
+	private ConcurrentHashMap<Connection,HashMap<String,PreparedStatement>> preparedStatements;
+	
+	//Cohort (resolved once with resolveCohort; null: all patients / all admissions)
+	private Integer[] cohortSubjectIds;
+	private HashSet<String> cohortAdmissionIds;
+	
+	//Dictionaries (loaded once with loadDictionaries)
+	private HashMap<Integer,String> itemLabels;
+	private HashMap<Integer,MLabItem> labItems;
+	private HashMap<String,MIcdCode> icdDiagnoses;
+	private HashMap<String,MIcdCode> icdProcedures;
 	
 	/**
 	 * Create new DB-Connection with Config-Object
 	 * @param configuration
 	 */
 	public ConnectDB(Config configuration) {
+		this(configuration, 1);
+	}
+	
+	/**
+	 * Create new DB-Connection-Pool with Config-Object
+	 * @param configuration
+	 * @param poolSize max. number of open connections (= threads accessing the db at the same time), 
+	 * plus one connection for each table fetch thread (Config.tableFetchThreads)
+	 */
+	public ConnectDB(Config configuration, int poolSize) {
 		
 		this.configuration = configuration;
+		this.poolSize = poolSize + configuration.getTableFetchThreads();
+		if(configuration.getTableFetchThreads() > 0) {
+			this.tableFetchPool = Executors.newFixedThreadPool(configuration.getTableFetchThreads(), r -> {
+				Thread thread = new Thread(r, "table-fetch");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		this.idleConnections = new LinkedBlockingQueue<Connection>();
+		this.threadConnection = new ThreadLocal<Connection>();
+		this.preparedStatements = new ConcurrentHashMap<Connection,HashMap<String,PreparedStatement>>();
+		//snapshot of another application
+		this.snapshotId = configuration.getSnapshotId();
 		//Do some stuff to do DB-Connection..
 		
 		try {
@@ -60,8 +176,6 @@ public class ConnectDB {
 			e.printStackTrace();
 			return;
 		}
-
-		this.connection = null;
 		
 		//Schema-Construction, if necessary:
 		String schema = "";
@@ -69,18 +183,303 @@ public class ConnectDB {
 			schema = "?currentSchema=" + this.configuration.getSchemaPostgres();
 		}
 
+		this.url = "jdbc:postgresql://" + this.configuration.getPostgresServer() + ":" 
+				    			   		+ this.configuration.getPortPostgres() + "/" 
+				    			   		+ this.configuration.getDbnamePostgres() + schema;
+	}
+	
+	/**
+	 * Get connection of the current thread - on first use, a connection is taken from the pool 
+	 * (opened, if pool is not full yet, else wait for a free connection)
+	 * @return connection
+	 * @throws SQLException
+	 */
+	Connection getConnection() throws SQLException {
+		Connection connection = threadConnection.get();
+		if(connection == null) {
+			connection = idleConnections.poll();
+			if(connection == null) {
+				connection = openOrWaitForConnection();
+			}
+			threadConnection.set(connection);
+		}
+		return connection;
+	}
+	
+	private Connection openOrWaitForConnection() throws SQLException {
+		boolean open = false;
+		synchronized(this) {
+			if(openConnections < poolSize) {
+				openConnections++;
+				open = true;
+			}
+		}
+		if(open) {
+			try {
+				Connection connection = openConnection();
+				if(snapshotId != null) {
+					try {
+						joinSnapshot(connection);
+					}
+					catch(SQLException e) {
+						connection.close();
+						throw e;
+					}
+				}
+				return connection;
+			}
+			catch(SQLException e) {
+				synchronized(this) {
+					openConnections--;
+				}
+				throw e;
+			}
+		}
 		try {
-			connection = DriverManager.getConnection(
-			    	   "jdbc:postgresql://" + this.configuration.getPostgresServer() + ":" 
-			    			   				+ this.configuration.getPortPostgres() + "/" 
-			    			   				+ this.configuration.getDbnamePostgres() + schema,
-			    			   				this.configuration.getUserPostgres(), 
-			    			   				this.configuration.getPassPostgres());
-
-		} catch (SQLException e) {
-			e.printStackTrace();
+			return idleConnections.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a free connection", e);
+		}
+	}
+	
+	private Connection openConnection() throws SQLException {
+		return DriverManager.getConnection(url,
+					   				this.configuration.getUserPostgres(), 
+					   				this.configuration.getPassPostgres());
+	}
+	
+	/**
+	 * Coordinator: open a repeatable read, read only transaction and export its snapshot. 
+	 * All connections opened afterwards import this snapshot -> every connection sees the same db state.
+	 * The exporting transaction stays open until close
+	 * @return snapshot id (can be given to other applications with Config.snapshotId)
+	 * @throws SQLException
+	 */
+	public synchronized String exportSnapshot() throws SQLException {
+		if(snapshotId != null) {
+			return snapshotId;
+		}
+		snapshotConnection = openConnection();
+		snapshotConnection.setAutoCommit(false);
+		try (Statement statement = snapshotConnection.createStatement()) {
+			statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+			try (ResultSet rs = statement.executeQuery("SELECT pg_export_snapshot()")) {
+				rs.next();
+				snapshotId = rs.getString(1);
+			}
+		}
+		return snapshotId;
+	}
+	
+	/**
+	 * Start the one transaction of a connection on the exported snapshot 
+	 * (stays open as long as the connection, reads never commit)
+	 * @param connection new connection
+	 * @throws SQLException
+	 */
+	private void joinSnapshot(Connection connection) throws SQLException {
+		connection.setAutoCommit(false);
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+			//id from pg_export_snapshot or checked by Config.setSnapshotId
+			statement.execute("SET TRANSACTION SNAPSHOT '" + snapshotId + "'");
+		}
+	}
+	
+	/**
+	 * Connection back in pool: a snapshot transaction aborted by an error is started again 
+	 * (otherwise every further statement on the connection would fail)
+	 * @param connection connection
+	 * @throws IllegalStateException if the snapshot can't be imported again (connection is closed)
+	 */
+	private void checkSnapshot(Connection connection) {
+		if(snapshotId == null) {
 			return;
-
+		}
+		try {
+			if(connection.unwrap(BaseConnection.class).getTransactionState() == TransactionState.FAILED) {
+				connection.rollback();
+				joinSnapshot(connection);
+			}
+		} catch (SQLException e) {
+			//a connection outside the snapshot would read another db state (e.g. exporting transaction has ended)
+			closeStatements(connection);
+			try {
+				connection.close();
+			} catch (SQLException ce) {
+				e.addSuppressed(ce);
+			}
+			synchronized(this) {
+				openConnections--;
+			}
+			throw new IllegalStateException("Snapshot " + snapshotId + " can't be imported again", e);
+		}
+	}
+	
+	/**
+	 * Start transaction for reading with a cursor (with snapshot: already inside the snapshot transaction)
+	 * @param connection connection
+	 * @throws SQLException
+	 */
+	void beginReadTransaction(Connection connection) throws SQLException {
+		if(snapshotId == null) {
+			connection.setAutoCommit(false);
+		}
+	}
+	
+	/**
+	 * End transaction from beginReadTransaction (snapshot transaction stays open)
+	 * @param connection connection
+	 * @throws SQLException
+	 */
+	void endReadTransaction(Connection connection) throws SQLException {
+		if(snapshotId == null) {
+			connection.commit();
+			connection.setAutoCommit(true);
+		}
+	}
+	
+	/**
+	 * Get connection for writes (job table): the connection of the current thread or - with snapshot, 
+	 * where all pool connections are read only - an own autocommit connection shared by all threads 
+	 * (synchronize on it)
+	 * @return connection
+	 * @throws SQLException
+	 */
+	Connection getWriteConnection() throws SQLException {
+		if(snapshotId == null) {
+			return getConnection();
+		}
+		synchronized(this) {
+			if(writeConnection == null) {
+				writeConnection = openConnection();
+			}
+			return writeConnection;
+		}
+	}
+	
+	/**
+	 * Get own autocommit connection for the lease renewal of the job table, shared by all threads 
+	 * (synchronize on it); is closed with close
+	 * @return connection
+	 * @throws SQLException
+	 */
+	synchronized Connection getLeaseConnection() throws SQLException {
+		if(leaseConnection == null) {
+			leaseConnection = openConnection();
+		}
+		return leaseConnection;
+	}
+	
+	/**
+	 * Get prepared statement for query on the connection of the current thread.
+	 * Every query is prepared only once per connection and reused afterwards (-> server side prepared statement)
+	 * @param query query with bind parameters (?)
+	 * @return prepared statement (closed with the connection)
+	 * @throws SQLException
+	 */
+	private PreparedStatement prepare(String query) throws SQLException {
+		Connection connection = getConnection();
+		//a connection is used by one thread at a time
+		HashMap<String,PreparedStatement> statements = preparedStatements.computeIfAbsent(connection, c -> new HashMap<String,PreparedStatement>());
+		PreparedStatement statement = statements.get(query);
+		if(statement == null) {
+			statement = connection.prepareStatement(query);
+			statements.put(query, statement);
+		}
+		return statement;
+	}
+	
+	private void closeStatements(Connection connection) {
+		HashMap<String,PreparedStatement> statements = preparedStatements.remove(connection);
+		if(statements != null) {
+			for(PreparedStatement statement : statements.values()) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					LOG.log(Level.WARNING, "Statement can't be closed", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Take a connection from the pool that is not bound to the current thread (e.g. for long running cursors)
+	 * @return connection
+	 * @throws SQLException
+	 */
+	Connection takeConnection() throws SQLException {
+		Connection connection = idleConnections.poll();
+		if(connection == null) {
+			connection = openOrWaitForConnection();
+		}
+		return connection;
+	}
+	
+	/**
+	 * Give a connection from takeConnection back to the pool
+	 * @param connection connection
+	 */
+	void giveBackConnection(Connection connection) {
+		checkSnapshot(connection);
+		idleConnections.offer(connection);
+	}
+	
+	/**
+	 * Give connection of the current thread back to the pool
+	 */
+	public void releaseConnection() {
+		Connection connection = threadConnection.get();
+		if(connection != null) {
+			threadConnection.remove();
+			checkSnapshot(connection);
+			idleConnections.offer(connection);
+		}
+	}
+	
+	/**
+	 * Close all connections in the pool (connections still in use by other threads are not closed)
+	 */
+	public void close() {
+		if(tableFetchPool != null) {
+			tableFetchPool.shutdown();
+		}
+		releaseConnection();
+		Connection connection;
+		while((connection = idleConnections.poll()) != null) {
+			closeStatements(connection);
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				LOG.log(Level.WARNING, "Connection can't be closed", e);
+			}
+			synchronized(this) {
+				openConnections--;
+			}
+		}
+		closeOwnConnections();
+	}
+	
+	private synchronized void closeOwnConnections() {
+		try {
+			if(writeConnection != null) {
+				writeConnection.close();
+				writeConnection = null;
+			}
+			if(leaseConnection != null) {
+				leaseConnection.close();
+				leaseConnection = null;
+			}
+			if(snapshotConnection != null) {
+				//ends exporting transaction -> snapshot can't be imported any more
+				snapshotConnection.rollback();
+				snapshotConnection.close();
+				snapshotConnection = null;
+			}
+		} catch (SQLException e) {
+			//nothing is read any more -> the server ends the sessions
+			LOG.log(Level.WARNING, "Connection can't be closed", e);
 		}
 	}
 	
@@ -91,10 +490,8 @@ public class ConnectDB {
 	public int getNumberOfPatients() {
 		String query = "SELECT COUNT(*) FROM PATIENTS";
 		int count = 0;
-		PreparedStatement statement;
-		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
+		try (PreparedStatement statement = getConnection().prepareStatement(query);
+			 ResultSet rs = statement.executeQuery()) {
 			 while (rs.next()) {
 					count = rs.getInt(1);
 			 }
@@ -107,305 +504,1091 @@ public class ConnectDB {
 	
 	/**
 	 * Get first patient in Mimic-Patients-Table
-	 * @return filled MPatient-Object
+	 * @return filled MPatient-Object; null if there are no patients
+	 * @throws IllegalStateException if the patient can't be read
 	 */
 	public MPatient getFirstPatient() {
-		String query = "SELECT * FROM PATIENTS ORDER BY ROW_ID LIMIT 1";
-		return getOnePatientFromDb(query);
+		String query = PATIENTS_SELECT + "ORDER BY ROW_ID LIMIT 1";
+		try {
+			return getOnePatientFromDb(prepare(query));
+		} catch (SQLException e) {
+			throw new IllegalStateException("First patient can't be read", e);
+		}
 	}
 
 	/**
 	 * Get patient by rowId
 	 * @param rowId rowId of patient in patients-Table
-	 * @return filled MPatient-Object
+	 * @return filled MPatient-Object; null if there is no patient with this rowId
+	 * @throws IllegalStateException if the patient can't be read
 	 */
 	public MPatient getPatientByRowId(int rowId) {
-		String query = "SELECT * FROM PATIENTS WHERE ROW_ID = " + rowId;
-		return getOnePatientFromDb(query);
+		String query = PATIENTS_SELECT + "WHERE ROW_ID = ?";
+		try {
+			PreparedStatement statement = prepare(query);
+			statement.setInt(1, rowId);
+			return getOnePatientFromDb(statement);
+		} catch (SQLException e) {
+			throw new IllegalStateException("Patient with row id " + rowId + " can't be read", e);
+		}
 	}
 	
-	private MPatient getOnePatientFromDb(String query) {
+	private MPatient getOnePatientFromDb(PreparedStatement statement) throws SQLException {
 		
-		PreparedStatement statement;
-		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
+		try (ResultSet rs = statement.executeQuery()) {
 			
 			if (rs.next()) {
-					MPatient mPat = new MPatient();
-					//SUBJECT_ID
-					mPat.setPatientSubjectId(rs.getString(2));
-					//DOB
-					mPat.setBirthDate(rs.getDate(4));
-					//GENDER
-					mPat.setGender(rs.getString(3));
-					//DOD
-					mPat.setDeathDate(rs.getDate(5));
+					MPatient mPat = createPatient(rs);
 										
 					//Admissions
 					getPatientAdmissions(mPat);
 					
 					return mPat;
 			 }
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
 		return null;
 	}
 	
+	MPatient createPatient(ResultSet rs) throws SQLException {
+		MPatient mPat = new MPatient();
+		mPat.setRowId(rs.getInt(1));
+		//SUBJECT_ID
+		mPat.setPatientSubjectId(rs.getString(2));
+		//DOB
+		mPat.setBirthDate(rs.getDate(4));
+		//GENDER
+		mPat.setGender(rs.getString(3));
+		//DOD
+		mPat.setDeathDate(rs.getDate(5));
+		return mPat;
+	}
+	
+	MAdmission createAdmission(ResultSet rs) throws SQLException {
+		MAdmission mAdm = new MAdmission();
+		mAdm.setAdmissionId(rs.getString(3));
+		
+		//Times
+		mAdm.setAdmissionTime(rs.getDate(4));
+		mAdm.setDischargeTime(rs.getDate(5));
+		
+		//Type
+		mAdm.setAdmissionType(rs.getString(6));
+		
+		//DschLoc
+		mAdm.setDischargeLocation(rs.getString(8));
+		
+		mAdm.setMaritalStatus(rs.getString(11));
+		mAdm.setLanguage(rs.getString(9));
+		mAdm.setReligion(rs.getString(10));
+		mAdm.setAdmissionLocation(rs.getString(7));
+		return mAdm;
+	}
+	
+	/**
+	 * Get iterator over all patients in Mimic-Patients-Table (ordered by rowId).
+	 * Patients are read page by page (keyset: ROW_ID > last rowId), admissions are not loaded
+	 * @param pageSize number of patients per query
+	 * @param limit max. number of patients; 0 if all
+	 * @return patient iterator
+	 */
+	public PatientIterator getPatientIterator(int pageSize, int limit) {
+		return getPatientIterator(pageSize, limit, 0);
+	}
+	
+	/**
+	 * Get iterator over all patients after a rowId (e.g. to resume after a checkpoint)
+	 * @param pageSize number of patients per query
+	 * @param limit max. number of patients; 0 if all
+	 * @param afterRowId start after this rowId
+	 * @return patient iterator
+	 */
+	public PatientIterator getPatientIterator(int pageSize, int limit, int afterRowId) {
+		return new PatientIterator(this, pageSize, limit, afterRowId);
+	}
+	
+	/**
+	 * Get reader for complete patients (incl. admissions), merged from one ordered cursor per table.
+	 * The reader uses its own connection from the pool until all patients are read
+	 * @param limit max. number of patients; 0 if all
+	 * @return sort merge reader
+	 * @throws IllegalStateException if the cursors can't be opened
+	 */
+	public SortMergeReader getSortMergeReader(int limit) {
+		return getSortMergeReader(limit, 0);
+	}
+	
+	/**
+	 * Get reader for complete patients with a subjectId higher than afterSubjectId (e.g. to resume after a checkpoint)
+	 * @param limit max. number of patients; 0 if all
+	 * @param afterSubjectId start after this subjectId
+	 * @return sort merge reader
+	 * @throws IllegalStateException if the cursors can't be opened
+	 */
+	public SortMergeReader getSortMergeReader(int limit, int afterSubjectId) {
+		int fetchSize = configuration.getEventFetchSize() > 0 ? configuration.getEventFetchSize() : DEFAULT_CURSOR_FETCH_SIZE;
+		try {
+			//reader gives the connection back on close (also if opening the cursors fails)
+			return new SortMergeReader(this, takeConnection(), fetchSize, limit, afterSubjectId);
+		} catch (SQLException e) {
+			throw new IllegalStateException("Sort merge cursors can't be opened", e);
+		}
+	}
+	
+	/**
+	 * Get next page of patients (without admissions)
+	 * @param afterRowId rowId of last patient of previous page (0 for first page)
+	 * @param pageSize max. number of patients
+	 * @return MPatient-Objects ordered by rowId
+	 * @throws IllegalStateException if the patients can't be read
+	 */
+	List<MPatient> getPatientPage(int afterRowId, int pageSize) {
+		String cohort = cohortSubjectIds != null ? " AND SUBJECT_ID = ANY(?)" : "";
+		String query = PATIENTS_SELECT + "WHERE ROW_ID > ?" + cohort + shardCondition("SUBJECT_ID") + " ORDER BY ROW_ID LIMIT ?";
+		List<MPatient> patients = new ArrayList<MPatient>();
+		try {
+			PreparedStatement statement = prepare(query);
+			int p = 1;
+			statement.setInt(p++, afterRowId);
+			if(cohortSubjectIds != null) {
+				statement.setArray(p++, getConnection().createArrayOf("int4", cohortSubjectIds));
+			}
+			statement.setInt(p++, pageSize);
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					patients.add(createPatient(rs));
+				}
+			}
+		} catch (SQLException e) {
+			//an empty page would end the run as if all patients were done
+			throw new IllegalStateException("Patients after row " + afterRowId + " can't be read", e);
+		}
+		return patients;
+	}
+	
+	/**
+	 * Condition for the subjects of this shard (Config.setShard)
+	 * @param subjectColumn subject id column
+	 * @return " AND subjectColumn % shardCount = shardIndex"; empty string if not sharded
+	 */
+	String shardCondition(String subjectColumn) {
+		if(!configuration.isSharded()) {
+			return "";
+		}
+		return " AND " + subjectColumn + " % " + configuration.getShardCount() + " = " + configuration.getShardIndex();
+	}
+	
+	/**
+	 * Resolve the cohort (Config.cohortFile, Config.cohortCondition) once before patients are read: 
+	 * the patient iterator returns only the patients of the cohort, with HADM_IDs in the cohort file only these admissions are loaded
+	 * @return subject ids of the cohort ordered by rowId (empty list if there is no match)
+	 * @throws IllegalStateException if the cohort file or the patients can't be read
+	 */
+	public List<Integer> resolveCohort() {
+		List<Integer> subjectIds = new ArrayList<Integer>();
+		List<String> conditions = new ArrayList<String>();
+		List<Integer> fileIds = null;
+		try {
+			if(configuration.getCohortFile() != null) {
+				fileIds = Helper.readIds(configuration.getCohortFile());
+				if(configuration.isCohortAdmissionIds()) {
+					cohortAdmissionIds = new HashSet<String>();
+					for(Integer hadmId : fileIds) {
+						cohortAdmissionIds.add(hadmId.toString());
+					}
+					conditions.add("SUBJECT_ID IN (SELECT SUBJECT_ID FROM ADMISSIONS WHERE HADM_ID = ANY(?))");
+				}
+				else {
+					conditions.add("SUBJECT_ID = ANY(?)");
+				}
+			}
+			if(configuration.getCohortCondition() != null) {
+				conditions.add("(" + configuration.getCohortCondition() + ")");
+			}
+			
+			String query = "SELECT SUBJECT_ID FROM PATIENTS WHERE " + String.join(" AND ", conditions) + " ORDER BY ROW_ID";
+			try (PreparedStatement statement = getConnection().prepareStatement(query)) {
+				if(fileIds != null) {
+					statement.setArray(1, getConnection().createArrayOf("int4", fileIds.toArray()));
+				}
+				try (ResultSet rs = statement.executeQuery()) {
+					while (rs.next()) {
+						subjectIds.add(rs.getInt(1));
+					}
+				}
+			}
+		} catch (IOException e) {
+			//without the cohort all patients would be converted
+			throw new IllegalStateException("Cohort file " + configuration.getCohortFile() + " can't be read", e);
+		} catch (SQLException e) {
+			throw new IllegalStateException("Cohort can't be resolved", e);
+		}
+		cohortSubjectIds = subjectIds.toArray(new Integer[subjectIds.size()]);
+		return subjectIds;
+	}
+	
+	private boolean inCohort(MAdmission admission) {
+		return cohortAdmissionIds == null || cohortAdmissionIds.contains(admission.getAdmissionId());
+	}
+	
+	/**
+	 * Is the table read? (Config.useTable)
+	 * @param table table
+	 * @return true, if table and resource type are enabled
+	 */
+	boolean useTable(MimicTable table) {
+		return configuration.useTable(table);
+	}
+	
+	/**
+	 * Load admissions (with all admission data) of a patient
+	 * @param pat patient
+	 */
+	public void loadAdmissions(MPatient pat) {
+		getPatientAdmissions(pat);
+	}
+	
+	/**
+	 * Get a block of patients incl. admissions and all admission data.
+	 * Every table is queried once for the whole block (SUBJECT_ID = ANY(?)), 
+	 * the patient and admission graphs are assembled in memory
+	 * @param subjectIds subject ids of the patients to load
+	 * @return filled MPatient-Objects in order of subjectIds
+	 * @throws IllegalStateException if the patients or their admissions can't be read
+	 */
+	public List<MPatient> getPatientsBySubjectIds(List<Integer> subjectIds) {
+		HashMap<String,MPatient> patients = new HashMap<String,MPatient>();
+		List<MPatient> patientList = new ArrayList<MPatient>();
+		
+		try {
+			Array ids = getConnection().createArrayOf("int4", subjectIds.toArray());
+			
+			//Patients
+			try (ResultSet rs = executeForSubjects(PATIENTS_SELECT + "WHERE SUBJECT_ID = ANY(?)", ids)) {
+				while (rs.next()) {
+					MPatient mPat = createPatient(rs);
+					patients.put(mPat.getPatientSubjectId(), mPat);
+				}
+			}
+			ids.free();
+		} catch (SQLException e) {
+			//claimed jobs are not finished -> claimed again after the lease
+			throw new IllegalStateException("Patients " + subjectIds + " can't be read", e);
+		}
+		
+		//keep order of requested subject ids
+		for(Integer subjectId : subjectIds) {
+			MPatient mPat = patients.get(subjectId.toString());
+			if(mPat != null) {
+				patientList.add(mPat);
+			}
+		}
+		loadAdmissions(patientList);
+		return patientList;
+	}
+	
+	/**
+	 * Load admissions (with all admission data) for a block of patients.
+	 * Every table is queried once for the whole block (SUBJECT_ID = ANY(?)), 
+	 * the admission graphs are assembled in memory
+	 * @param patientList patients without admissions
+	 */
+	public void loadAdmissions(List<MPatient> patientList) {
+		HashMap<String,MPatient> patients = new HashMap<String,MPatient>();
+		HashMap<String,MAdmission> admissions = new HashMap<String,MAdmission>();
+		Integer[] subjectIds = new Integer[patientList.size()];
+		for(int i = 0; i < subjectIds.length; i++) {
+			MPatient mPat = patientList.get(i);
+			patients.put(mPat.getPatientSubjectId(), mPat);
+			subjectIds[i] = Integer.valueOf(mPat.getPatientSubjectId());
+		}
+		
+		try {
+			Array ids = getConnection().createArrayOf("int4", subjectIds);
+			
+			//Admissions
+			try (ResultSet rs = executeForSubjects(ADMISSIONS_SELECT + "WHERE SUBJECT_ID = ANY(?)", ids)) {
+				while (rs.next()) {
+					MPatient mPat = patients.get(rs.getString(2));
+					MAdmission mAdm = mPat != null ? createAdmission(rs) : null;
+					//cohort of admissions: rows of other admissions are skipped in all tables
+					if(mAdm != null && inCohort(mAdm)) {
+						admissions.put(mAdm.getAdmissionId(), mAdm);
+						mPat.addAdmission(mAdm);
+					}
+				}
+			}
+			
+			//Diagnoses
+			if(configuration.useTable(MimicTable.DIAGNOSES_ICD)) {
+				try (ResultSet rs = executeForSubjects(DIAGNOSES_SELECT + "WHERE SUBJECT_ID = ANY(?) ORDER BY HADM_ID, SEQ_NUM", ids)) {
+					while (rs.next()) {
+						MAdmission mAdm = admissions.get(rs.getString(3));
+						MDiagnose mDiag = createDiagnose(rs);
+						if(mAdm != null && mDiag != null) {
+							mAdm.addDiagnose(mDiag);
+						}
+					}
+				}
+			}
+			
+			//Procedures
+			if(configuration.useTable(MimicTable.PROCEDURES_ICD)) {
+				try (ResultSet rs = executeForSubjects(PROCEDURES_SELECT + "WHERE SUBJECT_ID = ANY(?) ORDER BY HADM_ID, SEQ_NUM", ids)) {
+					while (rs.next()) {
+						MAdmission mAdm = admissions.get(rs.getString(3));
+						MProcedure mProc = createProcedure(rs);
+						if(mAdm != null && mProc != null) {
+							mAdm.addProcedure(mProc);
+						}
+					}
+				}
+			}
+			
+			boolean chartevents = !isStreamingEvents() && configuration.useTable(MimicTable.CHARTEVENTS);
+			boolean labevents = !isStreamingEvents() && configuration.useTable(MimicTable.LABEVENTS);
+			if(configuration.isCopyEvents()) {
+				//Chartevents + Labevents with COPY (no parameters possible -> ids inlined, only ints)
+				String idList = "'{" + Arrays.stream(subjectIds).map(String::valueOf).collect(Collectors.joining(",")) + "}'::int4[]";
+				if(chartevents) {
+					copyChartEvents("WHERE C.SUBJECT_ID = ANY(" + idList + ")", (hadmId, row) -> {
+						MAdmission mAdm = admissions.get(hadmId);
+						if(mAdm != null) {
+							appendChartevent(row, mAdm.getEvents());
+						}
+					});
+				}
+				if(labevents) {
+					copyLabEvents("WHERE L.SUBJECT_ID = ANY(" + idList + ")", (hadmId, row) -> {
+						MAdmission mAdm = admissions.get(hadmId);
+						if(mAdm != null) {
+							appendLabevent(row, mAdm.getLabEvents());
+						}
+					});
+				}
+			}
+			else {
+				//Chartevents
+				if(chartevents) {
+					try (ResultSet rs = executeForSubjects(CHARTEVENTS_SELECT + "WHERE C.SUBJECT_ID = ANY(?)", ids)) {
+						while (rs.next()) {
+							MAdmission mAdm = admissions.get(rs.getString(2));
+							if(mAdm != null) {
+								appendChartevent(rs, mAdm.getEvents());
+							}
+						}
+					}
+				}
+				
+				//Labevents
+				if(labevents) {
+					try (ResultSet rs = executeForSubjects(LABEVENTS_SELECT + "WHERE L.SUBJECT_ID = ANY(?)", ids)) {
+						while (rs.next()) {
+							MAdmission mAdm = admissions.get(rs.getString(2));
+							if(mAdm != null) {
+								appendLabevent(rs, mAdm.getLabEvents());
+							}
+						}
+					}
+				}
+			}
+			
+			//Noteevents
+			if(configuration.useTable(MimicTable.NOTEEVENTS)) {
+				try (ResultSet rs = executeForSubjects(NOTEEVENTS_SELECT + "WHERE SUBJECT_ID = ANY(?)", ids)) {
+					while (rs.next()) {
+						MAdmission mAdm = admissions.get(rs.getString(3));
+						if(mAdm != null) {
+							mAdm.addNoteEvent(createNoteevent(rs));
+						}
+					}
+				}
+			}
+			
+			//Prescriptions
+			if(configuration.useTable(MimicTable.PRESCRIPTIONS)) {
+				try (ResultSet rs = executeForSubjects(PRESCRIPTIONS_SELECT + "WHERE SUBJECT_ID = ANY(?)", ids)) {
+					while (rs.next()) {
+						MAdmission mAdm = admissions.get(rs.getString(3));
+						if(mAdm != null) {
+							mAdm.addPrescription(createPrescription(rs));
+						}
+					}
+				}
+			}
+			
+			//Transfers
+			if(configuration.useTable(MimicTable.TRANSFERS)) {
+				try (ResultSet rs = executeForSubjects(TRANSFERS_SELECT + "WHERE SUBJECT_ID = ANY(?)", ids)) {
+					while (rs.next()) {
+						MAdmission mAdm = admissions.get(rs.getString(3));
+						if(mAdm != null) {
+							mAdm.addTransfer(createTransfer(rs, mAdm.getTransfers().size() + 1));
+						}
+					}
+				}
+			}
+			ids.free();
+		} catch (SQLException e) {
+			//no block with tables missing: it would be converted and checkpointed as done
+			throw new IllegalStateException("Admissions of patients " + patients.keySet() + " can't be read", e);
+		}
+	}
+	
+	private ResultSet executeForSubjects(String query, Array subjectIds) throws SQLException {
+		PreparedStatement statement = prepare(query);
+		statement.setArray(1, subjectIds);
+		return statement.executeQuery();
+	}
+	
+	private ResultSet executeForAdmission(String query, String patientSubjId, MAdmission admission) throws SQLException {
+		PreparedStatement statement = prepare(query);
+		statement.setInt(1, Integer.parseInt(patientSubjId));
+		statement.setInt(2, Integer.parseInt(admission.getAdmissionId()));
+		return statement.executeQuery();
+	}
+	
+	/**
+	 * Run table fetches of one admission: one after another or - with table fetch threads - at the same time, 
+	 * each on an own connection. Returns when all fetches are done.
+	 * Every fetch fills a different list of the admission.
+	 * A failed fetch fails the whole admission (its exception is rethrown), it must not be converted with tables missing
+	 * @param fetches table fetches
+	 */
+	private void runFetches(List<Runnable> fetches) {
+		if(tableFetchPool == null) {
+			for(Runnable fetch : fetches) {
+				fetch.run();
+			}
+			return;
+		}
+		
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(Runnable fetch : fetches) {
+			futures.add(tableFetchPool.submit(() -> {
+				try {
+					fetch.run();
+				}
+				finally {
+					//connection back to pool for next fetch
+					releaseConnection();
+				}
+			}));
+		}
+		RuntimeException failure = null;
+		//wait for all fetches (they use the admission), then report the first failure
+		for(Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if(failure == null) {
+					failure = new IllegalStateException("Interrupted while fetching tables", e);
+				}
+			} catch (ExecutionException e) {
+				if(failure == null) {
+					Throwable cause = e.getCause();
+					if(cause instanceof Error) {
+						throw (Error)cause;
+					}
+					failure = cause instanceof RuntimeException ? (RuntimeException)cause : new IllegalStateException("Table fetch failed", cause);
+				}
+			}
+		}
+		if(failure != null) {
+			throw failure;
+		}
+	}
+	
 	private void getPatientAdmissions(MPatient pat) {
-		String query = "SELECT * FROM ADMISSIONS WHERE SUBJECT_ID = " + pat.getPatientSubjectId();
-		PreparedStatement statement;
+		String query = ADMISSIONS_SELECT + "WHERE SUBJECT_ID = ?";
+		List<MAdmission> admissions = new ArrayList<MAdmission>();
 		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
+			PreparedStatement statement = prepare(query);
+			statement.setInt(1, Integer.parseInt(pat.getPatientSubjectId()));
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					MAdmission mAdm = createAdmission(rs);
+					if(inCohort(mAdm)) {
+						admissions.add(mAdm);
+					}
+				}
+			}
 			
-			while (rs.next()) {
-					MAdmission mAdm = new MAdmission();
-					mAdm.setAdmissionId(rs.getString(3));
-					
-					//Times
-					mAdm.setAdmissionTime(rs.getDate(4));
-					mAdm.setDischargeTime(rs.getDate(5));
-					
-					//Type
-					mAdm.setAdmissionType(rs.getString(7));
-					
-					//DschLoc
-					mAdm.setDischargeLocation(rs.getString(9));
-					
-					mAdm.setMaritalStatus(rs.getString(13));
-					mAdm.setLanguage(rs.getString(11));
-					mAdm.setReligion(rs.getString(12));
-					mAdm.setAdmissionLocation(rs.getString(8));
-
+			String subjId = pat.getPatientSubjectId();
+			for(MAdmission mAdm : admissions) {
+					List<Runnable> fetches = new ArrayList<Runnable>();
+				
 					//Diagnoses
-					getDiagnoses(pat.getPatientSubjectId(), mAdm);;
+					if(configuration.useTable(MimicTable.DIAGNOSES_ICD)) {
+						fetches.add(() -> getDiagnoses(subjId, mAdm));
+					}
 					
 					//Procedures
-					getProcedures(pat.getPatientSubjectId(), mAdm);
-					
-					//Chartevents
-					getChartEvents(mAdm, pat.getPatientSubjectId());
+					if(configuration.useTable(MimicTable.PROCEDURES_ICD)) {
+						fetches.add(() -> getProcedures(subjId, mAdm));
+					}
 					
-					//Labevents
-					getLabEvents(mAdm, pat.getPatientSubjectId());
+					//Chartevents + Labevents (if not streamed later)
+					if(!isStreamingEvents()) {
+						if(configuration.useTable(MimicTable.CHARTEVENTS)) {
+							fetches.add(() -> getChartEvents(mAdm, subjId));
+						}
+						if(configuration.useTable(MimicTable.LABEVENTS)) {
+							fetches.add(() -> getLabEvents(mAdm, subjId));
+						}
+					}
 					
 					//Noteevents
-					getNoteEvents(mAdm, pat.getPatientSubjectId());
+					if(configuration.useTable(MimicTable.NOTEEVENTS)) {
+						fetches.add(() -> getNoteEvents(mAdm, subjId));
+					}
 										
 					//Prescriptions
-					getPrecriptions(mAdm, pat.getPatientSubjectId());
+					if(configuration.useTable(MimicTable.PRESCRIPTIONS)) {
+						fetches.add(() -> getPrecriptions(mAdm, subjId));
+					}
 										
 					//Transfers
-					getTransfers(mAdm, pat.getPatientSubjectId());
+					if(configuration.useTable(MimicTable.TRANSFERS)) {
+						fetches.add(() -> getTransfers(mAdm, subjId));
+					}
+					
+					runFetches(fetches);
 					
 					pat.addAdmission(mAdm);
-			 }
+			}
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException("Admissions of patient " + pat.getPatientSubjectId() + " can't be read", e);
 		}
 	}
 	
 	private void getChartEvents(MAdmission admission, String patientSubjId) {
-		String query =  "SELECT C.SUBJECT_ID, C.HADM_ID, C.CHARTTIME, C.CGID, C.VALUE, C.VALUENUM, C.VALUEUOM, D.LABEL " +
-						"FROM CHARTEVENTS C " +
-					    "INNER JOIN D_ITEMS D ON C.ITEMID = D.ITEMID " + 
-						"WHERE C.HADM_ID= " + admission.getAdmissionId();
+		if(configuration.isCopyEvents()) {
+			copyChartEvents("WHERE C.HADM_ID= " + admission.getAdmissionId(), (hadmId, row) -> appendChartevent(row, admission.getEvents()));
+			return;
+		}
+		
+		String query =  CHARTEVENTS_SELECT + 
+						"WHERE C.HADM_ID = ?";
 		
-		PreparedStatement statement;
 		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
-			
-			 while (rs.next()) { 
-				 
-				 //Value = null ausschließen -> kein Wert
-				 if(rs.getObject(5) != null) {
-				 
-					 MChartevent event = new MChartevent();
-					 
-					 //Rekord-Datum
-					 event.setRecordDate(rs.getDate(3));
-					 
-					 //CareGiver
-					 event.setCareGiverId(rs.getInt(4));
-					 
-					 //Type (Item)
-					 event.setMeasurementType(rs.getString(8));
-					 
-					 //Value + ValueNum
-					 event.setValue(rs.getString(5));
-					 if(rs.getObject(6) != null) {
-						 event.setNumValue(rs.getDouble(6));
-					 }
-					 		 
-					 //Unit
-					 if(rs.getObject(7) != null) {
-						 event.setUnit(rs.getString(7));
-					 }
-					 
-					 admission.addEvent(event);
-				 
+			PreparedStatement statement = prepare(query);
+			statement.setInt(1, Integer.parseInt(admission.getAdmissionId()));
+			try (ResultSet rs = statement.executeQuery()) {
+				 while (rs.next()) { 
+					 appendChartevent(rs, admission.getEvents());
 				 }
-			 }
+			}
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException("Chartevents of admission " + admission.getAdmissionId() + " can't be read", e);
 		}
 	}
 	
-	private void getLabEvents(MAdmission admission, String patientSubjId) {
-		String query =  "SELECT L.SUBJECT_ID, L.HADM_ID, L.CHARTTIME, L.VALUE, L.VALUENUM, L.VALUEUOM, L.FLAG, D.LABEL, D.FLUID, D.LOINC_CODE " +
-						"FROM LABEVENTS L " +
-					    "INNER JOIN D_LABITEMS D ON L.ITEMID = D.ITEMID " + 
-						"WHERE L.SUBJECT_ID = " + patientSubjId + " AND L.HADM_ID= " + admission.getAdmissionId();
-		PreparedStatement statement;
+	/**
+	 * Are chartevents and labevents streamed (Config.eventFetchSize > 0) instead of loaded with the admission?
+	 * @return true, if events have to be read with streamChartEvents and streamLabEvents
+	 */
+	public boolean isStreamingEvents() {
+		return configuration.getEventFetchSize() > 0;
+	}
+	
+	/**
+	 * Stream all chartevents of an admission to a consumer.
+	 * Rows are read through a server-side cursor in blocks of Config.eventFetchSize (or with COPY, if Config.copyEvents) and handed over as they arrive
+	 * @param admission admission to read chartevents for
+	 * @param consumer consumer for each event
+	 * @throws IllegalStateException if the chartevents can't be read
+	 */
+	public void streamChartEvents(MAdmission admission, Consumer<MChartevent> consumer) {
+		if(!configuration.useTable(MimicTable.CHARTEVENTS)) {
+			return;
+		}
+		if(configuration.isCopyEvents()) {
+			copyChartEvents("WHERE C.HADM_ID= " + admission.getAdmissionId(), (hadmId, row) -> {
+				MChartevent event = createChartevent(row);
+				if(event != null) {
+					consumer.accept(event);
+				}
+			});
+			return;
+		}
+		
+		String query =  CHARTEVENTS_SELECT + 
+						"WHERE C.HADM_ID = ?";
+		ResultSet rs = null;
 		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
-
+			PreparedStatement statement = prepare(query);
+			statement.setInt(1, Integer.parseInt(admission.getAdmissionId()));
+			rs = openCursor(statement);
+			while (rs.next()) {
+				MChartevent event = createChartevent(rs);
+				if(event != null) {
+					consumer.accept(event);
+				}
+			}
+		} catch (SQLException e) {
+			//admission without (some) events must not be sent as complete
+			throw new IllegalStateException("Chartevents of admission " + admission.getAdmissionId() + " can't be read", e);
+		}
+		finally {
+			closeCursor(rs);
+		}
+	}
+	
+	/**
+	 * Stream all labevents of an admission to a consumer.
+	 * Rows are read through a server-side cursor in blocks of Config.eventFetchSize (or with COPY, if Config.copyEvents) and handed over as they arrive
+	 * @param admission admission to read labevents for
+	 * @param patientSubjId subject id of the admission's patient
+	 * @param consumer consumer for each event
+	 * @throws IllegalStateException if the labevents can't be read
+	 */
+	public void streamLabEvents(MAdmission admission, String patientSubjId, Consumer<MLabevent> consumer) {
+		if(!configuration.useTable(MimicTable.LABEVENTS)) {
+			return;
+		}
+		if(configuration.isCopyEvents()) {
+			copyLabEvents("WHERE L.SUBJECT_ID = " + patientSubjId + " AND L.HADM_ID= " + admission.getAdmissionId(), (hadmId, row) -> {
+				MLabevent event = createLabevent(row);
+				if(event != null) {
+					consumer.accept(event);
+				}
+			});
+			return;
+		}
+		
+		String query =  LABEVENTS_SELECT + 
+						"WHERE L.SUBJECT_ID = ? AND L.HADM_ID = ?";
+		ResultSet rs = null;
+		try {
+			PreparedStatement statement = prepare(query);
+			statement.setInt(1, Integer.parseInt(patientSubjId));
+			statement.setInt(2, Integer.parseInt(admission.getAdmissionId()));
+			rs = openCursor(statement);
+			while (rs.next()) {
+				MLabevent event = createLabevent(rs);
+				if(event != null) {
+					consumer.accept(event);
+				}
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Labevents of admission " + admission.getAdmissionId() + " can't be read", e);
+		}
+		finally {
+			closeCursor(rs);
+		}
+	}
+	
+	private ResultSet openCursor(PreparedStatement statement) throws SQLException {
+		//postgres only uses a cursor (and respects the fetch size) inside a transaction
+		beginReadTransaction(getConnection());
+		statement.setFetchSize(configuration.getEventFetchSize());
+		return statement.executeQuery();
+	}
+	
+	private void closeCursor(ResultSet rs) {
+		//statement stays open for reuse
+		if(rs != null) {
+			try {
+				rs.close();
+			} catch (SQLException e) {
+				LOG.log(Level.WARNING, "Cursor can't be closed", e);
+			}
+		}
+		//also after a failed close: no transaction left open on the connection
+		try {
+			endReadTransaction(getConnection());
+		} catch (SQLException e) {
+			LOG.log(Level.WARNING, "Read transaction can't be ended", e);
+		}
+	}
+	
+	private void copyChartEvents(String condition, BiConsumer<String, EventCopyReader> rowHandler) {
+		try (EventCopyReader reader = new EventCopyReader(getConnection(), CHARTEVENTS_COPY_SELECT + condition)) {
+			while (reader.next()) {
+				rowHandler.accept(getAdmissionId(reader), reader);
+			}
+		} catch (SQLException | IOException e) {
+			//admissions without (some) events must not be sent as complete
+			throw new IllegalStateException("Chartevents " + condition + " can't be copied", e);
+		}
+	}
+	
+	private void copyLabEvents(String condition, BiConsumer<String, EventCopyReader> rowHandler) {
+		try (EventCopyReader reader = new EventCopyReader(getConnection(), LABEVENTS_COPY_SELECT + condition)) {
+			while (reader.next()) {
+				rowHandler.accept(getAdmissionId(reader), reader);
+			}
+		} catch (SQLException | IOException e) {
+			//admissions without (some) events must not be sent as complete
+			throw new IllegalStateException("Labevents " + condition + " can't be copied", e);
+		}
+	}
+	
+	private String getAdmissionId(EventCopyReader reader) {
+		//HADM_ID in column 2 (labevents: might be null)
+		return reader.isNull(2) ? null : String.valueOf(reader.getInt(2));
+	}
+	
+	private void appendChartevent(EventCopyReader reader, MCharteventBlock events) {
+		//Value = null ausschließen -> kein Wert; only items in dictionary
+		int itemId = reader.getInt(8);
+		if(reader.isNull(5) || !itemLabels.containsKey(itemId)) {
+			return;
+		}
+		boolean hasNumValue = !reader.isNull(6);
+		events.add(reader.getTimestamp(3), reader.getInt(4), itemId, reader.getString(5), 
+				hasNumValue, hasNumValue ? reader.getDouble(6) : 0, reader.getString(7));
+	}
+	
+	private void appendLabevent(EventCopyReader reader, MLabeventBlock labevents) {
+		//Value = null ausschließen -> kein Wert; only items in dictionary
+		int itemId = reader.getInt(8);
+		if(reader.isNull(4) || !labItems.containsKey(itemId)) {
+			return;
+		}
+		boolean hasNumValue = !reader.isNull(5);
+		labevents.add(reader.getTimestamp(3), itemId, reader.getString(4), hasNumValue, hasNumValue ? reader.getDouble(5) : 0, 
+				reader.getString(6), "abnormal".equals(reader.getString(7)));
+	}
+	
+	/**
+	 * Append a row of CHARTEVENTS_SELECT to the events of an admission - without an event object
+	 * @param rs result set at the row
+	 * @param events chartevents of the admission
+	 * @throws SQLException
+	 */
+	void appendChartevent(ResultSet rs, MCharteventBlock events) throws SQLException {
+		//Value = null ausschließen -> kein Wert; only items in dictionary
+		int itemId = rs.getInt(8);
+		String value = rs.getString(5);
+		if(value == null || !itemLabels.containsKey(itemId)) {
+			return;
+		}
+		double numValue = rs.getDouble(6);
+		boolean hasNumValue = !rs.wasNull();
+		events.add(rs.getTimestamp(3), rs.getInt(4), itemId, value, hasNumValue, numValue, rs.getString(7));
+	}
+	
+	/**
+	 * Append a row of LABEVENTS_SELECT to the labevents of an admission - without an event object
+	 * @param rs result set at the row
+	 * @param labevents labevents of the admission
+	 * @throws SQLException
+	 */
+	void appendLabevent(ResultSet rs, MLabeventBlock labevents) throws SQLException {
+		//Value = null ausschließen -> kein Wert; only items in dictionary
+		int itemId = rs.getInt(8);
+		String value = rs.getString(4);
+		if(value == null || !labItems.containsKey(itemId)) {
+			return;
+		}
+		double numValue = rs.getDouble(5);
+		boolean hasNumValue = !rs.wasNull();
+		//"delta" - might mean both, not considered
+		labevents.add(rs.getTimestamp(3), itemId, value, hasNumValue, numValue, rs.getString(6), "abnormal".equals(rs.getString(7)));
+	}
+	
+	MChartevent createChartevent(EventCopyReader reader) {
+		//Value = null ausschließen -> kein Wert; only items in dictionary
+		String label = itemLabels.get(reader.getInt(8));
+		if(reader.isNull(5) || label == null) {
+			return null;
+		}
+		
+		MChartevent event = new MChartevent();
+		event.setRecordDate(reader.getTimestamp(3));
+		event.setCareGiverId(reader.getInt(4));
+		event.setItemId(reader.getInt(8));
+		event.setMeasurementType(label);
+		event.setValue(reader.getString(5));
+		if(!reader.isNull(6)) {
+			event.setNumValue(reader.getDouble(6));
+		}
+		if(!reader.isNull(7)) {
+			event.setUnit(reader.getString(7));
+		}
+		return event;
+	}
+	
+	MLabevent createLabevent(EventCopyReader reader) {
+		//Value = null ausschließen -> kein Wert; only items in dictionary
+		MLabItem item = labItems.get(reader.getInt(8));
+		if(reader.isNull(4) || item == null) {
+			return null;
+		}
+		
+		MLabevent event = new MLabevent();
+		event.setAcquisitionDate(reader.getTimestamp(3));
+		event.setItemId(reader.getInt(8));
+		event.setMeasurementType(item.getLabel());
+		event.setFluid(item.getFluid());
+		if(item.getLoinc() != null) {
+			event.setLoinc(item.getLoinc());
+		}
+		event.setValue(reader.getString(4));
+		if(!reader.isNull(5)) {
+			event.setNumValue(reader.getDouble(5));
+		}
+		if(!reader.isNull(6)) {
+			event.setUnit(reader.getString(6));
+		}
+		//Flag
+		if(!reader.isNull(7) && "abnormal".equals(reader.getString(7))) {
+			event.setAbnormal(true);
+		}
+		return event;
+	}
+	
+	MChartevent createChartevent(ResultSet rs) throws SQLException {
+		//Value = null ausschließen -> kein Wert; only items in dictionary
+		String label = itemLabels.get(rs.getInt(8));
+		if(rs.getObject(5) == null || label == null) {
+			return null;
+		}
+		
+		MChartevent event = new MChartevent();
+		 
+		//Rekord-Datum
+		event.setRecordDate(rs.getTimestamp(3));
+		 
+		//CareGiver
+		event.setCareGiverId(rs.getInt(4));
+		 
+		//Type (Item)
+		event.setItemId(rs.getInt(8));
+		event.setMeasurementType(label);
+		 
+		//Value + ValueNum
+		event.setValue(rs.getString(5));
+		if(rs.getObject(6) != null) {
+			event.setNumValue(rs.getDouble(6));
+		}
+		 		 
+		//Unit
+		if(rs.getObject(7) != null) {
+			event.setUnit(rs.getString(7));
+		}
+		return event;
+	}
+	
+	private void getLabEvents(MAdmission admission, String patientSubjId) {
+		if(configuration.isCopyEvents()) {
+			copyLabEvents("WHERE L.SUBJECT_ID = " + patientSubjId + " AND L.HADM_ID= " + admission.getAdmissionId(), (hadmId, row) -> appendLabevent(row, admission.getLabEvents()));
+			return;
+		}
+		
+		String query =  LABEVENTS_SELECT + 
+						"WHERE L.SUBJECT_ID = ? AND L.HADM_ID = ?";
+		try (ResultSet rs = executeForAdmission(query, patientSubjId, admission)) {
 			 while (rs.next()) { 
-				 //Value = null ausschließen -> kein Wert
-				 if(rs.getObject(4) != null) {
-				 
-					 MLabevent event = new MLabevent();
-					 
-					 //Rekord-Datum
-					 event.setAcquisitionDate(rs.getDate(3));
-					 				 
-					 //Type (Item)
-					 event.setMeasurementType(rs.getString(8));
-					 
-					 //Fluid 
-					 event.setFluid(rs.getString(9));
-					 
-					 //Loinc-Code
-					 if(rs.getObject(10) != null) {
-						 event.setLoinc(rs.getString(10));
-					 }
-					 
-					 //Value + ValueNum
-					 event.setValue(rs.getString(4));
-					 if(rs.getObject(5) != null) {
-						 event.setNumValue(rs.getDouble(5));
-					 }
-					 		 
-					 //Unit
-					 if(rs.getObject(6) != null) {
-						 event.setUnit(rs.getString(6));
-					 }
-					 
-					 //Flag
-					 //"delta" - might mean both, not considered
-					 if(rs.getObject(7) != null && rs.getString(7) == "abnormal") {
-						 event.setAbnormal(true);
-					 }
-					 
-					 admission.addLabEvent(event);
-				 
-				 }
+				 appendLabevent(rs, admission.getLabEvents());
 			 }
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException("Labevents of admission " + admission.getAdmissionId() + " can't be read", e);
+		}
+	}
+	
+	MLabevent createLabevent(ResultSet rs) throws SQLException {
+		//Value = null ausschließen -> kein Wert; only items in dictionary
+		MLabItem item = labItems.get(rs.getInt(8));
+		if(rs.getObject(4) == null || item == null) {
+			return null;
+		}
+		
+		MLabevent event = new MLabevent();
+		 
+		//Rekord-Datum
+		event.setAcquisitionDate(rs.getTimestamp(3));
+		 				 
+		//Type (Item)
+		event.setItemId(rs.getInt(8));
+		event.setMeasurementType(item.getLabel());
+		 
+		//Fluid 
+		event.setFluid(item.getFluid());
+		 
+		//Loinc-Code
+		if(item.getLoinc() != null) {
+			event.setLoinc(item.getLoinc());
+		}
+		 
+		//Value + ValueNum
+		event.setValue(rs.getString(4));
+		if(rs.getObject(5) != null) {
+			event.setNumValue(rs.getDouble(5));
 		}
+		 		 
+		//Unit
+		if(rs.getObject(6) != null) {
+			event.setUnit(rs.getString(6));
+		}
+		 
+		//Flag
+		//"delta" - might mean both, not considered
+		if(rs.getObject(7) != null && "abnormal".equals(rs.getString(7))) {
+			event.setAbnormal(true);
+		}
+		return event;
 	}
 	
 	private void getNoteEvents(MAdmission admission, String patientSubjId) {
-		String query =  "SELECT * " +
-						"FROM NOTEEVENTS " +
-						"WHERE SUBJECT_ID = " + patientSubjId + " AND HADM_ID= " + admission.getAdmissionId();
-		PreparedStatement statement;
-		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
+		String query =  NOTEEVENTS_SELECT + 
+						"WHERE SUBJECT_ID = ? AND HADM_ID = ?";
+		try (ResultSet rs = executeForAdmission(query, patientSubjId, admission)) {
 			 while (rs.next()) { 
-				 
-				 boolean isError = rs.getString(10) == "1";
-				 
-				 MNoteevent event = new MNoteevent();
-				 
-				 event.setHasError(isError);
-
-				 //Charttime (incl. date; 5) and Chartdate (4) - two columns..
-				 if(rs.getObject(5) != null) {
-					 event.setChartdate(rs.getDate(5));
-				 }
-				 else{
-					 event.setChartdate(rs.getDate(4));
-				 }
+				 admission.addNoteEvent(createNoteevent(rs));
+			 }
+		} catch (SQLException e) {
+			throw new IllegalStateException("Noteevents of admission " + admission.getAdmissionId() + " can't be read", e);
+		}
+	}
+	
+	MNoteevent createNoteevent(ResultSet rs) throws SQLException {
+		boolean isError = "1".equals(rs.getString(9));
+		 
+		MNoteevent event = new MNoteevent();
+		event.setRowId(rs.getInt(1));
+		 
+		event.setHasError(isError);
 
-				 //might be null
-				 event.setCaregiverId(rs.getInt(9));
+		//Charttime (incl. date; 5) and Chartdate (4) - two columns..
+		if(rs.getObject(5) != null) {
+			event.setChartdate(rs.getDate(5));
+		}
+		else{
+			event.setChartdate(rs.getDate(4));
+		}
 
-				 event.setCategory(rs.getString(7));
-				 event.setDescription(rs.getString(8));
+		//might be null
+		event.setCaregiverId(rs.getInt(8));
 
-				 event.setText(rs.getString(11));
+		event.setCategory(rs.getString(6));
+		event.setDescription(rs.getString(7));
 
-				 admission.addNoteEvent(event);
-				 
-			 }
-			
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		event.setText(rs.getString(10));
+		return event;
 	}
 	
 	private void getDiagnoses(String patId, MAdmission adm) {
-		String query = "SELECT *" + 
-					"	FROM diagnoses_icd d" + 
-					"   INNER JOIN d_icd_diagnoses i ON d.icd9_code = i.icd9_code" + 
-					"   WHERE d.subject_id = " + patId + "AND d.hadm_id = " + adm.getAdmissionId() + 
-					"   ORDER BY d.seq_num";
-		PreparedStatement statement;
-		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
+		String query = DIAGNOSES_SELECT + 
+					"WHERE SUBJECT_ID = ? AND HADM_ID = ? ORDER BY SEQ_NUM";
+		try (ResultSet rs = executeForAdmission(query, patId, adm)) {
 			while (rs.next()) {
-					MDiagnose mDiag = new MDiagnose();
-					mDiag.setIcd9Code(rs.getString(5));
-					mDiag.setShortTitle(rs.getString(8));
-					mDiag.setLongTitle(rs.getString(9));
-					mDiag.setSeqNumber(rs.getInt(4));
-
-					adm.addDiagnose(mDiag);
+					MDiagnose mDiag = createDiagnose(rs);
+					if(mDiag != null) {
+						adm.addDiagnose(mDiag);
+					}
 			 }
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException("Diagnoses of admission " + adm.getAdmissionId() + " can't be read", e);
+		}
+	}
+	
+	MDiagnose createDiagnose(ResultSet rs) throws SQLException {
+		//only codes in dictionary
+		MIcdCode code = icdDiagnoses.get(rs.getString(5));
+		if(code == null) {
+			return null;
 		}
+		
+		MDiagnose mDiag = new MDiagnose();
+		mDiag.setIcd9Code(rs.getString(5));
+		mDiag.setShortTitle(code.getShortTitle());
+		mDiag.setLongTitle(code.getLongTitle());
+		mDiag.setSeqNumber(rs.getInt(4));
+		return mDiag;
 	}
 	
 	private void getProcedures(String patId, MAdmission adm) {
-		String query = "SELECT *" + 
-					"	FROM procedures_icd p" + 
-					"   INNER JOIN d_icd_procedures i ON p.icd9_code = i.icd9_code" + 
-					"   WHERE p.subject_id = " + patId + "AND p.hadm_id = " + adm.getAdmissionId() + 
-					"   ORDER BY p.seq_num";
-		PreparedStatement statement;
-		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
+		String query = PROCEDURES_SELECT + 
+					"WHERE SUBJECT_ID = ? AND HADM_ID = ? ORDER BY SEQ_NUM";
+		try (ResultSet rs = executeForAdmission(query, patId, adm)) {
 			while (rs.next()) {
-					MProcedure mProc = new MProcedure();
-					mProc.setIcd9Code(rs.getString(5));
-					mProc.setShortTitle(rs.getString(8));
-					mProc.setLongTitle(rs.getString(9));
-					mProc.setSeqNumber(rs.getInt(4));
-
-					adm.addProcedure(mProc);
+					MProcedure mProc = createProcedure(rs);
+					if(mProc != null) {
+						adm.addProcedure(mProc);
+					}
 			 }
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException("Procedures of admission " + adm.getAdmissionId() + " can't be read", e);
 		}
 	}
 	
+	MProcedure createProcedure(ResultSet rs) throws SQLException {
+		//only codes in dictionary
+		MIcdCode code = icdProcedures.get(rs.getString(5));
+		if(code == null) {
+			return null;
+		}
+		
+		MProcedure mProc = new MProcedure();
+		mProc.setIcd9Code(rs.getString(5));
+		mProc.setShortTitle(code.getShortTitle());
+		mProc.setLongTitle(code.getLongTitle());
+		mProc.setSeqNumber(rs.getInt(4));
+		return mProc;
+	}
+	
+	/**
+	 * Load dictionary tables (d_items, d_labitems, d_icd_diagnoses, d_icd_procedures) into memory.
+	 * Has to be called once before patients are read - event, diagnose and procedure rows only contain the item ids / codes
+	 * @throws IllegalStateException if a dictionary can't be read
+	 */
+	public void loadDictionaries() {
+		itemLabels = new HashMap<Integer,String>();
+		labItems = new HashMap<Integer,MLabItem>();
+		icdDiagnoses = new HashMap<String,MIcdCode>();
+		icdProcedures = new HashMap<String,MIcdCode>();
+		
+		try (Statement statement = getConnection().createStatement()) {
+			try (ResultSet rs = statement.executeQuery("SELECT ITEMID, LABEL FROM D_ITEMS")) {
+				while (rs.next()) {
+					itemLabels.put(rs.getInt(1), intern(rs.getString(2)));
+				}
+			}
+			
+			try (ResultSet rs = statement.executeQuery("SELECT ITEMID, LABEL, FLUID, LOINC_CODE FROM D_LABITEMS")) {
+				while (rs.next()) {
+					MLabItem item = new MLabItem();
+					item.setLabel(intern(rs.getString(2)));
+					item.setFluid(intern(rs.getString(3)));
+					item.setLoinc(intern(rs.getString(4)));
+					labItems.put(rs.getInt(1), item);
+				}
+			}
+			
+			try (ResultSet rs = statement.executeQuery("SELECT ICD9_CODE, SHORT_TITLE, LONG_TITLE FROM D_ICD_DIAGNOSES")) {
+				while (rs.next()) {
+					icdDiagnoses.put(rs.getString(1), createIcdCode(rs));
+				}
+			}
+			
+			try (ResultSet rs = statement.executeQuery("SELECT ICD9_CODE, SHORT_TITLE, LONG_TITLE FROM D_ICD_PROCEDURES")) {
+				while (rs.next()) {
+					icdProcedures.put(rs.getString(1), createIcdCode(rs));
+				}
+			}
+			//event blocks keep item ids only
+			MCharteventBlock.setItemLabels(itemLabels);
+			MLabeventBlock.setLabItems(labItems);
+		} catch (SQLException e) {
+			//without dictionaries all events, diagnoses and procedures would be dropped silently
+			throw new IllegalStateException("Dictionaries can't be read", e);
+		}
+	}
+	
+	private MIcdCode createIcdCode(ResultSet rs) throws SQLException {
+		MIcdCode code = new MIcdCode();
+		code.setShortTitle(intern(rs.getString(2)));
+		code.setLongTitle(intern(rs.getString(3)));
+		return code;
+	}
+	
+	private String intern(String value) {
+		return value != null ? value.intern() : null;
+	}
+	
 	/**
 	 * Get dictionary with all caregivers - Key: Id, Value: Caregiver-Object
 	 * @return dictionary
@@ -415,10 +1598,8 @@ public class ConnectDB {
 		String query = "SELECT * FROM caregivers";
 		HashMap<Integer,MCaregiver> caregivers = new HashMap<Integer,MCaregiver>();
 		
-		PreparedStatement statement;
-		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
+		try (PreparedStatement statement = getConnection().prepareStatement(query);
+			 ResultSet rs = statement.executeQuery()) {
 			while (rs.next()) {
 					MCaregiver cg = new MCaregiver();
 					cg.setCaregiverId(rs.getInt(2));
@@ -436,82 +1617,108 @@ public class ConnectDB {
 	}
 	
 	private void getPrecriptions(MAdmission admission, String patientSubjId) {
-		String query =  "SELECT * " +
-						"FROM PRESCRIPTIONS " +
-						"WHERE SUBJECT_ID = " + patientSubjId + " AND HADM_ID= " + admission.getAdmissionId();
-		PreparedStatement statement;
-		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
+		String query =  PRESCRIPTIONS_SELECT + 
+						"WHERE SUBJECT_ID = ? AND HADM_ID = ?";
+		try (ResultSet rs = executeForAdmission(query, patientSubjId, admission)) {
 			 while (rs.next()) { 			 
-				 MPrescription pres = new MPrescription();
-				 
-				 pres.setStart(rs.getDate(5));
-				 pres.setEnd(rs.getDate(6));
-				 
-				 pres.setDrugtype(rs.getString(7));
-				 pres.setDrug(rs.getString(8));
-				 pres.setDrugNamePoe(rs.getString(9));
-				 pres.setDrugNameGeneric(rs.getString(10));
-				 
-				 pres.setFormularyDrugCd(rs.getString(11));
-				 pres.setGsn(rs.getString(12));
-				 pres.setNdc(rs.getString(13));
-				 
-				 pres.setProdStrength(rs.getString(14));
-				 pres.setDoseValRx(rs.getString(15));
-				 pres.setDoseUnitRx(rs.getString(16));
-				 
-				 pres.setFormValDisp(rs.getString(17));
-				 pres.setFormUnitDisp(rs.getString(18));
-				 
-				 pres.setRoute(rs.getString(19));
-				 
-				 admission.addPrescription(pres);
-
+				 admission.addPrescription(createPrescription(rs));
 			 }
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException("Prescriptions of admission " + admission.getAdmissionId() + " can't be read", e);
 		}
 	}
 	
+	MPrescription createPrescription(ResultSet rs) throws SQLException {
+		MPrescription pres = new MPrescription();
+		pres.setRowId(rs.getInt(1));
+		 
+		pres.setStart(rs.getDate(4));
+		pres.setEnd(rs.getDate(5));
+		 
+		pres.setDrugtype(rs.getString(6));
+		pres.setDrug(rs.getString(7));
+		pres.setDrugNamePoe(rs.getString(8));
+		pres.setDrugNameGeneric(rs.getString(9));
+		 
+		pres.setFormularyDrugCd(rs.getString(10));
+		pres.setGsn(rs.getString(11));
+		pres.setNdc(rs.getString(12));
+		 
+		pres.setProdStrength(rs.getString(13));
+		pres.setDoseValRx(rs.getString(14));
+		pres.setDoseUnitRx(rs.getString(15));
+		 
+		pres.setFormValDisp(rs.getString(16));
+		pres.setFormUnitDisp(rs.getString(17));
+		 
+		pres.setRoute(rs.getString(18));
+		return pres;
+	}
+	
 	private void getTransfers(MAdmission admission, String patientSubjId) {
-		String query =  "SELECT * " +
-						"FROM TRANSFERS " +
-						"WHERE SUBJECT_ID = " + patientSubjId + " AND HADM_ID= " + admission.getAdmissionId();
-		PreparedStatement statement;
-		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
+		String query =  TRANSFERS_SELECT + 
+						"WHERE SUBJECT_ID = ? AND HADM_ID = ?";
+		try (ResultSet rs = executeForAdmission(query, patientSubjId, admission)) {
 			int index = 0;
 			 while (rs.next()) {
 				 index++;
-				 MTransfer t = new MTransfer();
-				 
-				 t.setTransferId(rs.getInt(3) + "-" + index);
-				 
-				 t.setEventType(rs.getString(6));
-				 
-				 t.setPrevUnit(rs.getString(7));
-				 t.setCurrUnit(rs.getString(8));
-				 
-				 t.setPrevWard(rs.getInt(9));
-				 t.setCurrWard(rs.getInt(10));
-				 
-				 t.setIntime(rs.getDate(11));
-				 t.setOuttime(rs.getDate(12));
-				 
-				 t.setLengthOfStay(rs.getDouble(13));
-				
-				 admission.addTransfer(t);
-
+				 admission.addTransfer(createTransfer(rs, index));
 			 }
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException("Transfers of admission " + admission.getAdmissionId() + " can't be read", e);
 		}
 	}
+	
+	MTransfer createTransfer(ResultSet rs, int index) throws SQLException {
+		MTransfer t = new MTransfer();
+		 
+		t.setTransferId(rs.getInt(3) + "-" + index);
+		 
+		t.setEventType(rs.getString(4));
+		 
+		t.setPrevUnit(rs.getString(5));
+		t.setCurrUnit(rs.getString(6));
+		 
+		t.setPrevWard(rs.getInt(7));
+		t.setCurrWard(rs.getInt(8));
+		 
+		t.setIntime(rs.getDate(9));
+		t.setOuttime(rs.getDate(10));
+		 
+		t.setLengthOfStay(rs.getDouble(11));
+		return t;
+	}
+
+	/**
+	 * Get one prescription per drug (NDC, GSN, formulary code and name) of all prescriptions (of the cohort, if set)
+	 * @return list of drugs
+	 * @throws IllegalStateException if the prescriptions can't be read
+	 */
+	public List<MPrescription> getMedications() {
+		List<MPrescription> drugs = new ArrayList<MPrescription>();
+		if(!configuration.useTable(MimicTable.PRESCRIPTIONS)) {
+			return drugs;
+		}
+		String query = PRESCRIPTIONS_SELECT.replaceFirst("SELECT ", "SELECT DISTINCT ON (NDC, GSN, FORMULARY_DRUG_CD, DRUG) ") +
+						(cohortSubjectIds != null ? "WHERE SUBJECT_ID = ANY(?) " : "") + 
+						"ORDER BY NDC, GSN, FORMULARY_DRUG_CD, DRUG";
+		
+		try (PreparedStatement statement = getConnection().prepareStatement(query)) {
+			if(cohortSubjectIds != null) {
+				statement.setArray(1, getConnection().createArrayOf("int4", cohortSubjectIds));
+			}
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					drugs.add(createPrescription(rs));
+				}
+			}
+		} catch (SQLException e) {
+			//reference data without some medications -> patient bundles would reference missing resources
+			throw new IllegalStateException("Medications can't be read", e);
+		}
+		
+		return drugs;
+	}
 
 	/**
 	 * Get dictionary with all locations = wards, key = wardId, value: MWard-Object
@@ -520,11 +1727,13 @@ public class ConnectDB {
 	public HashMap<Integer, MWard> getLocations() {
 		String query = "SELECT DISTINCT curr_wardid, curr_careunit FROM transfers";
 		HashMap<Integer,MWard> wards = new HashMap<Integer,MWard>();
+		if(!configuration.useTable(MimicTable.TRANSFERS)) {
+			//no transfers -> no locations needed
+			return wards;
+		}
 		
-		PreparedStatement statement;
-		try {
-			statement = connection.prepareStatement(query);
-			ResultSet rs = statement.executeQuery();
+		try (PreparedStatement statement = getConnection().prepareStatement(query);
+			 ResultSet rs = statement.executeQuery()) {
 			while (rs.next()) {
 					MWard ward = new MWard();
 					ward.setWardId(rs.getInt(1));
@@ -0,0 +1,146 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Resource;
+
+/**
+ * Crosswalk from mimic resources to the ids the fhir server assigned to them, persisted to a file that survives restarts.
+ * Key is the conditional reference of a resource (e.g. Patient?identifier=http://www.imi-mimic.de/patients|249), 
+ * value the server id (e.g. Patient/1234). 
+ * The file is append only (one line per resource: key TAB id), the last line of a key wins
+ * @author Stefanie Ververs
+ *
+ */
+public class Crosswalk {
+	private Path file;
+	private ConcurrentHashMap<String,String> serverIds;
+	
+	/**
+	 * Create crosswalk for file
+	 * @param path path of crosswalk file (created if not existing)
+	 */
+	public Crosswalk(String path) {
+		this.file = Paths.get(path);
+		this.serverIds = new ConcurrentHashMap<String,String>();
+	}
+	
+	/**
+	 * Load all ids from crosswalk file (if there is one)
+	 * @return number of loaded ids
+	 * @throws UncheckedIOException if the crosswalk file can't be read
+	 */
+	public int load() {
+		if(!Files.exists(file)) {
+			return 0;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				int tab = line.lastIndexOf('\t');
+				//incomplete last line (crash while writing) is skipped
+				if(tab > 0 && tab < line.length() - 1) {
+					serverIds.put(line.substring(0, tab), line.substring(tab + 1));
+				}
+			}
+		} catch (IOException e) {
+			//without the ids all resources of earlier runs would be created again
+			throw new UncheckedIOException("Crosswalk file " + file + " can't be read", e);
+		}
+		return serverIds.size();
+	}
+	
+	/**
+	 * Get server id of a resource
+	 * @param resourceType type of resource, e.g. Patient
+	 * @param condition search condition of the conditional create, e.g. identifier=system|value
+	 * @return server id (Type/id); null if unknown
+	 */
+	public String getServerId(String resourceType, String condition) {
+		return serverIds.get(resourceType + "?" + condition);
+	}
+	
+	/**
+	 * Number of known server ids
+	 * @return number of ids
+	 */
+	public int size() {
+		return serverIds.size();
+	}
+	
+	/**
+	 * Record server ids of all conditional created resources of a transaction
+	 * @param request sent bundle
+	 * @param response transaction response of server (same order as request)
+	 * @throws UncheckedIOException if the ids can't be written to the crosswalk file
+	 */
+	public void record(Bundle request, Bundle response) {
+		StringBuilder lines = new StringBuilder();
+		List<BundleEntryComponent> entries = request.getEntry();
+		for(int i = 0; i < entries.size() && i < response.getEntry().size(); i++) {
+			BundleEntryComponent entry = entries.get(i);
+			String key = getKey(entry);
+			String location = response.getEntry().get(i).getResponse().getLocation();
+			if(key == null || location == null) {
+				continue;
+			}
+			String serverId = new IdType(location).toUnqualifiedVersionless().getValue();
+			if(!serverId.equals(serverIds.put(key, serverId))) {
+				lines.append(key).append('\t').append(serverId).append('\n');
+			}
+		}
+		if(lines.length() > 0) {
+			append(lines.toString());
+		}
+	}
+	
+	private String getKey(BundleEntryComponent entry) {
+		String condition = entry.getRequest().getIfNoneExist();
+		if(condition == null) {
+			//only conditional creates -> observations and administrations without conditions are not kept
+			return null;
+		}
+		Resource r = entry.getResource();
+		String type = r != null ? r.fhirType() : entry.getRequest().getUrl();
+		return type + "?" + condition;
+	}
+	
+	private synchronized void append(String lines) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8)));
+			//fsync: ids of a pushed bundle are not lost
+			channel.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Crosswalk file " + file + " can't be written", e);
+		}
+	}
+}
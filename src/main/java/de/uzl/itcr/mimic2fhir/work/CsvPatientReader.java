@@ -0,0 +1,95 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+
+/**
+ * Iterates over the patients from the mimic csv files in blocks (one block = one partition of the csv tables).
+ * Patients are returned without admissions - load them with loadAdmissions, outside of any lock, 
+ * so several workers load their blocks at the same time
+ * @author Stefanie Ververs
+ *
+ */
+public class CsvPatientReader implements Iterator<MPatient> {
+	private CsvSource source;
+	private List<MPatient> patients;
+	private int blockSize;
+	
+	private int index = 0;
+	
+	/**
+	 * Create new reader
+	 * @param source csv source (loads the admissions)
+	 * @param patients all patients (without admissions) in order
+	 * @param blockSize number of patients per partition
+	 */
+	CsvPatientReader(CsvSource source, List<MPatient> patients, int blockSize) {
+		this.source = source;
+		this.patients = patients;
+		this.blockSize = blockSize;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return index < patients.size();
+	}
+
+	@Override
+	public MPatient next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		MPatient mPat = patients.get(index);
+		//patient is not needed here anymore
+		patients.set(index++, null);
+		return mPat;
+	}
+	
+	/**
+	 * Get the remaining patients of the current block (without admissions)
+	 * @return patients; empty if there are no more patients
+	 */
+	public List<MPatient> nextBlock() {
+		int end = Math.min((index / blockSize + 1) * blockSize, patients.size());
+		List<MPatient> block = new ArrayList<MPatient>(Math.max(end - index, 0));
+		while(index < end) {
+			block.add(next());
+		}
+		return block;
+	}
+	
+	/**
+	 * Load admissions (with all admission data) of patients from the partitions of their blocks
+	 * @param block patients returned by nextBlock
+	 */
+	public void loadAdmissions(List<MPatient> block) {
+		source.loadAdmissions(block);
+	}
+	
+	/**
+	 * Number of patients returned so far
+	 * @return number of patients
+	 */
+	public int getNumberOfReturnedPatients() {
+		return index;
+	}
+}
@@ -0,0 +1,296 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Fast csv tokenizer for the mimic csv files: reads the raw bytes through a large buffer,
+ * fields of the current row are kept in one reusable byte buffer (no objects per field).
+ * Quoted fields may contain separators, line breaks and escaped quotes (""); empty unquoted fields are null
+ * @author Stefanie Ververs
+ *
+ */
+public class CsvReader implements Closeable {
+	private static final int BUFFER_SIZE = 1 << 20;
+	
+	private InputStream in;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+	private int limit;
+	
+	//current row: all field values in one buffer
+	private byte[] rowBuffer = new byte[4096];
+	private int rowLength;
+	private int[] fieldOffsets = new int[32];
+	private int[] fieldLengths = new int[32];
+	private int fieldCount;
+	
+	/**
+	 * Create reader and skip header line
+	 * @param in csv data (uncompressed)
+	 * @throws IOException
+	 */
+	public CsvReader(InputStream in) throws IOException {
+		this.in = in;
+		next();
+	}
+	
+	private int read() throws IOException {
+		if(position >= limit) {
+			limit = in.read(buffer, 0, buffer.length);
+			position = 0;
+			if(limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position++] & 0xff;
+	}
+	
+	private int peek() throws IOException {
+		int b = read();
+		if(b != -1) {
+			position--;
+		}
+		return b;
+	}
+	
+	private void append(int b) {
+		if(rowLength == rowBuffer.length) {
+			rowBuffer = Arrays.copyOf(rowBuffer, rowBuffer.length * 2);
+		}
+		rowBuffer[rowLength++] = (byte)b;
+	}
+	
+	private void addField(int start, boolean quoted) {
+		if(fieldCount == fieldOffsets.length) {
+			fieldOffsets = Arrays.copyOf(fieldOffsets, fieldCount * 2);
+			fieldLengths = Arrays.copyOf(fieldLengths, fieldCount * 2);
+		}
+		fieldOffsets[fieldCount] = start;
+		//null: empty and not quoted
+		fieldLengths[fieldCount] = (!quoted && rowLength == start) ? -1 : rowLength - start;
+		fieldCount++;
+	}
+	
+	/**
+	 * Read next row
+	 * @return false, if there are no more rows
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		fieldCount = 0;
+		rowLength = 0;
+		
+		int b = read();
+		if(b == -1) {
+			return false;
+		}
+		
+		while(true) {
+			int start = rowLength;
+			boolean quoted = b == '"';
+			if(quoted) {
+				while(true) {
+					b = read();
+					if(b == -1) {
+						break;
+					}
+					if(b == '"') {
+						b = read();
+						if(b != '"') {
+							//end of quoted field
+							break;
+						}
+					}
+					append(b);
+				}
+				//skip everything up to next separator
+				while(b != -1 && b != ',' && b != '\n' && b != '\r') {
+					b = read();
+				}
+			}
+			else {
+				while(b != -1 && b != ',' && b != '\n' && b != '\r') {
+					append(b);
+					b = read();
+				}
+			}
+			addField(start, quoted);
+			
+			if(b == ',') {
+				b = read();
+				continue;
+			}
+			if(b == '\r' && peek() == '\n') {
+				read();
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Is column value null (empty)?
+	 * @param column column (1-based, like ResultSet)
+	 * @return true if null
+	 */
+	public boolean isNull(int column) {
+		return column > fieldCount || fieldLengths[column - 1] < 0;
+	}
+	
+	/**
+	 * Get int value (0 if null) - parsed directly from the bytes
+	 * @param column column (1-based)
+	 * @return value
+	 */
+	public int getInt(int column) {
+		if(isNull(column)) {
+			return 0;
+		}
+		int o = fieldOffsets[column - 1];
+		int end = o + fieldLengths[column - 1];
+		boolean negative = false;
+		if(o < end && rowBuffer[o] == '-') {
+			negative = true;
+			o++;
+		}
+		int value = 0;
+		for(; o < end; o++) {
+			int digit = rowBuffer[o] - '0';
+			if(digit < 0 || digit > 9) {
+				//e.g. decimal places
+				break;
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * Get double value (0 if null)
+	 * @param column column (1-based)
+	 * @return value
+	 */
+	public double getDouble(int column) {
+		if(isNull(column)) {
+			return 0;
+		}
+		return Double.parseDouble(getString(column));
+	}
+	
+	/**
+	 * Get text value
+	 * @param column column (1-based)
+	 * @return value or null
+	 */
+	public String getString(int column) {
+		if(isNull(column)) {
+			return null;
+		}
+		return new String(rowBuffer, fieldOffsets[column - 1], fieldLengths[column - 1], StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Get date of a date/timestamp value (yyyy-MM-dd[ HH:mm:ss], time is cut off like ResultSet.getDate)
+	 * @param column column (1-based)
+	 * @return date or null
+	 */
+	public Date getDate(int column) {
+		if(isNull(column) || fieldLengths[column - 1] < 10) {
+			return null;
+		}
+		int o = fieldOffsets[column - 1];
+		int year = digits(o, 4);
+		int month = digits(o + 5, 2);
+		int day = digits(o + 8, 2);
+		return java.sql.Date.valueOf(java.time.LocalDate.of(year, month, day));
+	}
+	
+	/**
+	 * Get date and time of a timestamp value (yyyy-MM-dd HH:mm:ss; only a date: midnight)
+	 * @param column column (1-based)
+	 * @return timestamp or null
+	 */
+	public Date getTimestamp(int column) {
+		if(isNull(column) || fieldLengths[column - 1] < 19) {
+			return getDate(column);
+		}
+		int o = fieldOffsets[column - 1];
+		return java.sql.Timestamp.valueOf(java.time.LocalDateTime.of(digits(o, 4), digits(o + 5, 2), digits(o + 8, 2), 
+				digits(o + 11, 2), digits(o + 14, 2), digits(o + 17, 2)));
+	}
+	
+	/**
+	 * Write current row as csv line (fields quoted if needed; null fields empty, empty fields quoted) 
+	 * -> reading the line again gives the same values
+	 * @param out stream to write to
+	 * @throws IOException
+	 */
+	public void writeRow(OutputStream out) throws IOException {
+		for(int f = 0; f < fieldCount; f++) {
+			if(f > 0) {
+				out.write(',');
+			}
+			int o = fieldOffsets[f];
+			int length = fieldLengths[f];
+			if(length < 0) {
+				continue;
+			}
+			boolean quote = length == 0;
+			for(int i = o; i < o + length && !quote; i++) {
+				byte b = rowBuffer[i];
+				quote = b == ',' || b == '"' || b == '\n' || b == '\r';
+			}
+			if(!quote) {
+				out.write(rowBuffer, o, length);
+				continue;
+			}
+			out.write('"');
+			for(int i = o; i < o + length; i++) {
+				if(rowBuffer[i] == '"') {
+					out.write('"');
+				}
+				out.write(rowBuffer[i]);
+			}
+			out.write('"');
+		}
+		out.write('\n');
+	}
+	
+	private int digits(int offset, int count) {
+		int value = 0;
+		for(int i = offset; i < offset + count; i++) {
+			value = value * 10 + (rowBuffer[i] - '0');
+		}
+		return value;
+	}
+	
+	/**
+	 * Close underlying stream
+	 * @throws IOException if the stream can't be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
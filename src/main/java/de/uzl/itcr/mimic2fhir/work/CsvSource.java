@@ -0,0 +1,577 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import de.uzl.itcr.mimic2fhir.MimicTable;
+import de.uzl.itcr.mimic2fhir.model.MAdmission;
+import de.uzl.itcr.mimic2fhir.model.MCaregiver;
+import de.uzl.itcr.mimic2fhir.model.MCharteventBlock;
+import de.uzl.itcr.mimic2fhir.model.MDiagnose;
+import de.uzl.itcr.mimic2fhir.model.MIcdCode;
+import de.uzl.itcr.mimic2fhir.model.MLabItem;
+import de.uzl.itcr.mimic2fhir.model.MLabeventBlock;
+import de.uzl.itcr.mimic2fhir.model.MNoteevent;
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+import de.uzl.itcr.mimic2fhir.model.MPrescription;
+import de.uzl.itcr.mimic2fhir.model.MProcedure;
+import de.uzl.itcr.mimic2fhir.model.MTransfer;
+import de.uzl.itcr.mimic2fhir.model.MWard;
+import de.uzl.itcr.mimic2fhir.tools.Helper;
+
+/**
+ * Reads mimic data directly from the mimic csv files (TABLE.csv.gz or TABLE.csv in Config.csvPath) - no postgres needed.
+ * Patients are read in blocks: each admission table is read only once and its rows are split by SUBJECT_ID into one 
+ * scratch file per block (partition), loading a block reads only the partitions of the block and groups the rows by HADM_ID
+ * @author Stefanie Ververs
+ *
+ */
+public class CsvSource implements MimicSource {
+	private static final int DEFAULT_BLOCK_SIZE = 2000;
+	
+	private File directory;
+	private int blockSize;
+	private Config configuration;
+	
+	//Cohort from Config.cohortFile (null: all patients / all admissions)
+	private HashSet<Integer> cohortSubjectIds;
+	private HashSet<Integer> cohortAdmissionIds;
+	
+	//Partitions: subjectId -> block; one gzipped csv file per table and block in partitionDirectory
+	private HashMap<Integer,Integer> blockOfSubject;
+	private File partitionDirectory;
+	
+	//Dictionaries
+	private HashMap<Integer,String> itemLabels;
+	private HashMap<Integer,MLabItem> labItems;
+	private HashMap<String,MIcdCode> icdDiagnoses;
+	private HashMap<String,MIcdCode> icdProcedures;
+	
+	/**
+	 * Create csv source with Config-Object
+	 * @param configuration
+	 */
+	public CsvSource(Config configuration) {
+		this.configuration = configuration;
+		this.directory = new File(configuration.getCsvPath());
+		this.blockSize = configuration.getCsvBlockSize() > 0 ? configuration.getCsvBlockSize() : DEFAULT_BLOCK_SIZE;
+	}
+	
+	private CsvReader openTable(String table) throws IOException {
+		for(String name : new String[] {table.toUpperCase(), table.toLowerCase()}) {
+			File file = new File(directory, name + ".csv.gz");
+			if(file.exists()) {
+				InputStream in = new GZIPInputStream(new FileInputStream(file), 65536);
+				return new CsvReader(in);
+			}
+			file = new File(directory, name + ".csv");
+			if(file.exists()) {
+				//CsvReader reads with its own large buffer
+				return new CsvReader(new FileInputStream(file));
+			}
+		}
+		throw new FileNotFoundException(table + ".csv(.gz) not found in " + directory);
+	}
+	
+	private void readTable(String table, Consumer<CsvReader> rowHandler) {
+		try {
+			readRows(openTable(table), rowHandler);
+		} catch (IOException e) {
+			//a missing or truncated table would silently drop its rows
+			throw new IllegalStateException("Csv file of " + table + " can't be read", e);
+		}
+	}
+	
+	private void readRows(CsvReader reader, Consumer<CsvReader> rowHandler) throws IOException {
+		try (CsvReader rows = reader) {
+			while(rows.next()) {
+				rowHandler.accept(rows);
+			}
+		}
+	}
+	
+	@Override
+	public HashMap<Integer,MCaregiver> getCaregivers() {
+		HashMap<Integer,MCaregiver> caregivers = new HashMap<Integer,MCaregiver>();
+		readTable("CAREGIVERS", row -> {
+			MCaregiver cg = new MCaregiver();
+			cg.setCaregiverId(row.getInt(2));
+			cg.setLabel(row.getString(3));
+			cg.setDescription(row.getString(4));
+			caregivers.put(cg.getCaregiverId(), cg);
+		});
+		return caregivers;
+	}
+	
+	@Override
+	public HashMap<Integer,MWard> getLocations() {
+		HashMap<Integer,MWard> wards = new HashMap<Integer,MWard>();
+		if(!configuration.useTable(MimicTable.TRANSFERS)) {
+			//no transfers -> no locations needed
+			return wards;
+		}
+		readTable("TRANSFERS", row -> {
+			MWard ward = new MWard();
+			ward.setWardId(row.getInt(10));
+			ward.setCareUnit(row.getString(8));
+			wards.put(ward.getWardId(), ward);
+		});
+		return wards;
+	}
+	
+	@Override
+	public List<MPrescription> getMedications() {
+		List<MPrescription> drugs = new ArrayList<MPrescription>();
+		loadCohort();
+		
+		HashSet<String> keys = new HashSet<String>();
+		readAdmissionTable(MimicTable.PRESCRIPTIONS, row -> {
+			if(cohortSubjectIds == null || cohortSubjectIds.contains(row.getInt(2))) {
+				//NDC, GSN, FORMULARY_DRUG_CD, DRUG
+				if(keys.add(row.getString(13) + "|" + row.getString(12) + "|" + row.getString(11) + "|" + row.getString(8))) {
+					drugs.add(createPrescription(row));
+				}
+			}
+		});
+		return drugs;
+	}
+	
+	/**
+	 * Get reader for complete patients (incl. admissions) ordered by rowId
+	 * @param limit max. number of patients; 0 if all
+	 * @param afterRowId start after this rowId (0 for first patient)
+	 * @return patient reader
+	 */
+	public CsvPatientReader getPatientReader(int limit, int afterRowId) {
+		loadDictionaries();
+		loadCohort();
+		
+		List<MPatient> patients = new ArrayList<MPatient>();
+		readTable("PATIENTS", row -> {
+			MPatient mPat = new MPatient();
+			mPat.setRowId(row.getInt(1));
+			mPat.setPatientSubjectId(row.getString(2));
+			mPat.setGender(row.getString(3));
+			mPat.setBirthDate(row.getDate(4));
+			mPat.setDeathDate(row.getDate(5));
+			//shard: only subjects of this shard
+			boolean inShard = !configuration.isSharded() || row.getInt(2) % configuration.getShardCount() == configuration.getShardIndex();
+			boolean inCohort = cohortSubjectIds == null || cohortSubjectIds.contains(row.getInt(2));
+			if(mPat.getRowId() > afterRowId && inShard && inCohort) {
+				patients.add(mPat);
+			}
+		});
+		patients.sort(Comparator.comparingInt(MPatient::getRowId));
+		if(limit > 0 && patients.size() > limit) {
+			patients.subList(limit, patients.size()).clear();
+		}
+		
+		blockOfSubject = new HashMap<Integer,Integer>();
+		for(int i = 0; i < patients.size(); i++) {
+			blockOfSubject.put(Integer.valueOf(patients.get(i).getPatientSubjectId()), i / blockSize);
+		}
+		partitionTables();
+		return new CsvPatientReader(this, patients, blockSize);
+	}
+	
+	/**
+	 * Read every admission table once and write its rows into the partition file of the patient's block 
+	 * (rows of other patients are dropped)
+	 */
+	private void partitionTables() {
+		try {
+			File parent = configuration.getSpillDirectory() != null ? new File(configuration.getSpillDirectory()) : null;
+			partitionDirectory = parent != null ? Files.createTempDirectory(parent.toPath(), "mimic2fhir-csv").toFile() 
+												: Files.createTempDirectory("mimic2fhir-csv").toFile();
+			partitionTable("ADMISSIONS");
+			for(MimicTable table : new MimicTable[] {MimicTable.DIAGNOSES_ICD, MimicTable.PROCEDURES_ICD, MimicTable.CHARTEVENTS, 
+					MimicTable.LABEVENTS, MimicTable.NOTEEVENTS, MimicTable.PRESCRIPTIONS, MimicTable.TRANSFERS}) {
+				//disabled tables are not read at all
+				if(configuration.useTable(table)) {
+					partitionTable(table.name());
+				}
+			}
+		} catch (IOException e) {
+			//missing partitions would silently drop data of the patients
+			throw new IllegalStateException("Partitioning the csv files failed", e);
+		}
+	}
+	
+	private void partitionTable(String table) throws IOException {
+		HashMap<Integer,OutputStream> partitions = new HashMap<Integer,OutputStream>();
+		try (CsvReader reader = openTable(table)) {
+			while(reader.next()) {
+				//SUBJECT_ID in column 2 in all admission tables
+				Integer block = blockOfSubject.get(reader.getInt(2));
+				if(block == null) {
+					continue;
+				}
+				OutputStream out = partitions.get(block);
+				if(out == null) {
+					out = openPartition(table, block);
+					partitions.put(block, out);
+				}
+				reader.writeRow(out);
+			}
+		}
+		finally {
+			for(OutputStream out : partitions.values()) {
+				out.close();
+			}
+		}
+	}
+	
+	private OutputStream openPartition(String table, int block) throws IOException {
+		//partitions are read only once -> fastest compression
+		OutputStream out = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(partitionFile(table, block)), 65536) {
+			{
+				def.setLevel(Deflater.BEST_SPEED);
+			}
+		}, 65536);
+		//header line (skipped by CsvReader)
+		out.write((table + "\n").getBytes(StandardCharsets.UTF_8));
+		return out;
+	}
+	
+	private File partitionFile(String table, int block) {
+		return new File(partitionDirectory, table + "-" + block + ".csv.gz");
+	}
+	
+	private void readPartitions(String table, Set<Integer> blocks, Consumer<CsvReader> rowHandler) {
+		for(Integer block : blocks) {
+			File file = partitionFile(table, block);
+			if(!file.exists()) {
+				//no rows of this block
+				continue;
+			}
+			try {
+				readRows(new CsvReader(new GZIPInputStream(new FileInputStream(file), 65536)), rowHandler);
+			} catch (IOException e) {
+				//the block would be converted without these rows
+				throw new IllegalStateException("Partition " + file + " can't be read", e);
+			}
+		}
+	}
+	
+	private void loadCohort() {
+		if(configuration.getCohortFile() == null || cohortSubjectIds != null) {
+			return;
+		}
+		try {
+			List<Integer> ids = Helper.readIds(configuration.getCohortFile());
+			cohortSubjectIds = new HashSet<Integer>();
+			if(configuration.isCohortAdmissionIds()) {
+				//patients of the admissions
+				cohortAdmissionIds = new HashSet<Integer>(ids);
+				readTable("ADMISSIONS", row -> {
+					if(cohortAdmissionIds.contains(row.getInt(3))) {
+						cohortSubjectIds.add(row.getInt(2));
+					}
+				});
+			}
+			else {
+				cohortSubjectIds.addAll(ids);
+			}
+		} catch (IOException e) {
+			//without the cohort all patients would be converted
+			throw new IllegalStateException("Cohort file " + configuration.getCohortFile() + " can't be read", e);
+		}
+	}
+	
+	private void loadDictionaries() {
+		itemLabels = new HashMap<Integer,String>();
+		labItems = new HashMap<Integer,MLabItem>();
+		icdDiagnoses = new HashMap<String,MIcdCode>();
+		icdProcedures = new HashMap<String,MIcdCode>();
+		
+		readTable("D_ITEMS", row -> itemLabels.put(row.getInt(2), intern(row.getString(3))));
+		readTable("D_LABITEMS", row -> {
+			MLabItem item = new MLabItem();
+			item.setLabel(intern(row.getString(3)));
+			item.setFluid(intern(row.getString(4)));
+			item.setLoinc(intern(row.getString(6)));
+			labItems.put(row.getInt(2), item);
+		});
+		readTable("D_ICD_DIAGNOSES", row -> icdDiagnoses.put(row.getString(2), createIcdCode(row)));
+		readTable("D_ICD_PROCEDURES", row -> icdProcedures.put(row.getString(2), createIcdCode(row)));
+		//event blocks keep item ids only
+		MCharteventBlock.setItemLabels(itemLabels);
+		MLabeventBlock.setLabItems(labItems);
+	}
+	
+	private MIcdCode createIcdCode(CsvReader row) {
+		MIcdCode code = new MIcdCode();
+		code.setShortTitle(intern(row.getString(3)));
+		code.setLongTitle(intern(row.getString(4)));
+		return code;
+	}
+	
+	private String intern(String value) {
+		return value != null ? value.intern() : null;
+	}
+	
+	/**
+	 * Load admissions (with all admission data) for a block of patients - only the partitions of the block are read.
+	 * Can be called by several threads at the same time
+	 * @param patientList patients without admissions (from the patient reader)
+	 */
+	void loadAdmissions(List<MPatient> patientList) {
+		HashMap<Integer,MPatient> patients = new HashMap<Integer,MPatient>();
+		HashMap<Integer,MAdmission> admissions = new HashMap<Integer,MAdmission>();
+		Set<Integer> blocks = new TreeSet<Integer>();
+		for(MPatient mPat : patientList) {
+			Integer subjectId = Integer.valueOf(mPat.getPatientSubjectId());
+			patients.put(subjectId, mPat);
+			blocks.add(blockOfSubject.get(subjectId));
+		}
+		
+		//Admissions
+		readPartitions("ADMISSIONS", blocks, row -> {
+			MPatient mPat = patients.get(row.getInt(2));
+			//cohort of admissions: rows of other admissions are skipped in all tables
+			if(mPat != null && (cohortAdmissionIds == null || cohortAdmissionIds.contains(row.getInt(3)))) {
+				MAdmission mAdm = createAdmission(row);
+				admissions.put(row.getInt(3), mAdm);
+				mPat.addAdmission(mAdm);
+			}
+		});
+		
+		//Diagnoses
+		readAdmissionPartitions(MimicTable.DIAGNOSES_ICD, blocks, row -> {
+			MAdmission mAdm = getAdmission(admissions, row);
+			MIcdCode code = mAdm != null ? icdDiagnoses.get(row.getString(5)) : null;
+			if(code != null) {
+				MDiagnose mDiag = new MDiagnose();
+				mDiag.setIcd9Code(row.getString(5));
+				mDiag.setShortTitle(code.getShortTitle());
+				mDiag.setLongTitle(code.getLongTitle());
+				mDiag.setSeqNumber(row.getInt(4));
+				mAdm.addDiagnose(mDiag);
+			}
+		});
+		
+		//Procedures
+		readAdmissionPartitions(MimicTable.PROCEDURES_ICD, blocks, row -> {
+			MAdmission mAdm = getAdmission(admissions, row);
+			MIcdCode code = mAdm != null ? icdProcedures.get(row.getString(5)) : null;
+			if(code != null) {
+				MProcedure mProc = new MProcedure();
+				mProc.setIcd9Code(row.getString(5));
+				mProc.setShortTitle(code.getShortTitle());
+				mProc.setLongTitle(code.getLongTitle());
+				mProc.setSeqNumber(row.getInt(4));
+				mAdm.addProcedure(mProc);
+			}
+		});
+		
+		//Chartevents
+		readAdmissionPartitions(MimicTable.CHARTEVENTS, blocks, row -> {
+			MAdmission mAdm = getAdmission(admissions, row);
+			if(mAdm != null) {
+				appendChartevent(row, mAdm.getEvents());
+			}
+		});
+		
+		//Labevents
+		readAdmissionPartitions(MimicTable.LABEVENTS, blocks, row -> {
+			MAdmission mAdm = getAdmission(admissions, row);
+			if(mAdm != null) {
+				appendLabevent(row, mAdm.getLabEvents());
+			}
+		});
+		
+		//Noteevents
+		readAdmissionPartitions(MimicTable.NOTEEVENTS, blocks, row -> {
+			MAdmission mAdm = getAdmission(admissions, row);
+			if(mAdm != null) {
+				mAdm.addNoteEvent(createNoteevent(row));
+			}
+		});
+		
+		//Prescriptions
+		readAdmissionPartitions(MimicTable.PRESCRIPTIONS, blocks, row -> {
+			MAdmission mAdm = getAdmission(admissions, row);
+			if(mAdm != null) {
+				mAdm.addPrescription(createPrescription(row));
+			}
+		});
+		
+		//Transfers
+		readAdmissionPartitions(MimicTable.TRANSFERS, blocks, row -> {
+			MAdmission mAdm = getAdmission(admissions, row);
+			if(mAdm != null) {
+				mAdm.addTransfer(createTransfer(row, mAdm.getTransfers().size() + 1));
+			}
+		});
+		
+		//same order as db queries
+		for(MAdmission mAdm : admissions.values()) {
+			mAdm.getDiagnoses().sort(Comparator.comparingInt(MDiagnose::getSeqNumber));
+			mAdm.getProcedures().sort(Comparator.comparingInt(MProcedure::getSeqNumber));
+		}
+	}
+	
+	private void readAdmissionTable(MimicTable table, Consumer<CsvReader> rowHandler) {
+		//disabled tables are not read at all
+		if(configuration.useTable(table)) {
+			readTable(table.name(), rowHandler);
+		}
+	}
+	
+	private void readAdmissionPartitions(MimicTable table, Set<Integer> blocks, Consumer<CsvReader> rowHandler) {
+		if(configuration.useTable(table)) {
+			readPartitions(table.name(), blocks, rowHandler);
+		}
+	}
+	
+	private MAdmission getAdmission(HashMap<Integer,MAdmission> admissions, CsvReader row) {
+		//HADM_ID in column 3 in all admission tables
+		if(row.isNull(3)) {
+			return null;
+		}
+		return admissions.get(row.getInt(3));
+	}
+	
+	private MAdmission createAdmission(CsvReader row) {
+		MAdmission mAdm = new MAdmission();
+		mAdm.setAdmissionId(row.getString(3));
+		mAdm.setAdmissionTime(row.getDate(4));
+		mAdm.setDischargeTime(row.getDate(5));
+		mAdm.setAdmissionType(row.getString(7));
+		mAdm.setDischargeLocation(row.getString(9));
+		mAdm.setMaritalStatus(row.getString(13));
+		mAdm.setLanguage(row.getString(11));
+		mAdm.setReligion(row.getString(12));
+		mAdm.setAdmissionLocation(row.getString(8));
+		return mAdm;
+	}
+	
+	private void appendChartevent(CsvReader row, MCharteventBlock events) {
+		//ROW_ID, SUBJECT_ID, HADM_ID, ICUSTAY_ID, ITEMID, CHARTTIME, STORETIME, CGID, VALUE, VALUENUM, VALUEUOM, ...
+		int itemId = row.getInt(5);
+		if(row.isNull(9) || !itemLabels.containsKey(itemId)) {
+			return;
+		}
+		boolean hasNumValue = !row.isNull(10);
+		events.add(row.getTimestamp(6), row.getInt(8), itemId, row.getString(9), hasNumValue, hasNumValue ? row.getDouble(10) : 0, row.getString(11));
+	}
+	
+	private void appendLabevent(CsvReader row, MLabeventBlock labevents) {
+		//ROW_ID, SUBJECT_ID, HADM_ID, ITEMID, CHARTTIME, VALUE, VALUENUM, VALUEUOM, FLAG
+		int itemId = row.getInt(4);
+		if(row.isNull(6) || !labItems.containsKey(itemId)) {
+			return;
+		}
+		boolean hasNumValue = !row.isNull(7);
+		labevents.add(row.getTimestamp(5), itemId, row.getString(6), hasNumValue, hasNumValue ? row.getDouble(7) : 0, 
+				row.getString(8), "abnormal".equals(row.getString(9)));
+	}
+	
+	private MNoteevent createNoteevent(CsvReader row) {
+		MNoteevent event = new MNoteevent();
+		event.setRowId(row.getInt(1));
+		event.setHasError("1".equals(row.getString(10)));
+		
+		//Charttime (incl. date; 5) and Chartdate (4)
+		if(!row.isNull(5)) {
+			event.setChartdate(row.getDate(5));
+		}
+		else {
+			event.setChartdate(row.getDate(4));
+		}
+		event.setCaregiverId(row.getInt(9));
+		event.setCategory(row.getString(7));
+		event.setDescription(row.getString(8));
+		event.setText(row.getString(11));
+		return event;
+	}
+	
+	private MPrescription createPrescription(CsvReader row) {
+		MPrescription pres = new MPrescription();
+		pres.setRowId(row.getInt(1));
+		pres.setStart(row.getDate(5));
+		pres.setEnd(row.getDate(6));
+		pres.setDrugtype(row.getString(7));
+		pres.setDrug(row.getString(8));
+		pres.setDrugNamePoe(row.getString(9));
+		pres.setDrugNameGeneric(row.getString(10));
+		pres.setFormularyDrugCd(row.getString(11));
+		pres.setGsn(row.getString(12));
+		pres.setNdc(row.getString(13));
+		pres.setProdStrength(row.getString(14));
+		pres.setDoseValRx(row.getString(15));
+		pres.setDoseUnitRx(row.getString(16));
+		pres.setFormValDisp(row.getString(17));
+		pres.setFormUnitDisp(row.getString(18));
+		pres.setRoute(row.getString(19));
+		return pres;
+	}
+	
+	private MTransfer createTransfer(CsvReader row, int index) {
+		MTransfer t = new MTransfer();
+		t.setTransferId(row.getInt(3) + "-" + index);
+		t.setEventType(row.getString(6));
+		t.setPrevUnit(row.getString(7));
+		t.setCurrUnit(row.getString(8));
+		t.setPrevWard(row.getInt(9));
+		t.setCurrWard(row.getInt(10));
+		t.setIntime(row.getDate(11));
+		t.setOuttime(row.getDate(12));
+		t.setLengthOfStay(row.getDouble(13));
+		return t;
+	}
+
+	@Override
+	public void releaseConnection() {
+		//no connections
+	}
+
+	@Override
+	public void close() {
+		//files are closed after each read, only the partitions are left
+		if(partitionDirectory != null) {
+			File[] files = partitionDirectory.listFiles();
+			if(files != null) {
+				for(File file : files) {
+					file.delete();
+				}
+			}
+			partitionDirectory.delete();
+			partitionDirectory = null;
+		}
+	}
+}
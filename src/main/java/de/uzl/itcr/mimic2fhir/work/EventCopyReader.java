@@ -0,0 +1,227 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.PGCopyInputStream;
+
+/**
+ * Reads the result of a query with COPY ... TO STDOUT (FORMAT binary) and decodes the rows directly from the byte stream.
+ * Used for bulk reads of chartevents and labevents - much faster than reading through a ResultSet.
+ * All columns of the query have to be cast to int4, float8, timestamp or text
+ * @author Stefanie Ververs
+ *
+ */
+public class EventCopyReader implements Closeable {
+	private static final byte[] SIGNATURE = "PGCOPY\n\377\r\n\0".getBytes(StandardCharsets.ISO_8859_1);
+	
+	//postgres timestamps: microseconds since 2000-01-01
+	private static final LocalDateTime POSTGRES_EPOCH = LocalDateTime.of(2000, 1, 1, 0, 0);
+	
+	private PGCopyInputStream copyStream;
+	private DataInputStream in;
+	
+	//current row: all field values in one buffer
+	private byte[] rowBuffer = new byte[1024];
+	private int[] fieldOffsets = new int[16];
+	private int[] fieldLengths = new int[16];
+	private int fieldCount;
+	
+	/**
+	 * Start COPY for query
+	 * @param connection connection (no other statement may run on it until the reader is closed)
+	 * @param query select query, columns cast to int4, float8, timestamp or text
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public EventCopyReader(Connection connection, String query) throws SQLException, IOException {
+		CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+		copyStream = new PGCopyInputStream(copyManager.copyOut("COPY (" + query + ") TO STDOUT (FORMAT binary)"));
+		in = new DataInputStream(new BufferedInputStream(copyStream, 65536));
+		try {
+			readHeader();
+		} catch (IOException e) {
+			//end COPY, connection is used for other statements
+			try {
+				copyStream.close();
+			} catch (IOException ce) {
+				e.addSuppressed(ce);
+			}
+			throw e;
+		}
+	}
+	
+	private void readHeader() throws IOException {
+		byte[] signature = new byte[SIGNATURE.length];
+		in.readFully(signature);
+		if(!Arrays.equals(signature, SIGNATURE)) {
+			throw new IOException("No binary COPY data");
+		}
+		//flags
+		in.readInt();
+		//header extension
+		int extensionLength = in.readInt();
+		in.skipBytes(extensionLength);
+	}
+	
+	/**
+	 * Read next row
+	 * @return false, if there are no more rows
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		short count;
+		try {
+			count = in.readShort();
+		}
+		catch(EOFException e) {
+			return false;
+		}
+		if(count < 0) {
+			//trailer - read to end, so COPY is finished regularly
+			while(in.read() != -1) {
+			}
+			return false;
+		}
+		
+		if(count > fieldOffsets.length) {
+			fieldOffsets = new int[count];
+			fieldLengths = new int[count];
+		}
+		fieldCount = count;
+		
+		int position = 0;
+		for(int i = 0; i < count; i++) {
+			int length = in.readInt();
+			fieldOffsets[i] = position;
+			fieldLengths[i] = length;
+			if(length > 0) {
+				if(position + length > rowBuffer.length) {
+					rowBuffer = Arrays.copyOf(rowBuffer, Math.max(rowBuffer.length * 2, position + length));
+				}
+				in.readFully(rowBuffer, position, length);
+				position += length;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Is column value null?
+	 * @param column column (1-based, like ResultSet)
+	 * @return true if null
+	 */
+	public boolean isNull(int column) {
+		return column > fieldCount || fieldLengths[column - 1] < 0;
+	}
+	
+	/**
+	 * Get int4 value (0 if null)
+	 * @param column column (1-based)
+	 * @return value
+	 */
+	public int getInt(int column) {
+		if(isNull(column)) {
+			return 0;
+		}
+		int o = fieldOffsets[column - 1];
+		return ((rowBuffer[o] & 0xff) << 24) | ((rowBuffer[o + 1] & 0xff) << 16) | ((rowBuffer[o + 2] & 0xff) << 8) | (rowBuffer[o + 3] & 0xff);
+	}
+	
+	private long getLong(int column) {
+		int o = fieldOffsets[column - 1];
+		long value = 0;
+		for(int i = 0; i < 8; i++) {
+			value = (value << 8) | (rowBuffer[o + i] & 0xff);
+		}
+		return value;
+	}
+	
+	/**
+	 * Get float8 value (0 if null)
+	 * @param column column (1-based)
+	 * @return value
+	 */
+	public double getDouble(int column) {
+		if(isNull(column)) {
+			return 0;
+		}
+		return Double.longBitsToDouble(getLong(column));
+	}
+	
+	/**
+	 * Get text value
+	 * @param column column (1-based)
+	 * @return value or null
+	 */
+	public String getString(int column) {
+		if(isNull(column)) {
+			return null;
+		}
+		return new String(rowBuffer, fieldOffsets[column - 1], fieldLengths[column - 1], StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Get date of a timestamp value (time is cut off, like ResultSet.getDate)
+	 * @param column column (1-based)
+	 * @return date or null
+	 */
+	public Date getDate(int column) {
+		if(isNull(column)) {
+			return null;
+		}
+		long micros = getLong(column);
+		LocalDate date = POSTGRES_EPOCH.plusSeconds(Math.floorDiv(micros, 1000000L)).toLocalDate();
+		return java.sql.Date.valueOf(date);
+	}
+	
+	/**
+	 * Get date and time of a timestamp value (seconds, like the csv files)
+	 * @param column column (1-based)
+	 * @return timestamp or null
+	 */
+	public Date getTimestamp(int column) {
+		if(isNull(column)) {
+			return null;
+		}
+		long micros = getLong(column);
+		return java.sql.Timestamp.valueOf(POSTGRES_EPOCH.plusSeconds(Math.floorDiv(micros, 1000000L)));
+	}
+	
+	/**
+	 * Stop reading and end COPY
+	 * @throws IOException if COPY can't be ended (connection not usable for other statements)
+	 */
+	@Override
+	public void close() throws IOException {
+		//cancels COPY, if not all rows are read
+		copyStream.close();
+	}
+}
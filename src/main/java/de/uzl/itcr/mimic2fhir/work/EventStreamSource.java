@@ -0,0 +1,51 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.function.Consumer;
+
+import de.uzl.itcr.mimic2fhir.model.MAdmission;
+import de.uzl.itcr.mimic2fhir.model.MChartevent;
+import de.uzl.itcr.mimic2fhir.model.MLabevent;
+
+/**
+ * Source that can stream chartevents and labevents of an admission while the bundles are filled, 
+ * instead of loading them with the admission (postgres db: ConnectDB)
+ * @author Stefanie Ververs
+ *
+ */
+public interface EventStreamSource {
+	/**
+	 * Are chartevents and labevents streamed instead of loaded with the admission?
+	 * @return true, if events have to be read with streamChartEvents and streamLabEvents
+	 */
+	boolean isStreamingEvents();
+	
+	/**
+	 * Stream all chartevents of an admission to a consumer
+	 * @param admission admission to read chartevents for
+	 * @param consumer consumer for each event
+	 */
+	void streamChartEvents(MAdmission admission, Consumer<MChartevent> consumer);
+	
+	/**
+	 * Stream all labevents of an admission to a consumer
+	 * @param admission admission to read labevents for
+	 * @param patientSubjId subject id of the admission's patient
+	 * @param consumer consumer for each event
+	 */
+	void streamLabEvents(MAdmission admission, String patientSubjId, Consumer<MLabevent> consumer);
+}
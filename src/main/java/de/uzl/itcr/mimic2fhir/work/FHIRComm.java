@@ -36,6 +36,7 @@ import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
 public class FHIRComm {
 	private FhirContext ctx;
 	private IGenericClient client;
+	private Crosswalk crosswalk;
 	
 	private Config configuration;
 	
@@ -65,6 +66,14 @@ public class FHIRComm {
 		client.registerInterceptor(new GZipContentInterceptor());
 	}
 	
+	/**
+	 * Set crosswalk: server ids of all conditional created resources of pushed bundles are recorded there
+	 * @param crosswalk crosswalk; null if not needed
+	 */
+	public void setCrosswalk(Crosswalk crosswalk) {
+		this.crosswalk = crosswalk;
+	}
+	
 	/**
 	 * Print bundle as xml to console 
 	 * @param transactionBundle bundle to print
@@ -107,13 +116,20 @@ public class FHIRComm {
 	/**
 	 * Send complete bundle to fhir-server
 	 * @param transactionBundle bundle to push to server
+	 * @return transaction response of server (one entry per entry of bundle)
 	 */
-	public void bundleToServer(Bundle transactionBundle)
+	public Bundle bundleToServer(Bundle transactionBundle)
 	{
 		Bundle resp = client.transaction().withBundle(transactionBundle).execute();
 		
+		//server ids for later bundles and runs
+		if(crosswalk != null) {
+			crosswalk.record(transactionBundle, resp);
+		}
+		
 		//Log response 
 		//writeToFile(ctx.newXmlParser().setPrettyPrint(true).encodeResourceToString(resp));
+		return resp;
 	}
 	
 	private void writeToFile(String text) {
@@ -0,0 +1,279 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Work distribution over several applications (any number of hosts) with a job table in the postgres db:
+ * the coordinator fills the table with one job per patient, every worker claims blocks of open jobs 
+ * with SELECT .. FOR UPDATE SKIP LOCKED and marks them done after conversion.
+ * Claimed jobs have a lease - jobs of a dead worker are claimed again after the lease has expired.
+ * The lease of jobs in work is renewed regularly, so slow blocks are not claimed twice
+ * @author Stefanie Ververs
+ *
+ */
+public class JobTable {
+	private static final Logger LOG = Logger.getLogger(JobTable.class.getName());
+	private static final String DEFAULT_SCHEMA = "mimic2fhir_jobs";
+	//SQLSTATE undefined_table
+	private static final String UNDEFINED_TABLE = "42P01";
+	
+	private ConnectDB dbAccess;
+	private String table;
+	private int leaseSeconds;
+	private String workerName;
+	
+	//jobs in work per worker (host, process and thread) -> lease is renewed until finish
+	private Map<String,Collection<Integer>> heldJobs = new ConcurrentHashMap<String,Collection<Integer>>();
+	private ScheduledExecutorService leaseRenewal;
+	
+	/**
+	 * Create job table access
+	 * @param dbAccess db access (uses the write connection: the connection of the current thread or the shared one)
+	 * @param configuration Config-Object (jobSchema, jobLeaseSeconds)
+	 */
+	public JobTable(ConnectDB dbAccess, Config configuration) {
+		this.dbAccess = dbAccess;
+		String schema = configuration.getJobSchema() != null ? configuration.getJobSchema() : DEFAULT_SCHEMA;
+		this.table = schema + ".patient_jobs";
+		this.leaseSeconds = configuration.getJobLeaseSeconds();
+		//host and process
+		this.workerName = ManagementFactory.getRuntimeMXBean().getName();
+	}
+	
+	/**
+	 * Coordinator: create job table (if not exists) with one open job per patient. 
+	 * An existing table with jobs is kept (restart of the coordinator continues the open jobs), unless reset is set.
+	 * The job number is used as patient number (-> bundle numbers are unique over all workers)
+	 * @param limit max. number of patients; 0 if all
+	 * @param orderBySize order jobs by number of chartevents (largest first), so no big patients are left for the end
+	 * @param cohortSubjectIds only these patients (ConnectDB.resolveCohort); null if all
+	 * @param reset remove all existing jobs (also done ones) and seed again
+	 * @return true, if jobs were seeded; false, if existing jobs are continued
+	 * @throws IllegalStateException if the job table can't be created or seeded
+	 */
+	public boolean seed(int limit, boolean orderBySize, List<Integer> cohortSubjectIds, boolean reset) {
+		String schema = table.substring(0, table.indexOf('.'));
+		String order = orderBySize ? "COALESCE(c.cnt, 0) DESC, p.SUBJECT_ID" : "p.ROW_ID";
+		String query = "INSERT INTO " + table + " (patient_number, subject_id, estimated_rows) " +
+					   "SELECT row_number() OVER (ORDER BY " + order + "), p.SUBJECT_ID, " + (orderBySize ? "COALESCE(c.cnt, 0) " : "NULL ") +
+					   "FROM PATIENTS p " +
+					   (orderBySize ? "LEFT JOIN (SELECT SUBJECT_ID, COUNT(*) AS cnt FROM CHARTEVENTS GROUP BY SUBJECT_ID) c ON c.SUBJECT_ID = p.SUBJECT_ID " : "") +
+					   (cohortSubjectIds != null ? "WHERE p.SUBJECT_ID = ANY(?) " : "") +
+					   "ORDER BY " + order + 
+					   (limit > 0 ? " LIMIT " + limit : "");
+		
+		try {
+			Connection connection = dbAccess.getWriteConnection();
+			synchronized(connection) {
+				return seed(connection, query, schema, reset, cohortSubjectIds);
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Job table " + table + " can't be seeded", e);
+		}
+	}
+	
+	private boolean seed(Connection connection, String query, String schema, boolean reset, List<Integer> cohortSubjectIds) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE SCHEMA IF NOT EXISTS " + schema);
+			statement.execute("CREATE TABLE IF NOT EXISTS " + table + " (" +
+							  "patient_number integer PRIMARY KEY, " +
+							  "subject_id integer NOT NULL, " +
+							  "estimated_rows bigint, " +
+							  "state varchar(10) NOT NULL DEFAULT 'open', " +
+							  "lease_until timestamp, " +
+							  "worker varchar(200))");
+			//claims only look at jobs not done yet
+			statement.execute("CREATE INDEX IF NOT EXISTS patient_jobs_open ON " + table + " (patient_number) WHERE state <> 'done'");
+			
+			if(reset) {
+				statement.execute("TRUNCATE " + table);
+			}
+			else {
+				//jobs of an earlier run (maybe partly done) -> continue them
+				try (ResultSet rs = statement.executeQuery("SELECT EXISTS (SELECT 1 FROM " + table + ")")) {
+					if(rs.next() && rs.getBoolean(1)) {
+						return false;
+					}
+				}
+			}
+		}
+		try (PreparedStatement insert = connection.prepareStatement(query)) {
+			if(cohortSubjectIds != null) {
+				Array ids = connection.createArrayOf("int4", cohortSubjectIds.toArray());
+				insert.setArray(1, ids);
+				insert.executeUpdate();
+				ids.free();
+			}
+			else {
+				insert.executeUpdate();
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Claim next block of jobs: open jobs or jobs with expired lease. Jobs locked by other workers are skipped
+	 * @param count max. number of jobs
+	 * @return patient number -> subjectId, ordered by number; empty if there are no more jobs
+	 * @throws IllegalStateException if the claim fails (e.g. job table not created yet) - not the same as no more jobs
+	 */
+	public TreeMap<Integer,Integer> claim(int count) {
+		String worker = workerId();
+		String query = "UPDATE " + table + " SET state = 'claimed', lease_until = now() + ? * interval '1 second', worker = ? " +
+					   "WHERE patient_number IN (" +
+					   "SELECT patient_number FROM " + table + " " +
+					   "WHERE state = 'open' OR (state = 'claimed' AND lease_until < now()) " +
+					   "ORDER BY patient_number LIMIT ? FOR UPDATE SKIP LOCKED) " +
+					   "RETURNING patient_number, subject_id";
+		
+		TreeMap<Integer,Integer> jobs = new TreeMap<Integer,Integer>();
+		try {
+			Connection connection = dbAccess.getWriteConnection();
+			synchronized(connection) {
+				try (PreparedStatement statement = connection.prepareStatement(query)) {
+					statement.setInt(1, leaseSeconds);
+					statement.setString(2, worker);
+					statement.setInt(3, count);
+					try (ResultSet rs = statement.executeQuery()) {
+						while (rs.next()) {
+							jobs.put(rs.getInt(1), rs.getInt(2));
+						}
+					}
+				}
+			}
+		} catch (SQLException e) {
+			if(UNDEFINED_TABLE.equals(e.getSQLState())) {
+				throw new IllegalStateException("Job table " + table + " doesn't exist - start the coordinator first", e);
+			}
+			throw new IllegalStateException("Jobs can't be claimed from " + table, e);
+		}
+		if(!jobs.isEmpty()) {
+			heldJobs.put(worker, jobs.keySet());
+			startLeaseRenewal();
+		}
+		return jobs;
+	}
+	
+	/**
+	 * Mark jobs as done - only jobs still claimed by the current worker (jobs claimed by another worker 
+	 * after an expired lease are left to that worker)
+	 * @param patientNumbers job (= patient) numbers
+	 * @return number of jobs marked as done
+	 * @throws IllegalStateException if the jobs can't be marked as done
+	 */
+	public int finish(Collection<Integer> patientNumbers) {
+		String worker = workerId();
+		heldJobs.remove(worker);
+		String query = "UPDATE " + table + " SET state = 'done', lease_until = NULL " + 
+					   "WHERE patient_number = ANY(?) AND state = 'claimed' AND worker = ?";
+		int done = 0;
+		try {
+			Connection connection = dbAccess.getWriteConnection();
+			synchronized(connection) {
+				try (PreparedStatement statement = connection.prepareStatement(query)) {
+					Array numbers = connection.createArrayOf("int4", patientNumbers.toArray());
+					statement.setArray(1, numbers);
+					statement.setString(2, worker);
+					done = statement.executeUpdate();
+					numbers.free();
+				}
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Jobs can't be marked as done in " + table, e);
+		}
+		if(done < patientNumbers.size()) {
+			//lease expired while converting -> these patients are converted (and sent) twice
+			LOG.warning("Job table: " + (patientNumbers.size() - done) + " jobs of " + worker + " were claimed by another worker");
+		}
+		return done;
+	}
+	
+	/**
+	 * Stop renewing the lease of the jobs of the current worker without marking them as done 
+	 * (e.g. after an error) -> they are claimed again after the lease has expired
+	 */
+	public void release() {
+		heldJobs.remove(workerId());
+	}
+	
+	/**
+	 * Stop lease renewal (after all workers are done)
+	 */
+	public synchronized void close() {
+		if(leaseRenewal != null) {
+			leaseRenewal.shutdownNow();
+			leaseRenewal = null;
+		}
+	}
+	
+	private String workerId() {
+		return workerName + "/" + Thread.currentThread().getName();
+	}
+	
+	private synchronized void startLeaseRenewal() {
+		if(leaseRenewal == null) {
+			leaseRenewal = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "job-lease-renewal");
+				thread.setDaemon(true);
+				return thread;
+			});
+			//renew well before the lease expires
+			long period = Math.max(leaseSeconds / 3, 1);
+			leaseRenewal.scheduleAtFixedRate(this::renewLeases, period, period, TimeUnit.SECONDS);
+		}
+	}
+	
+	private void renewLeases() {
+		String query = "UPDATE " + table + " SET lease_until = now() + ? * interval '1 second' " + 
+					   "WHERE patient_number = ANY(?) AND state = 'claimed' AND worker = ?";
+		try {
+			Connection connection = dbAccess.getLeaseConnection();
+			synchronized(connection) {
+				try (PreparedStatement statement = connection.prepareStatement(query)) {
+					for(Map.Entry<String,Collection<Integer>> held : heldJobs.entrySet()) {
+						Array numbers = connection.createArrayOf("int4", held.getValue().toArray());
+						statement.setInt(1, leaseSeconds);
+						statement.setArray(2, numbers);
+						statement.setString(3, held.getKey());
+						statement.executeUpdate();
+						numbers.free();
+					}
+				}
+			}
+		} catch (SQLException e) {
+			//no rethrow: renewal is tried again with the next period
+			LOG.log(Level.WARNING, "Job leases can't be renewed in " + table, e);
+		}
+	}
+}
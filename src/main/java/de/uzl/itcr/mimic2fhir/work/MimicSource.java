@@ -0,0 +1,59 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.HashMap;
+import java.util.List;
+
+import de.uzl.itcr.mimic2fhir.model.MCaregiver;
+import de.uzl.itcr.mimic2fhir.model.MPrescription;
+import de.uzl.itcr.mimic2fhir.model.MWard;
+
+/**
+ * Source of mimic data used while converting patients (postgres db: ConnectDB, csv files: CsvSource).
+ * Sources that can stream events also implement EventStreamSource
+ * @author Stefanie Ververs
+ *
+ */
+public interface MimicSource {
+	/**
+	 * Get dictionary with all caregivers - Key: Id, Value: Caregiver-Object
+	 * @return dictionary
+	 */
+	HashMap<Integer,MCaregiver> getCaregivers();
+	
+	/**
+	 * Get dictionary with all locations = wards, key = wardId, value: MWard-Object
+	 * @return dictionary
+	 */
+	HashMap<Integer,MWard> getLocations();
+	
+	/**
+	 * Get one prescription per drug (NDC, GSN, formulary code and name) of all prescriptions (of the cohort, if set)
+	 * @return list of drugs
+	 */
+	List<MPrescription> getMedications();
+	
+	/**
+	 * Give resources (e.g. connection) used by the current thread back
+	 */
+	void releaseConnection();
+	
+	/**
+	 * Close source
+	 */
+	void close();
+}
@@ -0,0 +1,97 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+
+/**
+ * Iterates over all patients in mimiciii.patients ordered by rowId.
+ * Patients are read page by page with keyset paging (ROW_ID > last rowId), so gaps in the rowIds don't matter
+ * and the patients table is read in one sequential sweep.
+ * Admissions are not loaded, use ConnectDB.loadAdmissions
+ * @author Stefanie Ververs
+ *
+ */
+public class PatientIterator implements Iterator<MPatient> {
+	private ConnectDB dbAccess;
+	private int pageSize;
+	private int limit;
+	
+	private List<MPatient> page;
+	private int pageIndex = 0;
+	private boolean lastPage = false;
+	private int lastRowId = 0;
+	private int numberOfReturnedPatients = 0;
+	
+	/**
+	 * Create new iterator
+	 * @param dbAccess db access
+	 * @param pageSize number of patients read per query
+	 * @param limit max. number of patients; 0 if all
+	 * @param afterRowId start after this rowId (0 for first patient)
+	 */
+	PatientIterator(ConnectDB dbAccess, int pageSize, int limit, int afterRowId) {
+		this.dbAccess = dbAccess;
+		this.pageSize = pageSize;
+		this.limit = limit;
+		this.lastRowId = afterRowId;
+		this.page = new ArrayList<MPatient>();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(limit > 0 && numberOfReturnedPatients >= limit) {
+			return false;
+		}
+		if(pageIndex >= page.size() && !lastPage) {
+			loadNextPage();
+		}
+		return pageIndex < page.size();
+	}
+
+	@Override
+	public MPatient next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		numberOfReturnedPatients++;
+		return page.get(pageIndex++);
+	}
+	
+	/**
+	 * Number of patients returned so far
+	 * @return number of patients
+	 */
+	public int getNumberOfReturnedPatients() {
+		return numberOfReturnedPatients;
+	}
+	
+	private void loadNextPage() {
+		page = dbAccess.getPatientPage(lastRowId, pageSize);
+		pageIndex = 0;
+		if(page.size() < pageSize) {
+			lastPage = true;
+		}
+		if(!page.isEmpty()) {
+			lastRowId = page.get(page.size() - 1).getRowId();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.IdType;
+
+/**
+ * References of the reference data (hospital, locations, practitioners, medications) that is sent once in leading bundles, 
+ * so patient bundles can reference them directly instead of creating them again (conditional creates)
+ * Key is the conditional reference of a resource, e.g. Location?identifier=http://www.imi-mimic.de/wards|12_CCU
+ * @author Stefanie Ververs
+ *
+ */
+public class ReferenceData {
+	private HashMap<String,String> references = new HashMap<String,String>();
+	
+	/**
+	 * Register all conditional created resources of a sent reference bundle
+	 * @param request sent bundle
+	 * @param response transaction response of server; null if bundle was not pushed to a server (-> conditional references)
+	 */
+	public void register(Bundle request, Bundle response) {
+		List<BundleEntryComponent> entries = request.getEntry();
+		for(int i = 0; i < entries.size(); i++) {
+			BundleEntryComponent entry = entries.get(i);
+			if(entry.getRequest().getIfNoneExist() == null) {
+				continue;
+			}
+			String key = getConditionalReference(entry.getRequest().getUrl(), entry.getRequest().getIfNoneExist());
+			
+			String reference = key;
+			if(response != null && i < response.getEntry().size()) {
+				//response entries in same order as request entries: location = Type/id/_history/version
+				String location = response.getEntry().get(i).getResponse().getLocation();
+				if(location != null) {
+					reference = new IdType(location).toUnqualifiedVersionless().getValue();
+				}
+			}
+			references.put(key, reference);
+		}
+	}
+	
+	/**
+	 * Register a resource that is already on the server (e.g. from crosswalk) and not sent again
+	 * @param resourceType type of resource, e.g. Location
+	 * @param condition search condition of the conditional create, e.g. identifier=system|value
+	 * @param reference server id
+	 */
+	public void put(String resourceType, String condition, String reference) {
+		references.put(getConditionalReference(resourceType, condition), reference);
+	}
+	
+	/**
+	 * Get reference of a resource of the reference data
+	 * @param resourceType type of resource, e.g. Location
+	 * @param condition search condition of the conditional create, e.g. identifier=system|value
+	 * @return reference (server id or conditional reference); null if resource was not sent
+	 */
+	public String getReference(String resourceType, String condition) {
+		return references.get(getConditionalReference(resourceType, condition));
+	}
+	
+	/**
+	 * Number of registered resources
+	 * @return number of resources
+	 */
+	public int size() {
+		return references.size();
+	}
+	
+	private String getConditionalReference(String resourceType, String condition) {
+		return resourceType + "?" + condition;
+	}
+}
@@ -0,0 +1,292 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.uzl.itcr.mimic2fhir.MimicTable;
+import de.uzl.itcr.mimic2fhir.model.MAdmission;
+import de.uzl.itcr.mimic2fhir.model.MDiagnose;
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+import de.uzl.itcr.mimic2fhir.model.MProcedure;
+
+/**
+ * Reads complete patients (incl. admissions and all admission data) with one ordered cursor per table.
+ * All tables are sorted by (subject_id, hadm_id) and merged in memory, so the whole database is read 
+ * with a few sequential scans instead of one index lookup per admission and table
+ * @author Stefanie Ververs
+ *
+ */
+public class SortMergeReader implements Iterator<MPatient> {
+	private static final Logger LOG = Logger.getLogger(SortMergeReader.class.getName());
+	private ConnectDB dbAccess;
+	private Connection connection;
+	private int fetchSize;
+	private int limit;
+	private int numberOfReturnedPatients = 0;
+	private boolean closed = false;
+	
+	private List<PreparedStatement> statements;
+	
+	private MergeCursor patients;
+	private MergeCursor admissions;
+	private MergeCursor diagnoses;
+	private MergeCursor procedures;
+	private MergeCursor chartevents;
+	private MergeCursor labevents;
+	private MergeCursor noteevents;
+	private MergeCursor prescriptions;
+	private MergeCursor transfers;
+	
+	/**
+	 * Open all cursors (if this fails, the cursors opened so far are closed and the connection is given back)
+	 * @param dbAccess db access (row mapping, connection is given back on close)
+	 * @param connection connection used only by this reader
+	 * @param fetchSize rows per round trip and cursor
+	 * @param limit max. number of patients; 0 if all
+	 * @param afterSubjectId read only patients with a higher subjectId (0 for all)
+	 * @throws SQLException
+	 */
+	SortMergeReader(ConnectDB dbAccess, Connection connection, int fetchSize, int limit, int afterSubjectId) throws SQLException {
+		this.dbAccess = dbAccess;
+		this.connection = connection;
+		this.fetchSize = fetchSize;
+		this.limit = limit;
+		this.statements = new ArrayList<PreparedStatement>();
+		
+		try {
+			openCursors(afterSubjectId);
+		} catch (SQLException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	private void openCursors(int afterSubjectId) throws SQLException {
+		//cursors only inside a transaction
+		dbAccess.beginReadTransaction(connection);
+		
+		//resume: skip subjects that are already done; shard: only subjects of this shard
+		String after = "WHERE SUBJECT_ID > " + afterSubjectId + dbAccess.shardCondition("SUBJECT_ID") + " ";
+		
+		patients = new MergeCursor(openCursor(ConnectDB.PATIENTS_SELECT + after + "ORDER BY SUBJECT_ID"), 2, 0);
+		admissions = new MergeCursor(openCursor(ConnectDB.ADMISSIONS_SELECT + after + "ORDER BY SUBJECT_ID, HADM_ID"), 2, 3);
+		diagnoses = new MergeCursor(openCursor(MimicTable.DIAGNOSES_ICD, ConnectDB.DIAGNOSES_SELECT + after + "ORDER BY SUBJECT_ID, HADM_ID, SEQ_NUM"), 2, 3);
+		procedures = new MergeCursor(openCursor(MimicTable.PROCEDURES_ICD, ConnectDB.PROCEDURES_SELECT + after + "ORDER BY SUBJECT_ID, HADM_ID, SEQ_NUM"), 2, 3);
+		chartevents = new MergeCursor(openCursor(MimicTable.CHARTEVENTS, ConnectDB.CHARTEVENTS_SELECT + "WHERE C.SUBJECT_ID > " + afterSubjectId + dbAccess.shardCondition("C.SUBJECT_ID") + " ORDER BY C.SUBJECT_ID, C.HADM_ID"), 1, 2);
+		labevents = new MergeCursor(openCursor(MimicTable.LABEVENTS, ConnectDB.LABEVENTS_SELECT + "WHERE L.SUBJECT_ID > " + afterSubjectId + dbAccess.shardCondition("L.SUBJECT_ID") + " ORDER BY L.SUBJECT_ID, L.HADM_ID"), 1, 2);
+		noteevents = new MergeCursor(openCursor(MimicTable.NOTEEVENTS, ConnectDB.NOTEEVENTS_SELECT + after + "ORDER BY SUBJECT_ID, HADM_ID"), 2, 3);
+		prescriptions = new MergeCursor(openCursor(MimicTable.PRESCRIPTIONS, ConnectDB.PRESCRIPTIONS_SELECT + after + "ORDER BY SUBJECT_ID, HADM_ID"), 2, 3);
+		transfers = new MergeCursor(openCursor(MimicTable.TRANSFERS, ConnectDB.TRANSFERS_SELECT + after + "ORDER BY SUBJECT_ID, HADM_ID"), 2, 3);
+	}
+	
+	private ResultSet openCursor(MimicTable table, String query) throws SQLException {
+		//disabled table: no query, empty cursor
+		return dbAccess.useTable(table) ? openCursor(query) : null;
+	}
+	
+	private ResultSet openCursor(String query) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(query);
+		statement.setFetchSize(fetchSize);
+		statements.add(statement);
+		return statement.executeQuery();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(!closed && (!patients.hasRow || (limit > 0 && numberOfReturnedPatients >= limit))) {
+			close();
+		}
+		return !closed;
+	}
+
+	@Override
+	public MPatient next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		
+		MPatient pat;
+		try {
+			pat = dbAccess.createPatient(patients.rs);
+			int subjectId = patients.subjectId;
+			patients.advance();
+			
+			//Admissions of patient (ordered by hadm_id) -> collect rows of all other tables for each admission
+			admissions.skipTo(subjectId, Integer.MIN_VALUE);
+			while(admissions.hasRow && admissions.subjectId == subjectId) {
+				MAdmission mAdm = dbAccess.createAdmission(admissions.rs);
+				int hadmId = admissions.hadmId;
+				admissions.advance();
+				
+				//Diagnoses
+				diagnoses.skipTo(subjectId, hadmId);
+				while(diagnoses.isAt(subjectId, hadmId)) {
+					MDiagnose mDiag = dbAccess.createDiagnose(diagnoses.rs);
+					if(mDiag != null) {
+						mAdm.addDiagnose(mDiag);
+					}
+					diagnoses.advance();
+				}
+				
+				//Procedures
+				procedures.skipTo(subjectId, hadmId);
+				while(procedures.isAt(subjectId, hadmId)) {
+					MProcedure mProc = dbAccess.createProcedure(procedures.rs);
+					if(mProc != null) {
+						mAdm.addProcedure(mProc);
+					}
+					procedures.advance();
+				}
+				
+				//Chartevents
+				chartevents.skipTo(subjectId, hadmId);
+				while(chartevents.isAt(subjectId, hadmId)) {
+					dbAccess.appendChartevent(chartevents.rs, mAdm.getEvents());
+					chartevents.advance();
+				}
+				
+				//Labevents
+				labevents.skipTo(subjectId, hadmId);
+				while(labevents.isAt(subjectId, hadmId)) {
+					dbAccess.appendLabevent(labevents.rs, mAdm.getLabEvents());
+					labevents.advance();
+				}
+				
+				//Noteevents
+				noteevents.skipTo(subjectId, hadmId);
+				while(noteevents.isAt(subjectId, hadmId)) {
+					mAdm.addNoteEvent(dbAccess.createNoteevent(noteevents.rs));
+					noteevents.advance();
+				}
+				
+				//Prescriptions
+				prescriptions.skipTo(subjectId, hadmId);
+				while(prescriptions.isAt(subjectId, hadmId)) {
+					mAdm.addPrescription(dbAccess.createPrescription(prescriptions.rs));
+					prescriptions.advance();
+				}
+				
+				//Transfers
+				transfers.skipTo(subjectId, hadmId);
+				while(transfers.isAt(subjectId, hadmId)) {
+					mAdm.addTransfer(dbAccess.createTransfer(transfers.rs, mAdm.getTransfers().size() + 1));
+					transfers.advance();
+				}
+				
+				pat.addAdmission(mAdm);
+			}
+		} catch (SQLException e) {
+			close();
+			//no partial patient: it would be converted and checkpointed as done
+			throw new IllegalStateException("Reading patient failed", e);
+		}
+		
+		numberOfReturnedPatients++;
+		return pat;
+	}
+	
+	/**
+	 * Number of patients returned so far
+	 * @return number of patients
+	 */
+	public int getNumberOfReturnedPatients() {
+		return numberOfReturnedPatients;
+	}
+	
+	/**
+	 * Close all cursors and give connection back to pool (done automatically at the end)
+	 */
+	public void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		for(PreparedStatement statement : statements) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				LOG.log(Level.WARNING, "Sort merge cursor can't be closed", e);
+			}
+		}
+		//no transaction left open on the pool connection
+		try {
+			dbAccess.endReadTransaction(connection);
+		} catch (SQLException e) {
+			LOG.log(Level.WARNING, "Read transaction can't be ended", e);
+		}
+		dbAccess.giveBackConnection(connection);
+	}
+	
+	/**
+	 * Ordered cursor on one table with current key (subject_id, hadm_id)
+	 */
+	static class MergeCursor {
+		private ResultSet rs;
+		private int subjectColumn;
+		private int hadmColumn;
+		
+		private boolean hasRow;
+		private int subjectId;
+		private int hadmId;
+		
+		MergeCursor(ResultSet rs, int subjectColumn, int hadmColumn) throws SQLException {
+			this.rs = rs;
+			this.subjectColumn = subjectColumn;
+			this.hadmColumn = hadmColumn;
+			//no result set: empty cursor
+			if(rs != null) {
+				advance();
+			}
+		}
+		
+		void advance() throws SQLException {
+			hasRow = rs.next();
+			if(hasRow) {
+				subjectId = rs.getInt(subjectColumn);
+				//rows without admission are sorted last (NULLS LAST)
+				if(hadmColumn > 0 && rs.getObject(hadmColumn) != null) {
+					hadmId = rs.getInt(hadmColumn);
+				}
+				else {
+					hadmId = Integer.MAX_VALUE;
+				}
+			}
+		}
+		
+		/**
+		 * Skip all rows before (subjectId, hadmId) - rows without matching patient or admission
+		 */
+		void skipTo(int subjectId, int hadmId) throws SQLException {
+			while(hasRow && (this.subjectId < subjectId || (this.subjectId == subjectId && this.hadmId < hadmId))) {
+				advance();
+			}
+		}
+		
+		boolean isAt(int subjectId, int hadmId) {
+			return hasRow && this.subjectId == subjectId && this.hadmId == hadmId;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+
+import org.hl7.fhir.dstu3.model.Organization;
+
+import de.uzl.itcr.mimic2fhir.model.MAdmission;
+import de.uzl.itcr.mimic2fhir.model.MCaregiver;
+import de.uzl.itcr.mimic2fhir.model.MCharteventBlock;
+import de.uzl.itcr.mimic2fhir.model.MDiagnose;
+import de.uzl.itcr.mimic2fhir.model.MNoteevent;
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+import de.uzl.itcr.mimic2fhir.model.MPrescription;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
+import de.uzl.itcr.mimic2fhir.work.Config;
+import de.uzl.itcr.mimic2fhir.work.FHIRComm;
+
+/**
+ * Standalone benchmark of the patient conversion (no db, queue or fhir server needed):
+ * converts one patient with one admission of growing size (chartevents, plus 1/10 noteevents and 1/100 prescriptions)
+ * incl. serialization of the bundles and prints the time per event - it should stay flat with the admission size.
+ * Run: java -cp target/classes:target/test-classes:&lt;dependencies&gt; de.uzl.itcr.mimic2fhir.ConversionBenchmark [max. number of events]
+ * @author Stefanie Ververs
+ *
+ */
+public class ConversionBenchmark {
+	private static final int CAREGIVERS = 50;
+	private static final int HEART_RATE = 211;
+	
+	public static void main(String[] args) {
+		int maxEvents = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		
+		Config config = new Config();
+		//only used for serialization, no requests
+		config.setFhirServer("http://localhost:8080/baseDstu3");
+		FHIRComm fhir = new FHIRComm(config);
+		
+		HashMap<Integer,MCaregiver> caregivers = new HashMap<Integer,MCaregiver>();
+		for(int cg = 1; cg <= CAREGIVERS; cg++) {
+			MCaregiver mCg = new MCaregiver();
+			mCg.setCaregiverId(cg);
+			mCg.setLabel("RN");
+			mCg.setDescription("Nurse");
+			caregivers.put(cg, mCg);
+		}
+		MCharteventBlock.setItemLabels(Collections.singletonMap(HEART_RATE, "Heart Rate"));
+		Organization hospital = new Organization();
+		hospital.addIdentifier().setSystem("http://www.imi-mimic.de").setValue("hospital");
+		hospital.setId(ResourceIds.newId("http://www.imi-mimic.de", "hospital"));
+		
+		//bundles are serialized, but not sent
+		long[] bundleChars = new long[1];
+		PatientWorker worker = new PatientWorker(null, fhir, caregivers, new HashMap<>(), hospital, 
+				message -> bundleChars[0] += message.length());
+		
+		//warm up (JIT)
+		for(int w = 0; w < 5; w++) {
+			run(worker, 1, 20000);
+		}
+		
+		System.out.println("events\tms\tns/event");
+		int patient = 2;
+		for(int events = 1000; events <= maxEvents; events *= 10) {
+			long nanos = run(worker, patient++, events);
+			System.out.println(events + "\t" + nanos / 1000000 + "\t" + nanos / events);
+			if(events < maxEvents && events * 10 > maxEvents) {
+				events = maxEvents / 10;
+			}
+		}
+		worker.close();
+		System.out.println("Serialized: " + bundleChars[0] / (1024 * 1024) + " MB");
+	}
+	
+	private static long run(PatientWorker worker, int number, int events) {
+		MPatient mimicPat = createPatient(number, events);
+		long start = System.nanoTime();
+		worker.processPatient(mimicPat, number);
+		return System.nanoTime() - start;
+	}
+	
+	private static MPatient createPatient(int number, int events) {
+		Date date = new Date();
+		MPatient mimicPat = new MPatient();
+		mimicPat.setRowId(number);
+		mimicPat.setPatientSubjectId(String.valueOf(number));
+		mimicPat.setGender("F");
+		mimicPat.setBirthDate(date);
+		
+		MAdmission mAdm = new MAdmission();
+		mAdm.setAdmissionId(String.valueOf(100000 + number));
+		mAdm.setAdmissionTime(date);
+		mAdm.setDischargeTime(date);
+		mAdm.setAdmissionType("EMERGENCY");
+		mAdm.setAdmissionLocation("EMERGENCY ROOM ADMIT");
+		mAdm.setDischargeLocation("HOME");
+		mAdm.setMaritalStatus("MARRIED");
+		mAdm.setLanguage("ENGL");
+		mAdm.setReligion("CATHOLIC");
+		
+		for(int d = 1; d <= 20; d++) {
+			MDiagnose mDiag = new MDiagnose();
+			mDiag.setIcd9Code("4019");
+			mDiag.setShortTitle("Hypertension NOS");
+			mDiag.setLongTitle("Unspecified essential hypertension");
+			mDiag.setSeqNumber(d);
+			mAdm.addDiagnose(mDiag);
+		}
+		for(int e = 0; e < events; e++) {
+			//appended like the rows of a data source
+			mAdm.getEvents().add(date, e % CAREGIVERS + 1, HEART_RATE, String.valueOf(60 + e % 40), true, 60 + e % 40, "bpm");
+		}
+		for(int n = 0; n < events / 10; n++) {
+			MNoteevent note = new MNoteevent();
+			note.setChartdate(date);
+			note.setCaregiverId(n % CAREGIVERS + 1);
+			note.setCategory("Nursing");
+			note.setDescription("Report");
+			note.setText("Patient stable.");
+			mAdm.addNoteEvent(note);
+		}
+		for(int p = 0; p < events / 100; p++) {
+			MPrescription pres = new MPrescription();
+			pres.setStart(date);
+			pres.setEnd(date);
+			pres.setDrugtype("MAIN");
+			pres.setDrug("Drug " + p % 200);
+			pres.setFormularyDrugCd("D" + p % 200);
+			//no NDC/GSN -> no RxNorm lookup
+			pres.setNdc("0");
+			pres.setDoseValRx("1");
+			pres.setDoseUnitRx("mg");
+			pres.setRoute("PO");
+			mAdm.addPrescription(pres);
+		}
+		mimicPat.addAdmission(mAdm);
+		return mimicPat;
+	}
+}
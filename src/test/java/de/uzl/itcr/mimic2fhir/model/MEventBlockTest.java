@@ -0,0 +1,160 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MEventBlockTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Before
+	public void setDictionaries() {
+		MCharteventBlock.setItemLabels(Collections.singletonMap(211, "Heart Rate"));
+		MLabItem glucose = new MLabItem();
+		glucose.setLabel("Glucose");
+		glucose.setFluid("Blood");
+		glucose.setLoinc("2345-7");
+		MLabeventBlock.setLabItems(Collections.singletonMap(50931, glucose));
+	}
+	
+	@After
+	public void resetLimits() {
+		MEventBlock.setSpillLimits(0, 0, null);
+	}
+	
+	@Test
+	public void stringPoolKeepsOneNumberPerString() {
+		StringPool pool = new StringPool();
+		assertEquals(-1, pool.add(null));
+		assertEquals(0, pool.add("mmHg"));
+		assertEquals(1, pool.add("bpm"));
+		long bytes = pool.bytes();
+		assertEquals(0, pool.add(new String("mmHg")));
+		assertEquals(2, pool.size());
+		assertEquals(bytes, pool.bytes());
+		assertEquals("bpm", pool.get(1));
+		assertNull(pool.get(-1));
+	}
+	
+	@Test
+	public void chartEventsSurviveSpill() {
+		MEventBlock.setSpillLimits(2048, 0, folder.getRoot().getPath());
+		MCharteventBlock block = new MCharteventBlock();
+		for(int i = 0; i < 1000; i++) {
+			block.add(chartevent(i));
+		}
+		//rows were moved to the scratch file
+		assertEquals(1, folder.getRoot().listFiles().length);
+		assertEquals(1000, block.size());
+		for(int i = 0; i < 1000; i++) {
+			MChartevent event = block.get(i);
+			assertEquals(new Date(1000L * i), event.getRecordDate());
+			assertEquals(i % 7, event.getCareGiverId());
+			assertEquals(211, event.getItemId());
+			assertEquals("Heart Rate", event.getMeasurementType());
+			assertEquals(i % 2 == 0, event.hasNumVal());
+			assertEquals(i % 2 == 0 ? Integer.toString(i) : "text " + i, event.getValue());
+			assertEquals(i % 2 == 0 ? "bpm" : null, event.getUnit());
+			if(event.hasNumVal()) {
+				assertEquals(i, event.getNumValue(), 0);
+			}
+		}
+		
+		block.release();
+		assertTrue(block.isEmpty());
+		assertEquals(0, folder.getRoot().listFiles().length);
+	}
+	
+	@Test
+	public void labEventsSurviveSpill() {
+		MEventBlock.setSpillLimits(0, 4096, folder.getRoot().getPath());
+		MLabeventBlock block = new MLabeventBlock();
+		for(int i = 0; i < 500; i++) {
+			MLabevent event = new MLabevent();
+			event.setAcquisitionDate(new Date(60000L * i));
+			event.setItemId(50931);
+			event.setAbnormal(i % 3 == 0);
+			event.setValue(Integer.toString(i));
+			event.setNumValue(i);
+			event.setUnit("mg/dL");
+			block.add(event);
+		}
+		for(int i = 0; i < 500; i++) {
+			MLabevent event = block.get(i);
+			assertEquals(new Date(60000L * i), event.getAcquisitionDate());
+			assertEquals(i % 3 == 0, event.isAbnormal());
+			assertEquals(50931, event.getItemId());
+			assertEquals("Glucose", event.getMeasurementType());
+			assertEquals("Blood", event.getFluid());
+			assertEquals("2345-7", event.getLoinc());
+			assertEquals(Integer.toString(i), event.getValue());
+			assertEquals(i, event.getNumValue(), 0);
+		}
+		block.release();
+	}
+	
+	@Test(expected = java.io.UncheckedIOException.class)
+	public void failedSpillIsFatal() {
+		MEventBlock.setSpillLimits(1024, 0, new File(folder.getRoot(), "missing").getPath());
+		MCharteventBlock block = new MCharteventBlock();
+		for(int i = 0; i < 1000; i++) {
+			block.add(chartevent(i));
+		}
+	}
+	
+	@Test
+	public void noSpillWithoutLimits() {
+		MEventBlock.setSpillLimits(0, 0, folder.getRoot().getPath());
+		MCharteventBlock block = new MCharteventBlock();
+		for(int i = 0; i < 1000; i++) {
+			block.add(chartevent(i));
+		}
+		assertFalse(folder.getRoot().listFiles().length > 0);
+		assertEquals("text 999", block.get(999).getValue());
+		block.release();
+	}
+	
+	private static MChartevent chartevent(int i) {
+		MChartevent event = new MChartevent();
+		event.setRecordDate(new Date(1000L * i));
+		event.setCareGiverId(i % 7);
+		event.setItemId(211);
+		if(i % 2 == 0) {
+			event.setValue(Integer.toString(i));
+			event.setNumValue(i);
+			event.setUnit("bpm");
+		}
+		else {
+			event.setValue("text " + i);
+		}
+		return event;
+	}
+}
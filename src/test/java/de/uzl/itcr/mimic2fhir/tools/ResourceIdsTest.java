@@ -0,0 +1,101 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Date;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.uzl.itcr.mimic2fhir.IdStrategy;
+import de.uzl.itcr.mimic2fhir.model.MChartevent;
+import de.uzl.itcr.mimic2fhir.model.MPrescription;
+
+public class ResourceIdsTest {
+	
+	private static final UUID NAMESPACE_DNS = UUID.fromString("6ba7b810-9dad-11d1-80b4-00c04fd430c8");
+	private static final UUID NAMESPACE_URL = UUID.fromString("6ba7b811-9dad-11d1-80b4-00c04fd430c8");
+	
+	@After
+	public void resetStrategy() {
+		ResourceIds.setStrategy(null);
+	}
+	
+	@Test
+	public void nameUUIDMatchesVersion5Vectors() {
+		assertEquals(UUID.fromString("886313e1-3b8a-5372-9b90-0c9aee199e5d"), ResourceIds.nameUUID(NAMESPACE_DNS, "python.org"));
+		assertEquals(UUID.fromString("c2a8cbf8-d0f1-5ef4-9740-c3faec8ab1a0"), ResourceIds.nameUUID(NAMESPACE_URL, "http://www.python.org/"));
+	}
+	
+	@Test
+	public void nameUUIDIsVersion5Variant2() {
+		UUID uuid = ResourceIds.nameUUID(NAMESPACE_URL, "http://www.imi-mimic.de");
+		assertEquals(5, uuid.version());
+		assertEquals(2, uuid.variant());
+	}
+	
+	@Test
+	public void nameBasedIdsAreStable() {
+		ResourceIds.setStrategy(IdStrategy.NAME_BASED);
+		assertEquals(ResourceIds.newId("http://www.imi-mimic.de/patients", "42").getValue(), 
+				ResourceIds.newId("http://www.imi-mimic.de/patients", "42").getValue());
+		assertNotEquals(ResourceIds.newId("http://www.imi-mimic.de/patients", "42").getValue(), 
+				ResourceIds.newId("http://www.imi-mimic.de/encs", "42").getValue());
+	}
+	
+	@Test
+	public void randomIdsDiffer() {
+		assertNotEquals(ResourceIds.newId("http://www.imi-mimic.de/patients", "42").getValue(), 
+				ResourceIds.newId("http://www.imi-mimic.de/patients", "42").getValue());
+	}
+	
+	@Test
+	public void medicationIdKeyedOnDrug() {
+		ResourceIds.setStrategy(IdStrategy.NAME_BASED);
+		MPrescription first = new MPrescription();
+		first.setFormularyDrugCd("ACET325");
+		first.setDrug("Acetaminophen");
+		MPrescription second = new MPrescription();
+		second.setFormularyDrugCd("ACET325");
+		second.setDrug("Acetaminophen");
+		second.setRoute("PO");
+		assertEquals("ACET325", first.getDrugKey());
+		assertEquals(first.getFhirMedication().getId(), second.getFhirMedication().getId());
+	}
+	
+	@Test
+	public void eventIdKeyedOnItemAndCharttime() {
+		ResourceIds.setStrategy(IdStrategy.NAME_BASED);
+		String first = chartevent(211, 1000L).getFhirObservation("Patient/1", "Encounter/1").getId();
+		assertEquals(first, chartevent(211, 1000L).getFhirObservation("Patient/1", "Encounter/1").getId());
+		assertNotEquals(first, chartevent(211, 2000L).getFhirObservation("Patient/1", "Encounter/1").getId());
+		assertNotEquals(first, chartevent(220, 1000L).getFhirObservation("Patient/1", "Encounter/1").getId());
+		assertNotEquals(first, chartevent(211, 1000L).getFhirObservation("Patient/1", "Encounter/2").getId());
+	}
+	
+	private static MChartevent chartevent(int itemId, long time) {
+		MChartevent event = new MChartevent();
+		event.setItemId(itemId);
+		event.setRecordDate(new Date(time));
+		event.setValue("80");
+		event.setNumValue(80);
+		return event;
+	}
+}
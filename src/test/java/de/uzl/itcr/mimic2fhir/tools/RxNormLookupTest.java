@@ -0,0 +1,108 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RxNormLookupTest {
+	
+	private ConcurrentHashMap<String, CompletableFuture<String>> lookups = new ConcurrentHashMap<String, CompletableFuture<String>>();
+	private AtomicInteger calls = new AtomicInteger();
+	
+	@Test
+	public void concurrentLookupsOfOneCodeRunOnce() throws Exception {
+		int threads = 8;
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for(int i = 0; i < threads; i++) {
+				results.add(pool.submit(() -> {
+					start.await();
+					return RxNormLookup.lookupOnce(lookups, "00001", () -> {
+						calls.incrementAndGet();
+						//slow request: the other threads ask while it is running
+						try {
+							Thread.sleep(200);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						return "Aspirin";
+					});
+				}));
+			}
+			start.countDown();
+			for(Future<String> result : results) {
+				assertEquals("Aspirin", result.get(10, TimeUnit.SECONDS));
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		assertEquals(1, calls.get());
+	}
+	
+	@Test
+	public void failedLookupIsTriedAgain() {
+		assertNull(RxNormLookup.lookupOnce(lookups, "00001", () -> {
+			calls.incrementAndGet();
+			return null;
+		}));
+		assertFalse(lookups.containsKey("00001"));
+		
+		assertEquals("Aspirin", RxNormLookup.lookupOnce(lookups, "00001", () -> {
+			calls.incrementAndGet();
+			return "Aspirin";
+		}));
+		//now kept
+		assertEquals("Aspirin", RxNormLookup.lookupOnce(lookups, "00001", () -> {
+			calls.incrementAndGet();
+			return "other";
+		}));
+		assertEquals(2, calls.get());
+	}
+	
+	@Test
+	public void lookupWithExceptionIsTriedAgain() {
+		try {
+			RxNormLookup.lookupOnce(lookups, "00001", () -> {
+				throw new IllegalStateException("no response");
+			});
+			fail();
+		}
+		catch(IllegalStateException e) {
+			assertEquals("no response", e.getMessage());
+		}
+		assertFalse(lookups.containsKey("00001"));
+		assertEquals("Aspirin", RxNormLookup.lookupOnce(lookups, "00001", () -> "Aspirin"));
+	}
+}
@@ -0,0 +1,120 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+
+public class CheckpointTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private File file;
+	
+	@Before
+	public void setUp() {
+		file = new File(folder.getRoot(), "checkpoint.properties");
+	}
+	
+	private static MPatient patient(int rowId, int subjectId) {
+		MPatient patient = new MPatient();
+		patient.setRowId(rowId);
+		patient.setPatientSubjectId(String.valueOf(subjectId));
+		return patient;
+	}
+	
+	@Test
+	public void advancesOnlyOverContiguousPatients() {
+		Checkpoint checkpoint = new Checkpoint(file.getPath());
+		checkpoint.reset();
+		
+		//workers finish out of order: patient 1 is still in work
+		checkpoint.patientDone(2, patient(20, 200));
+		assertEquals(0, checkpoint.getPatientNumber());
+		assertEquals(0, checkpoint.getRowId());
+		
+		checkpoint.patientDone(1, patient(10, 100));
+		assertEquals(2, checkpoint.getPatientNumber());
+		assertEquals(20, checkpoint.getRowId());
+		assertEquals(200, checkpoint.getSubjectId());
+		
+		checkpoint.patientDone(4, patient(40, 400));
+		assertEquals(2, checkpoint.getPatientNumber());
+		
+		checkpoint.patientDone(3, patient(30, 300));
+		assertEquals(4, checkpoint.getPatientNumber());
+		assertEquals(40, checkpoint.getRowId());
+		assertEquals(400, checkpoint.getSubjectId());
+	}
+	
+	@Test
+	public void reloadsLastContiguousPatient() {
+		Checkpoint checkpoint = new Checkpoint(file.getPath());
+		checkpoint.reset();
+		checkpoint.patientDone(1, patient(10, 100));
+		//not contiguous: not in the file
+		checkpoint.patientDone(3, patient(30, 300));
+		
+		Checkpoint resumed = new Checkpoint(file.getPath());
+		assertTrue(resumed.load());
+		assertEquals(1, resumed.getPatientNumber());
+		assertEquals(10, resumed.getRowId());
+		assertEquals(100, resumed.getSubjectId());
+		assertFalse(new File(folder.getRoot(), "checkpoint.properties.tmp").exists());
+	}
+	
+	@Test
+	public void loadWithoutFile() {
+		Checkpoint checkpoint = new Checkpoint(file.getPath());
+		assertFalse(checkpoint.load());
+		assertEquals(0, checkpoint.getPatientNumber());
+	}
+	
+	@Test
+	public void corruptFileIsNotOverwritten() throws IOException {
+		Files.write(file.toPath(), "patientNumber=12\nrowId=x\n".getBytes(StandardCharsets.ISO_8859_1));
+		Checkpoint checkpoint = new Checkpoint(file.getPath());
+		try {
+			checkpoint.load();
+			fail();
+		}
+		catch(IllegalStateException e) {
+			//expected: run stops
+		}
+		assertEquals("patientNumber=12\nrowId=x\n", new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void missingValueFails() throws IOException {
+		Files.write(file.toPath(), "patientNumber=12\nrowId=5\n".getBytes(StandardCharsets.ISO_8859_1));
+		new Checkpoint(file.getPath()).load();
+	}
+}
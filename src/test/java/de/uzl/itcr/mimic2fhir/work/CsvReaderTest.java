@@ -0,0 +1,102 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class CsvReaderTest {
+	
+	private static CsvReader reader(String csv) throws IOException {
+		return new CsvReader(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	@Test
+	public void skipsHeader() throws IOException {
+		try (CsvReader reader = reader("ROW_ID,VALUE\n1,a\n")) {
+			assertTrue(reader.next());
+			assertEquals(1, reader.getInt(1));
+			assertEquals("a", reader.getString(2));
+			assertFalse(reader.next());
+		}
+	}
+	
+	@Test
+	public void quotedFields() throws IOException {
+		try (CsvReader reader = reader("H\n\"a,b\",\"line\nbreak\",\"say \"\"hi\"\"\"\n")) {
+			assertTrue(reader.next());
+			assertEquals("a,b", reader.getString(1));
+			assertEquals("line\nbreak", reader.getString(2));
+			assertEquals("say \"hi\"", reader.getString(3));
+			assertFalse(reader.next());
+		}
+	}
+	
+	@Test
+	public void emptyAndNullFields() throws IOException {
+		try (CsvReader reader = reader("H\r\n,\"\",x\r\n")) {
+			assertTrue(reader.next());
+			assertTrue(reader.isNull(1));
+			assertNull(reader.getString(1));
+			assertEquals(0, reader.getInt(1));
+			assertFalse(reader.isNull(2));
+			assertEquals("", reader.getString(2));
+			assertEquals("x", reader.getString(3));
+			//missing columns are null
+			assertTrue(reader.isNull(4));
+			assertFalse(reader.next());
+		}
+	}
+	
+	@Test
+	public void numbersAndDates() throws IOException {
+		try (CsvReader reader = reader("H\n-42,12.5,2101-10-20 19:08:00\n")) {
+			assertTrue(reader.next());
+			assertEquals(-42, reader.getInt(1));
+			assertEquals(12, reader.getInt(2));
+			assertEquals(12.5, reader.getDouble(2), 0);
+			assertEquals(java.sql.Date.valueOf("2101-10-20"), reader.getDate(3));
+			assertEquals(java.sql.Timestamp.valueOf("2101-10-20 19:08:00"), reader.getTimestamp(3));
+		}
+	}
+	
+	@Test
+	public void writeRowReadsBackSameValues() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("H\n".getBytes(StandardCharsets.UTF_8));
+		try (CsvReader reader = reader("H\n\"a,\"\"b\"\"\",,\"\",\"x\ny\"\n")) {
+			assertTrue(reader.next());
+			reader.writeRow(out);
+		}
+		try (CsvReader reader = new CsvReader(new ByteArrayInputStream(out.toByteArray()))) {
+			assertTrue(reader.next());
+			assertEquals("a,\"b\"", reader.getString(1));
+			assertTrue(reader.isNull(2));
+			assertEquals("", reader.getString(3));
+			assertEquals("x\ny", reader.getString(4));
+			assertFalse(reader.next());
+		}
+	}
+}
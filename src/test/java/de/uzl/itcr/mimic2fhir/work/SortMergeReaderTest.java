@@ -0,0 +1,111 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import de.uzl.itcr.mimic2fhir.work.SortMergeReader.MergeCursor;
+
+public class SortMergeReaderTest {
+	
+	/**
+	 * Result set over rows of (subject_id, hadm_id), hadm_id null sorted last like NULLS LAST
+	 */
+	private static ResultSet rows(Integer[]... rows) {
+		int[] row = {-1};
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+			switch(method.getName()) {
+				case "next":
+					return ++row[0] < rows.length;
+				case "getInt":
+					Integer value = rows[row[0]][(Integer)args[0] - 1];
+					return value != null ? value : 0;
+				case "getObject":
+					return rows[row[0]][(Integer)args[0] - 1];
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+	
+	@Test
+	public void skipToStopsAtFirstRowOfKey() throws SQLException {
+		MergeCursor cursor = new MergeCursor(rows(
+				new Integer[] {1, 10}, new Integer[] {1, 11}, new Integer[] {3, 30}, new Integer[] {3, 30}, new Integer[] {3, 31}), 1, 2);
+		
+		cursor.skipTo(1, 11);
+		assertTrue(cursor.isAt(1, 11));
+		
+		//subject 2 has no rows -> cursor stays at next subject
+		cursor.skipTo(2, 20);
+		assertFalse(cursor.isAt(2, 20));
+		assertTrue(cursor.isAt(3, 30));
+		
+		//already there: no row skipped
+		cursor.skipTo(3, 30);
+		cursor.advance();
+		assertTrue(cursor.isAt(3, 30));
+		
+		cursor.skipTo(3, 31);
+		assertTrue(cursor.isAt(3, 31));
+		
+		//behind last row
+		cursor.skipTo(4, 40);
+		assertFalse(cursor.isAt(3, 31));
+		assertFalse(cursor.isAt(4, 40));
+	}
+	
+	@Test
+	public void skipToPassesRowsWithoutAdmission() throws SQLException {
+		MergeCursor cursor = new MergeCursor(rows(
+				new Integer[] {1, 10}, new Integer[] {1, null}, new Integer[] {2, 20}), 1, 2);
+		
+		cursor.skipTo(1, 10);
+		assertTrue(cursor.isAt(1, 10));
+		cursor.advance();
+		
+		//row without admission is last of its subject and skipped with the next subject
+		cursor.skipTo(1, 12);
+		assertFalse(cursor.isAt(1, 12));
+		cursor.skipTo(2, Integer.MIN_VALUE);
+		assertTrue(cursor.isAt(2, 20));
+	}
+	
+	@Test
+	public void skipToWithoutAdmissionColumn() throws SQLException {
+		//patients: only subject_id
+		MergeCursor cursor = new MergeCursor(rows(new Integer[] {5}, new Integer[] {7}), 1, 0);
+		
+		cursor.skipTo(6, Integer.MIN_VALUE);
+		assertTrue(cursor.isAt(7, Integer.MAX_VALUE));
+	}
+	
+	@Test
+	public void emptyCursor() throws SQLException {
+		//disabled table: no result set
+		MergeCursor cursor = new MergeCursor(null, 2, 3);
+		
+		cursor.skipTo(1, 10);
+		assertFalse(cursor.isAt(1, 10));
+	}
+}